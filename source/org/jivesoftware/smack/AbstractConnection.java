@@ -18,6 +18,7 @@ package org.jivesoftware.smack;
 
 import org.jivesoftware.smack.debugger.SmackDebugger;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.XMPPError;
@@ -41,6 +42,7 @@ import java.security.Security;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractConnection {
@@ -102,6 +104,11 @@ public abstract class AbstractConnection {
     protected PacketWriter packetWriter;
     protected AbstractPacketReader packetReader;
 
+    private final PacketQueuePolicy packetQueuePolicy = new PacketQueuePolicy();
+
+    // Delivers received packets to listeners, null for a thread of our own
+    private volatile PacketDispatcher packetDispatcher;
+
     /**
      * Service name of the XMPP connection. 
      * In the normal c2s case servers usually use the same service name as the name
@@ -216,6 +223,26 @@ public abstract class AbstractConnection {
         packetReader.addPacketListener(packetListener, packetFilter);
     }
 
+    /**
+     * Registers a packet listener with this connection, optionally isolated
+     * from the other listeners. An isolated listener is notified of packets
+     * apart from the other listeners, so that a slow listener doesn't delay
+     * them. Isolation only has an effect if the packet dispatcher of the
+     * connection executes tasks in parallel.
+     *
+     * @param packetListener the packet listener to notify of new packets.
+     * @param packetFilter   the packet filter to use.
+     * @param isolated       true if the listener should be notified apart from the others.
+     * @see #setPacketDispatcher(PacketDispatcher)
+     */
+    public void addPacketListener(PacketListener packetListener, PacketFilter packetFilter,
+            boolean isolated) {
+        if (!isConnected()) {
+            throw new IllegalStateException("Not connected to server.");
+        }
+        packetReader.addPacketListener(packetListener, packetFilter, isolated);
+    }
+
     /**
      * Removes a packet listener from this connection.
      *
@@ -293,6 +320,125 @@ public abstract class AbstractConnection {
         return packetReader.createPacketCollector(packetFilter);
     }
 
+    /**
+     * Creates a future which is completed with the result or error reply to an
+     * IQ request received on this connection. This is cheaper than a packet
+     * collector filtering on the packet ID when many requests are outstanding.
+     * The future must be created before the request is sent, and should be
+     * cancelled if the caller gives up waiting for the reply.
+     *
+     * @param request the IQ request.
+     * @return a future completed with the reply.
+     */
+    public Future<IQ> createReplyFuture(IQ request) {
+        return packetReader.createReplyFuture(request.getPacketID());
+    }
+
+    /**
+     * Returns the number of stanzas sent on this connection. Divided by
+     * {@link #getFlushCount()} this gives the average number of stanzas
+     * written per flush of the socket.
+     *
+     * @return the number of stanzas sent.
+     */
+    public long getSentStanzaCount() {
+        return packetWriter == null ? 0 : packetWriter.getStanzaCount();
+    }
+
+    /**
+     * Returns the number of received stanzas delivered to packet listeners.
+     *
+     * @return the number of dispatched stanzas.
+     */
+    public long getDispatchedStanzaCount() {
+        return packetReader == null ? 0 : packetReader.getDispatchedPacketCount();
+    }
+
+    /**
+     * Returns the number of times the filter of a packet listener was
+     * evaluated for a received stanza. Listeners whose filters can't exclude
+     * a stanza by its kind, type, packet ID, sender or extensions have their
+     * filters evaluated for every stanza.
+     *
+     * @return the number of filter evaluations.
+     */
+    public long getFilterEvaluationCount() {
+        return packetReader == null ? 0 : packetReader.getFilterEvaluationCount();
+    }
+
+    /**
+     * Returns the average number of packet listener filters evaluated per
+     * received stanza.
+     *
+     * @return the filter evaluations per stanza, or 0 if no stanzas have been
+     *      received.
+     */
+    public double getFilterEvaluationsPerStanza() {
+        long stanzas = getDispatchedStanzaCount();
+        return stanzas == 0 ? 0 : (double) getFilterEvaluationCount() / stanzas;
+    }
+
+    /**
+     * Returns the number of times the socket was flushed after writing stanzas.
+     *
+     * @return the number of flushes.
+     */
+    public long getFlushCount() {
+        return packetWriter == null ? 0 : packetWriter.getFlushCount();
+    }
+
+    /**
+     * Returns the largest number of stanzas written in a single flush.
+     *
+     * @return the largest batch of stanzas written.
+     */
+    public int getLargestWriteBatch() {
+        return packetWriter == null ? 0 : packetWriter.getLargestBatch();
+    }
+
+    /**
+     * Returns the policy of the queue of packets waiting to be written to this
+     * connection. The policy decides what happens when packets are sent faster
+     * than the remote end reads them, and is used to register listeners
+     * notified when the queue fills up.
+     *
+     * @return the policy of the outgoing packet queue.
+     */
+    public PacketQueuePolicy getPacketQueuePolicy() {
+        return packetQueuePolicy;
+    }
+
+    /**
+     * Sets the dispatcher delivering received packets to packet listeners,
+     * which may be shared with other connections. Without a dispatcher each
+     * connection delivers packets in order using a thread of its own. Takes
+     * effect the next time the connection is established.
+     *
+     * @param packetDispatcher the dispatcher, or null to use a thread of
+     *      the connection.
+     */
+    public void setPacketDispatcher(PacketDispatcher packetDispatcher) {
+        this.packetDispatcher = packetDispatcher;
+    }
+
+    /**
+     * Returns the dispatcher delivering received packets to packet listeners.
+     *
+     * @return the dispatcher, or null if the connection uses a thread of its own.
+     */
+    public PacketDispatcher getPacketDispatcher() {
+        return packetDispatcher;
+    }
+
+    /**
+     * Returns the number of packets waiting to be written to this connection.
+     *
+     * @return the number of queued packets.
+     */
+    public int getQueuedPacketCount() {
+        return packetWriter == null ? 0 : packetWriter.getQueueSize();
+    }
+
     /**
      * Adds a connection listener to this connection that will be notified when
      * the connection closes or fails. The connection needs to already be connected
@@ -20,11 +20,14 @@
 
 package org.jivesoftware.smack;
 
+import org.jivesoftware.smack.filter.FilterKey;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.SettableFuture;
+import org.jivesoftware.smack.util.StringUtils;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -32,6 +35,7 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Listens for XML traffic from the XMPP server and parses it into packet objects.
@@ -44,14 +48,33 @@ import java.util.concurrent.*;
 abstract class AbstractPacketReader {
     protected Thread readerThread;
     private ExecutorService listenerExecutor;
+    private PacketDispatcher dispatcher;
 
     private AbstractConnection connection;
 
     protected XmlPullParser parser;
-    protected boolean done;
+    protected volatile boolean done;
     private Collection<PacketCollector> collectors = new ConcurrentLinkedQueue<PacketCollector>();
+    // Collectors whose filters only accept packets with one packet ID, such as
+    // those waiting for IQ replies, by that ID. Packets are routed to them by
+    // their ID instead of evaluating the filter of every collector.
+    private final ConcurrentMap<String, Collection<PacketCollector>> idCollectors =
+            new ConcurrentHashMap<String, Collection<PacketCollector>>();
+    // Futures waiting for the result or error reply to an IQ, by packet ID.
+    private ConcurrentMap<String, SettableFuture<IQ>> replyFutures =
+            new ConcurrentHashMap<String, SettableFuture<IQ>>();
+    // Whether the reply futures are shared with other readers, in which case
+    // they are owned by whoever shared them and outlive this reader.
+    private boolean sharedReplyFutures = false;
     protected final Map<PacketListener, ListenerWrapper> listeners =
             new ConcurrentHashMap<PacketListener, ListenerWrapper>();
+    // The listeners indexed by the keys of their filters, compiled whenever
+    // the listeners change.
+    private volatile PacketDispatchIndex<ListenerWrapper> dispatchIndex =
+            PacketDispatchIndex.empty();
+    private final Object dispatchIndexLock = new Object();
+    private final AtomicLong dispatchedPackets = new AtomicLong(0);
+    private final AtomicLong filterEvaluations = new AtomicLong(0);
     protected final Collection<ConnectionListener> connectionListeners =
             new CopyOnWriteArrayList<ConnectionListener>();
 
@@ -70,27 +93,62 @@ abstract class AbstractPacketReader {
         done = false;
         connectionID = null;
 
-        readerThread = new Thread() {
-            public void run() {
-                parsePackets(this);
-            }
-        };
-        readerThread.setName("Smack Packet Reader (" + connection.connectionCounterValue + ")");
-        readerThread.setDaemon(true);
-
-        // Create an executor to deliver incoming packets to listeners. We'll use a single
-        // thread with an unbounded queue.
-        listenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-
-            public Thread newThread(Runnable runnable) {
-                Thread thread = new Thread(runnable,
-                        "Smack Listener Processor (" + connection.connectionCounterValue + ")");
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
+        if (usesReaderThread()) {
+            readerThread = new Thread() {
+                public void run() {
+                    parsePackets(this);
+                }
+            };
+            readerThread.setName("Smack Packet Reader (" + connection.connectionCounterValue + ")");
+            readerThread.setDaemon(true);
+        }
+
+        dispatcher = connection.getPacketDispatcher();
+        if (dispatcher == null) {
+            // Create an executor to deliver incoming packets to listeners. We'll use a single
+            // thread with an unbounded queue.
+            final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "Smack Listener Processor (" + connection.connectionCounterValue + ")");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            listenerExecutor = executor;
+            dispatcher = new PacketDispatcher() {
+                public void execute(Object key, Runnable task) {
+                    executor.submit(task);
+                }
+            };
+        }
+        else {
+            listenerExecutor = null;
+        }
+
+        if (usesReaderThread()) {
+            resetParser();
+        }
+    }
+
+    /**
+     * Returns true if incoming data is read and parsed by a dedicated reader
+     * thread. Readers driven by other means, such as a selector, don't need
+     * a reader thread.
+     *
+     * @return true if a reader thread should be used.
+     */
+    protected boolean usesReaderThread() {
+        return true;
+    }
 
-        resetParser();
+    /**
+     * Starts reading incoming data. The default implementation starts the
+     * reader thread.
+     */
+    protected void startReading() {
+        readerThread.start();
     }
 
     /**
@@ -102,13 +160,93 @@ abstract class AbstractPacketReader {
      */
     public PacketCollector createPacketCollector(PacketFilter packetFilter) {
         PacketCollector collector = new PacketCollector(this, packetFilter);
-        collectors.add(collector);
-        // Add the collector to the list of active collector.
+        String packetID = getRoutingPacketID(packetFilter);
+        if (packetID != null) {
+            collector.routedPacketID = packetID;
+            synchronized (idCollectors) {
+                Collection<PacketCollector> routed = idCollectors.get(packetID);
+                if (routed == null) {
+                    routed = new CopyOnWriteArrayList<PacketCollector>();
+                    idCollectors.put(packetID, routed);
+                }
+                routed.add(collector);
+            }
+        }
+        else {
+            // Add the collector to the list of active collector.
+            collectors.add(collector);
+        }
         return collector;
     }
 
     protected void cancelPacketCollector(PacketCollector packetCollector) {
-        collectors.remove(packetCollector);
+        String packetID = packetCollector.routedPacketID;
+        if (packetID != null) {
+            synchronized (idCollectors) {
+                Collection<PacketCollector> routed = idCollectors.get(packetID);
+                if (routed != null) {
+                    routed.remove(packetCollector);
+                    if (routed.isEmpty()) {
+                        idCollectors.remove(packetID);
+                    }
+                }
+            }
+        }
+        else {
+            collectors.remove(packetCollector);
+        }
+    }
+
+    /**
+     * Returns the only packet ID of the packets a filter accepts, or null if
+     * the filter may accept packets with other IDs.
+     */
+    private static String getRoutingPacketID(PacketFilter packetFilter) {
+        Collection<FilterKey> keys = FilterKey.getKeys(packetFilter);
+        if (keys == null || keys.size() != 1) {
+            return null;
+        }
+        FilterKey key = keys.iterator().next();
+        return key.getKind() == FilterKey.Kind.ID ? key.getValue() : null;
+    }
+
+    /**
+     * Creates a future which is completed with the reply to an IQ request.
+     * Replies are looked up by packet ID, so unlike a packet collector the cost
+     * of routing a reply doesn't grow with the number of outstanding requests.
+     * A reply completing a future is not offered to packet collectors. The
+     * future fails if the connection is closed before a reply is received, and
+     * should be cancelled if the caller stops waiting for the reply.
+     *
+     * @param packetID the packet ID of the IQ request.
+     * @return a future completed with the result or error IQ.
+     */
+    public SettableFuture<IQ> createReplyFuture(final String packetID) {
+        final SettableFuture<IQ> future = new SettableFuture<IQ>();
+        replyFutures.put(packetID, future);
+        future.addListener(new Runnable() {
+            public void run() {
+                replyFutures.remove(packetID, future);
+            }
+        });
+        if (done) {
+            future.setException(new XMPPException("Connection closed."));
+        }
+        return future;
+    }
+
+    /**
+     * Makes this reader complete the futures of a map shared with other
+     * readers, so that a reply is routed to its future no matter which of
+     * the readers receives it. Must be called before any reply futures are
+     * created on this reader. Futures in a shared map are not failed when
+     * this reader shuts down.
+     *
+     * @param replyFutures the shared futures, by packet ID.
+     */
+    void shareReplyFutures(ConcurrentMap<String, SettableFuture<IQ>> replyFutures) {
+        this.replyFutures = replyFutures;
+        sharedReplyFutures = true;
     }
 
     /**
@@ -119,8 +257,25 @@ abstract class AbstractPacketReader {
      * @param packetFilter the packet filter to use.
      */
     public void addPacketListener(PacketListener packetListener, PacketFilter packetFilter) {
-        ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter);
+        addPacketListener(packetListener, packetFilter, false);
+    }
+
+    /**
+     * Registers a packet listener with this reader. A packet filter determines
+     * which packets will be delivered to the listener. An isolated listener is
+     * notified of packets apart from the other listeners, so that it doesn't
+     * delay them if it's slow, given that the packet dispatcher executes tasks
+     * in parallel.
+     *
+     * @param packetListener the packet listener to notify of new packets.
+     * @param packetFilter the packet filter to use.
+     * @param isolated true if the listener should be notified apart from the others.
+     */
+    public void addPacketListener(PacketListener packetListener, PacketFilter packetFilter,
+            boolean isolated) {
+        ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter, isolated);
         listeners.put(packetListener, wrapper);
+        compileDispatchIndex();
     }
 
     /**
@@ -129,7 +284,46 @@ abstract class AbstractPacketReader {
      * @param packetListener the packet listener to remove.
      */
     public void removePacketListener(PacketListener packetListener) {
-        listeners.remove(packetListener);
+        if (listeners.remove(packetListener) != null) {
+            compileDispatchIndex();
+        }
+    }
+
+    /**
+     * Compiles the dispatch index from the current listeners. Listeners whose
+     * filters describe the packets they accept with keys are only considered
+     * for packets having one of the keys.
+     *
+     * @see org.jivesoftware.smack.filter.KeyedPacketFilter
+     */
+    private void compileDispatchIndex() {
+        synchronized (dispatchIndexLock) {
+            Map<ListenerWrapper, PacketFilter> filters =
+                    new HashMap<ListenerWrapper, PacketFilter>();
+            for (ListenerWrapper wrapper : listeners.values()) {
+                filters.put(wrapper, wrapper.packetFilter);
+            }
+            dispatchIndex = new PacketDispatchIndex<ListenerWrapper>(filters);
+        }
+    }
+
+    /**
+     * Returns the number of packets delivered to the packet listeners.
+     *
+     * @return the number of dispatched packets.
+     */
+    long getDispatchedPacketCount() {
+        return dispatchedPackets.get();
+    }
+
+    /**
+     * Returns the number of times a listener's packet filter was evaluated
+     * for a packet.
+     *
+     * @return the number of filter evaluations.
+     */
+    long getFilterEvaluationCount() {
+        return filterEvaluations.get();
     }
 
     /**
@@ -143,7 +337,7 @@ abstract class AbstractPacketReader {
     public void startup() throws XMPPException {
         connectionSemaphore = new Semaphore(1);
 
-        readerThread.start();
+        startReading();
         // Wait for stream tag before returing. We'll wait a couple of seconds before
         // giving up and throwing an error.
         try {
@@ -167,6 +361,16 @@ abstract class AbstractPacketReader {
         }
     }
 
+    /**
+     * Starts reading incoming data without waiting for an opening stream. Used
+     * when the remote peer is the one expected to open the stream, and the
+     * caller must not block until it does.
+     */
+    public void startListening() {
+        connectionSemaphore = new Semaphore(1);
+        startReading();
+    }
+
     /**
      * Shuts the packet reader down.
      */
@@ -185,9 +389,26 @@ abstract class AbstractPacketReader {
             }
         }
         done = true;
+        failReplyFutures();
 
-        // Shut down the listener executor.
-        listenerExecutor.shutdown();
+        // Shut down the listener executor. A dispatcher set on the connection
+        // may be shared and is left running.
+        if (listenerExecutor != null) {
+            listenerExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Fails the futures waiting for replies, since none will be received
+     * once the connection is closed.
+     */
+    private void failReplyFutures() {
+        if (sharedReplyFutures) {
+            return;
+        }
+        for (SettableFuture<IQ> future : replyFutures.values()) {
+            future.setException(new XMPPException("Connection closed."));
+        }
     }
 
     /**
@@ -196,7 +417,12 @@ abstract class AbstractPacketReader {
     void cleanup() {
         connectionListeners.clear();
         listeners.clear();
+        compileDispatchIndex();
         collectors.clear();
+        idCollectors.clear();
+        if (!sharedReplyFutures) {
+            replyFutures.clear();
+        }
     }
 
     /**
@@ -215,6 +441,7 @@ abstract class AbstractPacketReader {
      */
     void notifyConnectionError(Exception e) {
         done = true;
+        failReplyFutures();
         // Closes the connection temporary. A reconnection is possible
         connection.shutdown();
         // Print the stack trace to help catch the problem
@@ -281,7 +508,9 @@ abstract class AbstractPacketReader {
     /**
      * Processes a packet after it's been fully parsed by looping through the installed
      * packet collectors and listeners and letting them examine the packet to see if
-     * they are a match with the filter.
+     * they are a match with the filter. IQ replies someone is waiting for are
+     * handed directly to the waiting future instead of the collectors, and
+     * collectors waiting for a packet ID are looked up by the ID of the packet.
      *
      * @param packet the packet to process.
      */
@@ -290,13 +519,74 @@ abstract class AbstractPacketReader {
             return;
         }
 
-        // Loop through all collectors and notify the appropriate ones.
-        for (PacketCollector collector: collectors) {
-            collector.processPacket(packet);
+        if (!completeReplyFuture(packet)) {
+            // Loop through all collectors and notify the appropriate ones.
+            for (PacketCollector collector: collectors) {
+                collector.processPacket(packet);
+            }
+            String packetID = packet.getPacketID();
+            Collection<PacketCollector> routed =
+                    packetID == null ? null : idCollectors.get(packetID);
+            if (routed != null) {
+                for (PacketCollector collector : routed) {
+                    collector.processPacket(packet);
+                }
+            }
         }
 
         // Deliver the incoming packet to listeners.
-        listenerExecutor.submit(new ListenerNotification(packet));
+        dispatchPacket(packet);
+    }
+
+    /**
+     * Hands the notifications of the listeners which may accept a packet to
+     * the packet dispatcher. The listeners are notified in the order packets
+     * are received from each sender on this connection, while isolated
+     * listeners are notified in order on their own.
+     *
+     * @param packet the packet to dispatch.
+     */
+    private void dispatchPacket(Packet packet) {
+        List<ListenerWrapper> shared = null;
+        for (ListenerWrapper listenerWrapper : dispatchIndex.getCandidates(packet)) {
+            if (listenerWrapper.isolated) {
+                dispatcher.execute(listenerWrapper, new ListenerNotification(packet,
+                        Collections.singletonList(listenerWrapper)));
+            }
+            else {
+                if (shared == null) {
+                    shared = new ArrayList<ListenerWrapper>();
+                }
+                shared.add(listenerWrapper);
+            }
+        }
+        dispatchedPackets.incrementAndGet();
+
+        if (shared != null) {
+            String from = packet.getFrom();
+            String sender = from == null ? null : StringUtils.parseBareAddress(from).toLowerCase();
+            dispatcher.execute(new SenderKey(connection, sender),
+                    new ListenerNotification(packet, shared));
+        }
+    }
+
+    /**
+     * Completes the future waiting for the given packet, if it's an IQ reply.
+     *
+     * @param packet the received packet.
+     * @return true if a future was waiting for the packet.
+     */
+    private boolean completeReplyFuture(Packet packet) {
+        if (replyFutures.isEmpty() || !(packet instanceof IQ)) {
+            return false;
+        }
+        IQ.Type type = ((IQ) packet).getType();
+        if (type != IQ.Type.RESULT && type != IQ.Type.ERROR) {
+            return false;
+        }
+        String packetID = packet.getPacketID();
+        SettableFuture<IQ> future = packetID == null ? null : replyFutures.remove(packetID);
+        return future != null && future.set((IQ) packet);
     }
 
     protected StreamError parseStreamError(XmlPullParser parser) throws IOException,
@@ -319,20 +609,61 @@ abstract class AbstractPacketReader {
     }
 
     /**
-     * A runnable to notify all listeners of a packet.
+     * A runnable to notify listeners of a packet. Only the listeners found in
+     * the dispatch index for the packet have their filters evaluated.
      */
     private class ListenerNotification implements Runnable {
 
         private Packet packet;
+        private Collection<ListenerWrapper> listenerWrappers;
 
-        public ListenerNotification(Packet packet) {
+        public ListenerNotification(Packet packet, Collection<ListenerWrapper> listenerWrappers) {
             this.packet = packet;
+            this.listenerWrappers = listenerWrappers;
         }
 
         public void run() {
-            for (ListenerWrapper listenerWrapper : listeners.values()) {
-                listenerWrapper.notifyListener(packet);
+            int evaluations = 0;
+            try {
+                for (ListenerWrapper listenerWrapper : listenerWrappers) {
+                    if (listenerWrapper.packetFilter != null) {
+                        evaluations++;
+                    }
+                    listenerWrapper.notifyListener(packet);
+                }
+            }
+            finally {
+                filterEvaluations.addAndGet(evaluations);
+            }
+        }
+    }
+
+    /**
+     * The key packets are ordered by, a sender on a connection. Packets
+     * without sender, such as those from the server, are ordered per
+     * connection.
+     */
+    private static class SenderKey {
+        private final AbstractConnection connection;
+        private final String sender;
+
+        SenderKey(AbstractConnection connection, String sender) {
+            this.connection = connection;
+            this.sender = sender;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof SenderKey)) {
+                return false;
             }
+            SenderKey key = (SenderKey) o;
+            return connection == key.connection &&
+                (sender == null ? key.sender == null : sender.equals(key.sender));
+        }
+
+        public int hashCode() {
+            return 31 * System.identityHashCode(connection) +
+                (sender == null ? 0 : sender.hashCode());
         }
     }
 
@@ -343,10 +674,13 @@ abstract class AbstractPacketReader {
 
         private PacketListener packetListener;
         private PacketFilter packetFilter;
+        private boolean isolated;
 
-        public ListenerWrapper(PacketListener packetListener, PacketFilter packetFilter) {
+        public ListenerWrapper(PacketListener packetListener, PacketFilter packetFilter,
+                boolean isolated) {
             this.packetListener = packetListener;
             this.packetFilter = packetFilter;
+            this.isolated = isolated;
         }
        
         public void notifyListener(Packet packet) {
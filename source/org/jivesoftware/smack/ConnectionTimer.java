@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.util.HashedWheelTimer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process-wide timer owning the idle timeouts of link-local connections,
+ * the keep-alives of all connections and the stream-open deadlines of incoming
+ * non-blocking link-local connections. Server connections and connections
+ * being initiated still wait for the stream to be opened in the thread
+ * establishing them. Using one timer thread instead of one or two threads per
+ * connection keeps the number of threads independent of the number of
+ * connections.<p>
+ *
+ * Expired tasks are run by a small fixed pool of workers, so tasks must not
+ * block; tasks blocking for long delay all other timeouts.
+ *
+ * @author Jonas Ådahl
+ */
+final class ConnectionTimer {
+
+    // Granularity of connection timeouts.
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+    private static final int WORKERS = 4;
+
+    private static final ExecutorService workers =
+        Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Smack Connection Timer Worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private static final HashedWheelTimer timer = new HashedWheelTimer(
+            "Smack Connection Timer", TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE, workers);
+
+    private ConnectionTimer() {
+    }
+
+    /**
+     * Schedule a task to be run once after the given delay.
+     *
+     * @param task the task to run.
+     * @param delay the delay.
+     * @param unit the unit of the delay.
+     * @return a handle which may be used to cancel the task.
+     */
+    static HashedWheelTimer.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return timer.schedule(task, delay, unit);
+    }
+}
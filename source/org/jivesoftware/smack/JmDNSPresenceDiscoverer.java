@@ -16,115 +16,306 @@
 
 package org.jivesoftware.smack;
 
-import org.jivesoftware.smack.util.Tuple;
-
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
 import javax.jmdns.ServiceListener;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import org.jivesoftware.smack.util.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
- * An implementation of LLPresenceDiscoverer using JmDNS.
+ * An implementation of LLPresenceDiscoverer using JmDNS.<p>
+ *
+ * Announced presences are resolved by a bounded pool of threads, see
+ * {@link SmackConfiguration#getLinkLocalResolverThreads()}, and a presence
+ * is only queried once at a time no matter how often it is announced or
+ * looked up. The number of outstanding queries is limited by
+ * {@link SmackConfiguration#getLinkLocalMaxQueries()}. If presences are
+ * resolved on demand, announced presences are not queried until they are
+ * looked up or a presence listener is added.<p>
+ *
+ * Each interface is discovered using its own JmDNS instance, and the
+ * presences discovered on them are merged.
  *
  * @author Jonas Ådahl
  */
 class JmDNSPresenceDiscoverer extends LLPresenceDiscoverer {
     protected static final int SERVICE_REQUEST_TIMEOUT = 10000; 
-    protected static JmDNS jmdns;
 
-    JmDNSPresenceDiscoverer() throws XMPPException {
-        jmdns = JmDNSService.jmdns;
-        if (jmdns == null)
+    // Discovery state of each interface, in order of preference.
+    private final List<Binding> bindings = new ArrayList<Binding>();
+    private final Collection<LLInterface> interfaces;
+
+    private final ExecutorService resolver;
+    private final Semaphore queries;
+    private final boolean onDemand;
+
+    /**
+     * Create a discoverer using the given JmDNS instances.
+     *
+     * @param responders the JmDNS instance of each interface, in order of
+     *      preference.
+     */
+    JmDNSPresenceDiscoverer(Map<LLInterface,JmDNS> responders) throws XMPPException {
+        if (responders.isEmpty())
             throw new XMPPException("Failed to fully initiate mDNS daemon.");
 
-        jmdns.addServiceListener(JmDNSService.SERVICE_TYPE, new PresenceServiceListener());
+        List<LLInterface> ifaces = new ArrayList<LLInterface>();
+        for (Map.Entry<LLInterface,JmDNS> e : responders.entrySet()) {
+            bindings.add(new Binding(e.getKey(), e.getValue()));
+            ifaces.add(e.getKey());
+        }
+        interfaces = Collections.unmodifiableList(ifaces);
+
+        resolver = Executors.newFixedThreadPool(SmackConfiguration.getLinkLocalResolverThreads(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Smack Link-local Resolver");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        queries = new Semaphore(SmackConfiguration.getLinkLocalMaxQueries(), true);
+        onDemand = SmackConfiguration.isLinkLocalResolveOnDemand();
+
+        for (Binding binding : bindings) {
+            binding.jmdns.addServiceListener(JmDNSService.SERVICE_TYPE,
+                    new PresenceServiceListener(binding));
+        }
+    }
+
+    public Collection<LLInterface> getInterfaces() {
+        return interfaces;
     }
 
     /**
-     * Convert raw TXT fields to a list of strings.
-     * The raw TXT fields are encoded as follows:
-     * <ul>
-     *  <li>Byte 0 specifies the length of the first field (which starts at byte 1).</li>
-     *  <li>If the last byte of the previous field is the last byte of the array,
-     *  all TXT fields has been read.</li>
-     *  <li>If there are more bytes following, the next byte after the last of the
-     *  previous field specifies the length of the next field.</li>
-     * </ul>
+     * Add a presence listener. Presences waiting to be resolved on demand are
+     * resolved so that the listener can be notified about them.
      *
-     * @param bytes raw TXT fields as an array of bytes.
-     * @return TXT fields as a list of strings.
+     * @param listener the listener to be notified.
      */
-    private static List<String> TXTToList(byte[] bytes) {
-        List<String> list = new LinkedList<String>();
-            int size_i = 0;
-            while (size_i < bytes.length) {
-                int s = (int)(bytes[size_i]);
-                try {
-                    list.add(new String(bytes, ++size_i, s, "UTF-8"));
-                } catch (UnsupportedEncodingException uee) {
-                    // ignore
-                }
-                size_i += s;
+    public void addPresenceListener(LLPresenceListener listener) {
+        super.addPresenceListener(listener);
+        for (Binding binding : bindings) {
+            for (String name : binding.unresolved.keySet()) {
+                resolve(binding, name);
             }
-        return list;
+        }
+    }
+
+    protected boolean resolvePresence(String name) {
+        for (Binding binding : bindings) {
+            if (binding.unresolved.containsKey(name) || binding.resolving.containsKey(name)) {
+                resolvePresence(binding, name);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected SettableFuture<Void> resolvePresenceAsync(String name) {
+        for (Binding binding : bindings) {
+            if (binding.unresolved.containsKey(name) || binding.resolving.containsKey(name)) {
+                return resolve(binding, name);
+            }
+        }
+        return null;
+    }
+
+    private void resolvePresence(Binding binding, String name) {
+        // Query using the looking up thread rather than waiting for the
+        // resolver threads, unless the presence is already being resolved.
+        SettableFuture<Void> future = new SettableFuture<Void>();
+        SettableFuture<Void> existing = binding.resolving.putIfAbsent(name, future);
+        if (existing == null) {
+            binding.unresolved.remove(name);
+            new ResolveTask(binding, name, future).run();
+            return;
+        }
+        try {
+            existing.get(SERVICE_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ee) {
+            // Shut down
+        }
+        catch (TimeoutException te) {
+            // No answer from the remote host
+        }
+    }
+
+    /**
+     * Stop resolving presences.
+     */
+    void close() {
+        resolver.shutdownNow();
+        for (Binding binding : bindings) {
+            binding.unresolved.clear();
+            binding.texts.clear();
+        }
     }
 
     /**
-     * Convert a TXT field list bundled with a '_presence._tcp' service to a
-     * String,String tuple. The TXT field list looks as following:
-     * "key=value" which is converted into the tuple (key, value).
+     * Schedule the resolution of a presence on an interface, unless it is
+     * already being resolved there.
      *
-     * @param strings the TXT fields.
-     * @return a list of key,value tuples.
+     * @param binding the interface to resolve the presence on.
+     * @param name service name of the presence.
+     * @return a future completed when the presence has been resolved or the
+     *      query timed out.
+     */
+    private SettableFuture<Void> resolve(Binding binding, String name) {
+        SettableFuture<Void> future = new SettableFuture<Void>();
+        SettableFuture<Void> existing = binding.resolving.putIfAbsent(name, future);
+        if (existing != null) {
+            return existing;
+        }
+        binding.unresolved.remove(name);
+        try {
+            resolver.execute(new ResolveTask(binding, name, future));
+        }
+        catch (RejectedExecutionException ree) {
+            binding.resolving.remove(name, future);
+            future.setException(ree);
+        }
+        return future;
+    }
+
+    /**
+     * Discovery state of one interface.
      */
-    private static List<Tuple<String,String>> TXTListToXMPPRecords(List<String> strings) {
-        // records :: [(String, String)]
-        List<Tuple<String,String>> records = new LinkedList<Tuple<String,String>>();
-        for (String s : strings) {
-            String[] record = s.split("=", 2);
-            // check if valid
-            if (record.length == 2)
-                records.add(new Tuple<String, String>(record[0], record[1]));
-        }
-        return records;
+    private static class Binding {
+        final LLInterface iface;
+        final JmDNS jmdns;
+
+        // Announced presences waiting to be resolved on demand.
+        final ConcurrentMap<String,Boolean> unresolved =
+            new ConcurrentHashMap<String,Boolean>();
+
+        // Resolutions in progress, by service name.
+        final ConcurrentMap<String,SettableFuture<Void>> resolving =
+            new ConcurrentHashMap<String,SettableFuture<Void>>();
+
+        // Raw TXT records of the resolved presences, by service name.
+        final ConcurrentMap<String,byte[]> texts =
+            new ConcurrentHashMap<String,byte[]>();
+
+        Binding(LLInterface iface, JmDNS jmdns) {
+            this.iface = iface;
+            this.jmdns = jmdns;
+        }
     }
 
     /**
      * Implementation of a JmDNS ServiceListener. Listens to service resolved and
-     * service information resolved events.
+     * service information resolved events on one interface.
      */
     private class PresenceServiceListener implements ServiceListener {
+        private final Binding binding;
+
+        PresenceServiceListener(Binding binding) {
+            this.binding = binding;
+        }
+
         public void serviceAdded(ServiceEvent event) {
-            // XXX
-            // To reduce network usage, we should only request information
-            // when needed.
-            new RequestInfoThread(event).start();
+            // To reduce network usage, only request information when needed
+            // if resolving on demand.
+            if (onDemand && listeners.isEmpty()) {
+                binding.unresolved.put(event.getName(), Boolean.TRUE);
+            }
+            else {
+                resolve(binding, event.getName());
+            }
         }
         public void serviceRemoved(ServiceEvent event) {
-            presenceRemoved(event.getName());
+            binding.unresolved.remove(event.getName());
+            binding.texts.remove(event.getName());
+            presenceRemoved(binding.iface, event.getName());
         }
         public void serviceResolved(ServiceEvent event) {
-            presenceInfoAdded(event.getName(),
-                    new LLPresence(event.getName(),
-                        event.getInfo().getHostAddress(), event.getInfo().getPort(),
-                        TXTListToXMPPRecords(TXTToList(event.getInfo().getTextBytes()))));
+            String name = event.getName();
+            ServiceInfo info = event.getInfo();
+            byte[] text = info.getTextBytes();
+            binding.unresolved.remove(name);
+
+            // Skip parsing records identical to the ones already known
+            LLPresence known = binding.iface.getRegistry().get(name);
+            if (known == null || text == null || !Arrays.equals(text, binding.texts.get(name)) ||
+                    known.getPort() != info.getPort() ||
+                    !info.getHostAddress().equals(known.getHost())) {
+                if (text != null) {
+                    binding.texts.put(name, text);
+                }
+                presenceInfoAdded(binding.iface, name,
+                        LLPresenceCodec.decode(name, info.getHostAddress(),
+                            info.getPort(), text));
+            }
+            else {
+                binding.iface.resolved();
+            }
+            // Wake up threads waiting for the presence. The resolution stays
+            // registered until the query returns, so it isn't queried again.
+            SettableFuture<Void> future = binding.resolving.get(event.getName());
+            if (future != null) {
+                future.set(null);
+            }
         }
+    }
 
-        private class RequestInfoThread extends Thread {
-            ServiceEvent event;
+    /**
+     * Task querying the information of a presence on an interface, waiting
+     * for the number of outstanding queries to go below the limit first.
+     */
+    private class ResolveTask implements Runnable {
+        private final Binding binding;
+        private final String name;
+        private final SettableFuture<Void> future;
 
-            RequestInfoThread(ServiceEvent event) {
-                this.event = event;
-            }
+        ResolveTask(Binding binding, String name, SettableFuture<Void> future) {
+            this.binding = binding;
+            this.name = name;
+            this.future = future;
+        }
 
-            public void run() {
-                jmdns.requestServiceInfo(event.getType(), event.getName(),
-                        true, SERVICE_REQUEST_TIMEOUT);
+        public void run() {
+            try {
+                queries.acquire();
+                try {
+                    binding.iface.queried();
+                    binding.jmdns.requestServiceInfo(JmDNSService.SERVICE_TYPE, name,
+                            true, SERVICE_REQUEST_TIMEOUT);
+                }
+                finally {
+                    queries.release();
+                }
+            }
+            catch (InterruptedException ie) {
+                // Shut down, or the looking up thread was interrupted
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                binding.resolving.remove(name, future);
+                future.set(null);
             }
         }
     }
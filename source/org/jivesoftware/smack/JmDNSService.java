@@ -16,8 +16,6 @@
 
 package org.jivesoftware.smack;
 
-import org.jivesoftware.smack.util.Tuple;
-
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceInfo;
 import javax.jmdns.ServiceNameListener;
@@ -25,24 +23,42 @@ import javax.jmdns.impl.JmDNSImpl;
 import javax.jmdns.impl.DNSCache;
 import javax.jmdns.impl.DNSEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.net.InetAddress;
 import java.io.IOException;
-import java.util.Hashtable;
 
 /**
- * Implements a LLService using JmDNS.
+ * Implements a LLService using JmDNS.<p>
+ *
+ * Every service runs its own JmDNS instance for each interface it is bound
+ * to, so several services with different identities may run in the same
+ * process, and a service may announce and discover presences on several
+ * network segments at once.
  *
  * @author Jonas Ådahl
  */
 public class JmDNSService extends LLService implements ServiceNameListener {
-    static JmDNS jmdns = null;
-    static JmDNSPresenceDiscoverer presenceDiscoverer = null;
-    private ServiceInfo serviceInfo;
+    private final JmDNSPresenceDiscoverer presenceDiscoverer;
+    // Responder of each interface, in order of preference
+    private final List<Binding> bindings = new ArrayList<Binding>();
+    // Name the service is registered under on every interface, if registered
+    private String registeredName = null;
     static final String SERVICE_TYPE = "_presence._tcp.local.";
 
-    private JmDNSService(LLPresence presence, LLPresenceDiscoverer presenceDiscoverer) {
+    private JmDNSService(LLPresence presence, JmDNSPresenceDiscoverer presenceDiscoverer,
+            Map<LLInterface,JmDNS> responders) {
         super(presence, presenceDiscoverer);
+        this.presenceDiscoverer = presenceDiscoverer;
+        for (Map.Entry<LLInterface,JmDNS> e : responders.entrySet()) {
+            bindings.add(new Binding(e.getKey(), e.getValue()));
+        }
     }
 
     /**
@@ -51,7 +67,7 @@ public class JmDNSService extends LLService implements ServiceNameListener {
      * @param presence the mDNS presence information that should be used.
      */
     public static LLService create(LLPresence presence) throws XMPPException {
-        return create(presence, null);
+        return create(presence, (InetAddress) null);
     }
 
     /**
@@ -61,79 +77,163 @@ public class JmDNSService extends LLService implements ServiceNameListener {
      * @param addr the INET Address to use.
      */
     public static LLService create(LLPresence presence, InetAddress addr) throws XMPPException {
-        // Start the JmDNS daemon.
-        initJmDNS(addr);
+        return create(presence, Collections.singletonList(addr));
+    }
 
-        // Start the presence discoverer
-        JmDNSPresenceDiscoverer presenceDiscoverer = new JmDNSPresenceDiscoverer();
+    /**
+     * Instantiate a new JmDNSService bound to several interfaces and start
+     * to listen for connections. The presence is announced on every
+     * interface, and the presences discovered on them are merged. When a
+     * presence is discovered on several interfaces, the information from
+     * the first of them in the given order is used.
+     *
+     * @param presence the mDNS presence information that should be used.
+     * @param addrs the INET Addresses of the interfaces to use, where null
+     *      means the default interface.
+     */
+    public static LLService create(LLPresence presence, Collection<InetAddress> addrs)
+            throws XMPPException {
+        // Start a JmDNS daemon for each interface.
+        Map<LLInterface,JmDNS> responders = initJmDNS(addrs);
 
-        // Start the presence service
-        JmDNSService service = new JmDNSService(presence, presenceDiscoverer);
+        try {
+            // Start the presence discoverer
+            JmDNSPresenceDiscoverer presenceDiscoverer =
+                new JmDNSPresenceDiscoverer(responders);
 
-        return service;
+            // Start the presence service
+            return new JmDNSService(presence, presenceDiscoverer, responders);
+        }
+        catch (XMPPException xe) {
+            for (JmDNS jmdns : responders.values()) {
+                jmdns.close();
+            }
+            throw xe;
+        }
     }
 
     @Override
     public void close() {
         super.close();
-        jmdns.close();
+        presenceDiscoverer.close();
+        for (Binding binding : bindings) {
+            binding.jmdns.close();
+        }
     }
 
     /**
-     * Start the JmDNS daemon.
+     * Start a JmDNS daemon for each interface.
      */
-    private static void initJmDNS(InetAddress addr) throws XMPPException {
+    private static Map<LLInterface,JmDNS> initJmDNS(Collection<InetAddress> addrs)
+            throws XMPPException {
+        Map<LLInterface,JmDNS> responders = new LinkedHashMap<LLInterface,JmDNS>();
         try {
-            if (jmdns == null) {
+            for (InetAddress addr : addrs) {
+                JmDNS jmdns;
                 if (addr == null) {
                     jmdns = JmDNS.create();
                 }
                 else {
                     jmdns = JmDNS.create(addr);
                 }
+                responders.put(new LLInterface(jmdns.getInterface()), jmdns);
             }
         }
         catch (IOException ioe) {
+            for (JmDNS jmdns : responders.values()) {
+                jmdns.close();
+            }
             throw new XMPPException(ioe);
         }
+        return responders;
     }
 
-    protected void updateText() {
-        Hashtable<String,String> ht = new Hashtable<String,String>();
-        
-        for (Tuple<String,String> t : presence.toList()) {
-            if (t.a != null && t.b != null) {
-                ht.put(t.a, t.b);
+    protected synchronized boolean updateText() {
+        byte[] text = presence.getTextBytes();
+        boolean changed = false;
+        for (Binding binding : bindings) {
+            if (!Arrays.equals(binding.serviceInfo.getTextBytes(), text)) {
+                binding.serviceInfo.setText(text);
+                changed = true;
             }
         }
-
-        serviceInfo.setText(ht);
+        return changed;
     }
 
     /**
-     * Register the DNS-SD service with the daemon.
+     * Register the DNS-SD service with the daemons. The service is
+     * registered under the same name on every interface; if the name
+     * collides on one of them, the service is renamed on all of them.
      */
     protected void registerService() throws XMPPException {
-        Hashtable<String,String> ht = new Hashtable<String,String>();
-        
-        for (Tuple<String,String> t : presence.toList()) {
-            if (t.a != null && t.b != null)
-                ht.put(t.a, t.b);
-        }
-        serviceInfo = ServiceInfo.create(SERVICE_TYPE,
-                presence.getServiceName(), presence.getPort(), 0, 0, ht);
+        String name = presence.getServiceName();
+        String newName;
+        synchronized (this) {
+            registeredName = registerOnAllInterfaces(name);
+            newName = registeredName;
+        }
+        presence.setServiceName(newName);
+        if (!newName.equals(name)) {
+            notifyServiceNameChanged(newName, name);
+        }
+    }
+
+    /**
+     * Register the service under the given name on every interface it isn't
+     * registered on with that name. When the name collides on an interface,
+     * the service is registered anew under the resulting name on the
+     * interfaces it was registered on so far, until all of them agree.
+     *
+     * @param name the name to register the service under.
+     * @return the name the service is registered under on every interface.
+     */
+    private String registerOnAllInterfaces(String name) throws XMPPException {
+        boolean agreed;
+        do {
+            agreed = true;
+            for (Binding binding : bindings) {
+                if (binding.serviceInfo != null &&
+                        binding.serviceInfo.getName().equals(name)) {
+                    continue;
+                }
+                String registered = registerService(binding, name);
+                if (!registered.equals(name)) {
+                    name = registered;
+                    agreed = false;
+                }
+            }
+        } while (!agreed);
+        return name;
+    }
+
+    /**
+     * Register the service under the given name with the daemon of one
+     * interface, replacing the service registered there before.
+     *
+     * @return the name the service got registered under.
+     */
+    private String registerService(Binding binding, String name) throws XMPPException {
+        if (binding.serviceInfo != null) {
+            binding.serviceInfo.removeServiceNameListener(this);
+            binding.iface.announced();
+            binding.jmdns.unregisterService(binding.serviceInfo);
+            binding.serviceInfo = null;
+        }
+
+        ServiceInfo serviceInfo = ServiceInfo.create(SERVICE_TYPE,
+                name, presence.getPort(), 0, 0, presence.getTextBytes());
         serviceInfo.addServiceNameListener(this);
 
         try {
             String originalName = serviceInfo.getQualifiedName();
-            jmdns.registerService(serviceInfo);
-            presence.setServiceName(serviceInfo.getName());
+            binding.iface.announced();
+            binding.jmdns.registerService(serviceInfo);
+            binding.serviceInfo = serviceInfo;
 
             if (!originalName.equals(serviceInfo.getQualifiedName())) {
-                // Update presence service name
                 // Name collision occured, lets remove confusing elements
                 // from cache in case something goes wrong
-                JmDNSImpl jmdnsimpl = (JmDNSImpl) jmdns;
+                JmDNSImpl jmdnsimpl = (JmDNSImpl) binding.jmdns;
                 DNSCache.CacheNode n = jmdnsimpl.getCache().find(originalName);
 
                 LinkedList<DNSEntry> toRemove = new LinkedList<DNSEntry>();
@@ -150,6 +250,7 @@ public class JmDNSService extends LLService implements ServiceNameListener {
                     jmdnsimpl.getCache().remove(e);
                 }
             }
+            return serviceInfo.getName();
         }
         catch (IOException ioe) {
             throw new XMPPException(ioe);
@@ -157,18 +258,74 @@ public class JmDNSService extends LLService implements ServiceNameListener {
     }
 
     /**
-     * Reregister the DNS-SD service with the daemon.
+     * Reregister the DNS-SD service with the daemons.
      */
-    protected void reannounceService() throws XMPPException {
+    protected synchronized void reannounceService() throws XMPPException {
         try {
-            jmdns.reannounceService(serviceInfo);
+            for (Binding binding : bindings) {
+                binding.iface.announced();
+                binding.jmdns.reannounceService(binding.serviceInfo);
+            }
         }
         catch (IOException ioe) {
             throw new XMPPException("Exception occured when reannouncing mDNS presence.", ioe);
         }
     }
 
+    /**
+     * Called by the daemons when the service is renamed on one interface,
+     * either while registering or because of a later name collision. The
+     * service is then renamed on the other interfaces, on a thread of its
+     * own since registering blocks while the daemons probe for the name.
+     */
     public void serviceNameChanged(String newName, String oldName) {
+        Thread renamer = new Thread() {
+            public void run() {
+                renameService();
+            }
+        };
+        renamer.setName("Smack Link-local Service Renamer");
+        renamer.setDaemon(true);
+        renamer.start();
+    }
+
+    /**
+     * Register the service under the name it got on an interface where it
+     * was renamed, on every other interface as well. Does nothing if all
+     * interfaces already agree on the name.
+     */
+    private void renameService() {
+        String oldName;
+        String newName;
+        synchronized (this) {
+            if (registeredName == null) {
+                return;
+            }
+            oldName = registeredName;
+            newName = registeredName;
+            for (Binding binding : bindings) {
+                if (binding.serviceInfo != null &&
+                        !binding.serviceInfo.getName().equals(registeredName)) {
+                    newName = binding.serviceInfo.getName();
+                    break;
+                }
+            }
+            if (newName.equals(oldName)) {
+                return;
+            }
+            try {
+                registeredName = registerOnAllInterfaces(newName);
+                newName = registeredName;
+            }
+            catch (XMPPException xe) {
+                xe.printStackTrace();
+                return;
+            }
+        }
+        notifyServiceNameChanged(newName, oldName);
+    }
+
+    private void notifyServiceNameChanged(String newName, String oldName) {
         try {
             super.serviceNameChanged(newName, oldName);
         }
@@ -180,15 +337,43 @@ public class JmDNSService extends LLService implements ServiceNameListener {
     /**
      * Unregister the DNS-SD service, making the client unavailable.
      */
-    public void makeUnavailable() {
-        jmdns.unregisterService(serviceInfo);
-        serviceInfo = null;
+    public synchronized void makeUnavailable() {
+        for (Binding binding : bindings) {
+            if (binding.serviceInfo == null) {
+                continue;
+            }
+            binding.serviceInfo.removeServiceNameListener(this);
+            binding.iface.announced();
+            binding.jmdns.unregisterService(binding.serviceInfo);
+            binding.serviceInfo = null;
+        }
+        registeredName = null;
     }
 
 
     @Override
     public void spam() {
         super.spam();
-        System.out.println("Service name: " + serviceInfo.getName());
+        System.out.println("Service name: " + presence.getServiceName());
+        for (Binding binding : bindings) {
+            System.out.println("Interface " + binding.iface + ": " +
+                    binding.iface.getRegistry().size() + " presences, " +
+                    binding.iface.getAnnouncementCount() + " announcements, " +
+                    binding.iface.getQueryCount() + " queries");
+        }
+    }
+
+    /**
+     * The responder and registered service of one interface.
+     */
+    private static class Binding {
+        final LLInterface iface;
+        final JmDNS jmdns;
+        ServiceInfo serviceInfo;
+
+        Binding(LLInterface iface, JmDNS jmdns) {
+            this.iface = iface;
+            this.jmdns = jmdns;
+        }
     }
 }
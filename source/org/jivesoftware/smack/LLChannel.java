@@ -0,0 +1,345 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.UTF8Writer;
+
+/**
+ * A non-blocking link-local socket driven by a {@link LLSelector}. Incoming
+ * bytes are decoded and framed into stanzas on the selector thread, while
+ * outgoing data written to the channel writer is queued and drained whenever
+ * the socket is writable. Writing never blocks the calling thread; senders
+ * bounding the amount of queued data wait for room with
+ * {@link #awaitRoom(int, long)} before writing.
+ *
+ * @author Jonas Ådahl
+ */
+class LLChannel implements LLSelector.Handler {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the stream events and errors of a channel.
+     */
+    interface Listener extends XMLStreamFramer.Handler {
+        /**
+         * The channel was closed by the remote peer or failed.
+         *
+         * @param e the cause, or null if the remote peer closed the socket.
+         */
+        void channelClosed(Exception e);
+    }
+
+    private final LLSelector selector;
+    private final SocketChannel channel;
+    private Listener listener;
+    private XMLStreamFramer framer;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final CharBuffer charBuffer = CharBuffer.allocate(8192);
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Outgoing buffers not yet written to the socket. Guarded by itself.
+    private final LinkedList<ByteBuffer> outbound = new LinkedList<ByteBuffer>();
+    // Byte offsets, counted from the first byte ever queued, at which the
+    // flushes not yet completely written end. Guarded by outbound.
+    private final LinkedList<Long> flushEnds = new LinkedList<Long>();
+    private long queuedBytes = 0;
+    private long writtenBytes = 0;
+    private final UTF8Writer writer = new UTF8Writer(new ChannelOutputStream());
+    private boolean closeWhenDrained = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new channel. The socket channel must be connected.
+     *
+     * @param selector the selector loop which will drive the channel.
+     * @param channel the connected socket channel.
+     * @throws IOException if the channel can't be put in non-blocking mode.
+     */
+    LLChannel(LLSelector selector, SocketChannel channel) throws IOException {
+        this.selector = selector;
+        this.channel = channel;
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Returns the writer used for sending data on this channel. Data is
+     * queued when the writer is flushed.
+     *
+     * @return the channel writer.
+     */
+    Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Start reading from the channel, reporting stream events to the
+     * given listener.
+     *
+     * @param listener the listener to report stream events to.
+     */
+    void start(Listener listener) {
+        this.framer = new XMLStreamFramer(listener);
+        int ops = SelectionKey.OP_READ;
+        // Register while holding the outbound lock, so that the interest
+        // added by a concurrent enqueue is queued after the registration
+        // task, or its pending bytes are covered by the initial interest.
+        synchronized (outbound) {
+            this.listener = listener;
+            if (!outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            selector.register(channel, ops, this);
+        }
+    }
+
+    /**
+     * Closes the channel immediately, discarding data not yet written.
+     */
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        }
+        catch (IOException ioe) {
+            // Ignore
+        }
+        // Release the senders waiting for room
+        synchronized (outbound) {
+            outbound.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of flushes of the channel writer whose data hasn't
+     * been completely written to the socket yet. Packets are flushed one at a
+     * time, so this is the number of packets waiting to be sent.
+     *
+     * @return the number of pending flushes.
+     */
+    int getPendingFlushes() {
+        synchronized (outbound) {
+            return flushEnds.size();
+        }
+    }
+
+    /**
+     * Waits until fewer than the given number of flushes are pending, or the
+     * channel is closed. Returns at once when called from the selector thread,
+     * which is the thread writing the pending data.
+     *
+     * @param capacity the number of pending flushes to wait to get below.
+     * @param timeout the maximum number of milliseconds to wait, or 0 to wait
+     *      without a time limit.
+     * @return true if there is room or the channel is closed, false if the
+     *      timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitRoom(int capacity, long timeout) throws InterruptedException {
+        if (selector.inSelectorThread()) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (outbound) {
+            while (flushEnds.size() >= capacity && !closed && !closeWhenDrained) {
+                if (timeout == 0) {
+                    outbound.wait();
+                }
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(outbound, remaining);
+                }
+            }
+        }
+        return true;
+    }
+
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isValid() && key.isWritable()) {
+            drain(key);
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    public void failed(Exception e) {
+        close();
+        if (listener != null) {
+            listener.channelClosed(e);
+        }
+    }
+
+    private void read() throws IOException {
+        int count;
+        while ((count = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(readBuffer, charBuffer, false);
+                charBuffer.flip();
+                try {
+                    framer.feed(charBuffer);
+                }
+                catch (IOException ioe) {
+                    throw ioe;
+                }
+                catch (Exception e) {
+                    IOException ioe = new IOException(e.getMessage());
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+                charBuffer.clear();
+            } while (result.isOverflow());
+            // Keep a trailing partial multi-byte character for the next read
+            readBuffer.compact();
+        }
+        if (count < 0) {
+            // A socket closed after the closing stream tag is a clean close
+            boolean clean = framer.getDepth() == 0;
+            close();
+            listener.channelClosed(clean ? null :
+                    new EOFException("Link-local stream closed by remote peer."));
+        }
+    }
+
+    /**
+     * Write as much of the outbound queue as the socket accepts. Called
+     * from the selector thread when the socket is writable.
+     */
+    private void drain(SelectionKey key) throws IOException {
+        synchronized (outbound) {
+            writeOutbound();
+            if (outbound.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeWhenDrained) {
+                    close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write queued buffers until the socket would block. Must be called
+     * holding the outbound lock.
+     */
+    private void writeOutbound() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer buffer = outbound.getFirst();
+            writtenBytes += channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            outbound.removeFirst();
+        }
+        // Complete the flushes written and wake up the senders waiting for room
+        boolean completed = false;
+        while (!flushEnds.isEmpty() && flushEnds.getFirst() <= writtenBytes) {
+            flushEnds.removeFirst();
+            completed = true;
+        }
+        if (completed) {
+            outbound.notifyAll();
+        }
+    }
+
+    /**
+     * Queue bytes for writing. If nothing is queued the bytes are written
+     * directly and the selector is only involved if the socket would block.
+     */
+    private void enqueue(ByteBuffer buffer) throws IOException {
+        synchronized (outbound) {
+            if (closed || closeWhenDrained) {
+                throw new IOException("Link-local channel is closed.");
+            }
+            boolean wasEmpty = outbound.isEmpty();
+            queuedBytes += buffer.remaining();
+            outbound.addLast(buffer);
+            if (wasEmpty) {
+                writeOutbound();
+                if (!outbound.isEmpty() && listener != null) {
+                    selector.addInterest(channel, SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    /**
+     * An output stream queueing the written bytes on the channel. The channel
+     * writer buffers characters until flushed, so one buffer is normally
+     * queued per flush.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            // Copied, since the writer reuses its buffer
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            buffer.put(bytes, offset, length);
+            buffer.flip();
+            enqueue(buffer);
+        }
+
+        public void flush() {
+            synchronized (outbound) {
+                // Only data not yet written makes up a pending flush
+                if (queuedBytes > writtenBytes
+                        && (flushEnds.isEmpty() || flushEnds.getLast() < queuedBytes)) {
+                    flushEnds.addLast(queuedBytes);
+                }
+            }
+        }
+
+        public void close() {
+            synchronized (outbound) {
+                if (outbound.isEmpty()) {
+                    LLChannel.this.close();
+                }
+                else {
+                    closeWhenDrained = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy and bookkeeping for the established connections of a LLService.
+ * Established connections are kept open while idle so they can be reused by
+ * later packets to the same peer, avoiding a new TCP connect and stream
+ * initiation. The policy controls for how long idle connections are kept,
+ * how many connections are kept at most, and which peers' connections are
+ * never closed due to inactivity.<p>
+ *
+ * When the maximum number of connections is exceeded, the least recently
+ * used connection which isn't pinned is evicted.
+ *
+ * @author Jonas Ådahl
+ */
+public class LLConnectionPool {
+    private volatile int maxIdleTime = SmackConfiguration.getLinkLocalIdleTimeout();
+    private volatile int maxConnections = 0;
+
+    // Service names whose connections are kept regardless of inactivity.
+    private final Set<String> pinned = new CopyOnWriteArraySet<String>();
+
+    // Connections in least recently used order.
+    private final LinkedHashMap<XMPPLLConnection,Boolean> connections =
+        new LinkedHashMap<XMPPLLConnection,Boolean>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    LLConnectionPool() {
+    }
+
+    /**
+     * Returns the number of milliseconds a connection may be idle before it
+     * is closed.
+     *
+     * @return the maximum idle time in milliseconds.
+     */
+    public int getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Sets the number of milliseconds a connection may be idle before it is
+     * closed. Defaults to {@link SmackConfiguration#getLinkLocalIdleTimeout()}.
+     *
+     * @param maxIdleTime the maximum idle time in milliseconds.
+     */
+    public void setMaxIdleTime(int maxIdleTime) {
+        if (maxIdleTime <= 0) {
+            throw new IllegalArgumentException("Idle time must be positive.");
+        }
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Returns the maximum number of connections kept open, or 0 if unlimited.
+     *
+     * @return the maximum number of connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections kept open. When exceeded, the least
+     * recently used connection which is not pinned is closed. The default is 0,
+     * which means unlimited.
+     *
+     * @param maxConnections the maximum number of connections, or 0 for unlimited.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("Maximum connections can't be negative.");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Pin the connections to a peer, so that they are neither closed due to
+     * inactivity nor evicted.
+     *
+     * @param serviceName the service name of the peer.
+     */
+    public void pin(String serviceName) {
+        pinned.add(serviceName);
+    }
+
+    /**
+     * Unpin the connections to a peer.
+     *
+     * @param serviceName the service name of the peer.
+     */
+    public void unpin(String serviceName) {
+        pinned.remove(serviceName);
+    }
+
+    /**
+     * Returns true if the connections to the given peer are pinned.
+     *
+     * @param serviceName the service name of the peer.
+     * @return true if pinned.
+     */
+    public boolean isPinned(String serviceName) {
+        return serviceName != null && pinned.contains(serviceName);
+    }
+
+    /**
+     * Returns the number of connections currently in the pool.
+     *
+     * @return the number of established connections.
+     */
+    public int getSize() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Returns the number of times a packet could be sent using an
+     * already established connection.
+     *
+     * @return the number of pool hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of times a connection had to be established
+     * before a packet could be sent.
+     *
+     * @return the number of pool misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of connections closed because the maximum number
+     * of connections was exceeded.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Add an established connection to the pool.
+     *
+     * @param connection the connection.
+     * @return a connection which should be closed to stay within the maximum
+     * number of connections, or null.
+     */
+    XMPPLLConnection add(XMPPLLConnection connection) {
+        synchronized (connections) {
+            connections.put(connection, Boolean.TRUE);
+            if (maxConnections <= 0 || connections.size() <= maxConnections) {
+                return null;
+            }
+            Iterator<XMPPLLConnection> it = connections.keySet().iterator();
+            while (it.hasNext()) {
+                XMPPLLConnection candidate = it.next();
+                if (candidate != connection && !isPinned(candidate.getServiceName())) {
+                    it.remove();
+                    evictions.incrementAndGet();
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mark a connection as used.
+     *
+     * @param connection the connection.
+     */
+    void touch(XMPPLLConnection connection) {
+        synchronized (connections) {
+            // A get moves the entry last in access order.
+            connections.get(connection);
+        }
+    }
+
+    /**
+     * Remove a closed connection from the pool.
+     *
+     * @param connection the connection.
+     */
+    void remove(XMPPLLConnection connection) {
+        synchronized (connections) {
+            connections.remove(connection);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A network interface a link-local service announces and discovers presences
+ * on. A service bound to several interfaces merges the presences discovered
+ * on all of them, while each interface keeps its own table of the presences
+ * seen on it together with counters of the mDNS traffic it caused.
+ *
+ * @see LLService#getInterfaces()
+ * @author Jonas Ådahl
+ */
+public class LLInterface {
+    private final InetAddress address;
+
+    // Presences discovered on this interface
+    private final LLPresenceRegistry presences = new LLPresenceRegistry();
+
+    private final AtomicLong announcements = new AtomicLong(0);
+    private final AtomicLong queries = new AtomicLong(0);
+    private final AtomicLong resolved = new AtomicLong(0);
+    private final AtomicLong removed = new AtomicLong(0);
+
+    LLInterface(InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Returns the address of the interface.
+     *
+     * @return the address of the interface.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the presences discovered on this interface. A presence
+     * announced on several interfaces has an entry in the registry of each,
+     * and its host address may differ between them.
+     *
+     * @return the registry of presences discovered on this interface.
+     */
+    public LLPresenceRegistry getRegistry() {
+        return presences;
+    }
+
+    /**
+     * Returns the number of times the local presence has been registered,
+     * reannounced or unregistered on this interface.
+     *
+     * @return the number of announcements.
+     */
+    public long getAnnouncementCount() {
+        return announcements.get();
+    }
+
+    /**
+     * Returns the number of queries for presence information sent on this
+     * interface.
+     *
+     * @return the number of queries.
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the number of times presence information has been received on
+     * this interface, including refreshes of known presences.
+     *
+     * @return the number of resolved presences.
+     */
+    public long getResolvedCount() {
+        return resolved.get();
+    }
+
+    /**
+     * Returns the number of presences which have gone offline on this
+     * interface.
+     *
+     * @return the number of removed presences.
+     */
+    public long getRemovedCount() {
+        return removed.get();
+    }
+
+    void announced() {
+        announcements.incrementAndGet();
+    }
+
+    void queried() {
+        queries.incrementAndGet();
+    }
+
+    void resolved() {
+        resolved.incrementAndGet();
+    }
+
+    void removed() {
+        removed.incrementAndGet();
+    }
+
+    public String toString() {
+        return String.valueOf(address);
+    }
+}
@@ -25,11 +25,13 @@ import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.SettableFuture;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -53,6 +55,34 @@ public class LLPacketReader extends AbstractPacketReader {
         this.init();
     }
 
+    /**
+     * Marks the connection as used in the connection pool of the service,
+     * so that connections which only receive packets aren't evicted as
+     * least recently used.
+     *
+     * @param packet the packet to process.
+     */
+    @Override
+    protected void processPacket(Packet packet) {
+        if (packet != null) {
+            service.getConnectionPool().touch(connection);
+        }
+        super.processPacket(packet);
+    }
+
+    protected boolean usesReaderThread() {
+        return !connection.isNonBlocking();
+    }
+
+    protected void startReading() {
+        if (connection.isNonBlocking()) {
+            connection.getChannel().start(new ChannelListener());
+        }
+        else {
+            super.startReading();
+        }
+    }
+
     /**
      * Parse top-level packets in order to process them further.
      *
@@ -64,79 +94,7 @@ public class LLPacketReader extends AbstractPacketReader {
             do {
                 connection.updateLastActivity();
                 if (eventType == XmlPullParser.START_TAG) {
-                    if (parser.getName().equals("message")) {
-                        processPacket(PacketParserUtils.parseMessage(parser));
-                    }
-                    else if (parser.getName().equals("iq")) {
-                        processPacket(parseIQ(parser));
-                    }
-                    else if (parser.getName().equals("presence")) {
-                        processPacket(PacketParserUtils.parsePresence(parser));
-                    }
-                    // We found an opening stream. Record information about it, then notify
-                    // the connectionID lock so that the packet reader startup can finish.
-                    else if (parser.getName().equals("stream")) {
-                        // Ensure the correct jabber:client namespace is being used.
-                        if ("jabber:client".equals(parser.getNamespace(null))) {
-                            // Get the connection id.
-                            for (int i=0; i<parser.getAttributeCount(); i++) {
-                                if (parser.getAttributeName(i).equals("id")) {
-                                    // Save the connectionID
-                                    connectionID = parser.getAttributeValue(i);
-                                    /*
-                                    TODO implement 1.0 features (stream features etc)
-                                    if (!"1.0".equals(parser.getAttributeValue("", "version"))) {
-                                        // Notify that a stream has been opened if the
-                                        // server is not XMPP 1.0 compliant otherwise make the
-                                        // notification after TLS has been negotiated or if TLS
-                                        // is not supported
-                                        releaseConnectionIDLock();
-                                    }*/
-                                }
-                                else if (parser.getAttributeName(i).equals("from")) {
-                                    // Use the server name that the server says that it is.
-                                    connection.setServiceName(parser.getAttributeValue(i));
-                                }
-                            }
-
-
-                            // if we are the initiator, this means stream has been initiated
-                            // if we aren't the initiator, this means we have to respond with
-                            // stream initiator.
-                            if (connection.isInitiator()) {
-                                connectionID = connection.getServiceName();
-                                releaseConnectionIDLock();
-                            }
-                            else {
-                                // Check if service name is a known entity
-                                // if it is, open the stream and keep it open
-                                // otherwise open and immediately close it
-                                if (connection.getServiceName() == null) {
-                                    System.err.println("No service name specified in stream initiation, canceling.");
-                                    shutdown();
-                                } else {
-                                    // Check if service name is known, if so
-                                    // we will continue the session
-
-                                    LLPresence presence = service.getPresenceByServiceName(connection.getServiceName());
-                                    if (presence != null) {
-                                        connection.setRemotePresence(presence);
-                                        connectionID = connection.getServiceName();
-                                        connection.streamInitiatingReceived();
-                                        releaseConnectionIDLock();
-                                    } else {
-                                        System.err.println("Unknown service name '" +
-                                                connection.getServiceName() +
-                                                "' specified in stream initation, canceling.");
-                                        shutdown();
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    else if (parser.getName().equals("error")) {
-                        throw new XMPPException(parseStreamError(parser));
-                    }
+                    processStartTag(parser);
                 }
                 else if (eventType == XmlPullParser.END_TAG) {
                     if (parser.getName().equals("stream")) {
@@ -156,6 +114,119 @@ public class LLPacketReader extends AbstractPacketReader {
         }
     }
 
+    /**
+     * Process a top-level start tag, which is either a stanza or the opening
+     * stream tag.
+     *
+     * @param parser the XML parser, positioned at the start tag.
+     * @throws Exception if an exception occurs while parsing the packet.
+     */
+    private void processStartTag(XmlPullParser parser) throws Exception {
+        if (parser.getName().equals("message")) {
+            processPacket(PacketParserUtils.parseMessage(parser));
+        }
+        else if (parser.getName().equals("iq")) {
+            processPacket(parseIQ(parser));
+        }
+        else if (parser.getName().equals("presence")) {
+            processPacket(PacketParserUtils.parsePresence(parser));
+        }
+        // We found an opening stream. Record information about it, then notify
+        // the connectionID lock so that the packet reader startup can finish.
+        else if (parser.getName().equals("stream")) {
+            // Ensure the correct jabber:client namespace is being used.
+            if ("jabber:client".equals(parser.getNamespace(null))) {
+                // Get the connection id.
+                for (int i=0; i<parser.getAttributeCount(); i++) {
+                    if (parser.getAttributeName(i).equals("id")) {
+                        // Save the connectionID
+                        connectionID = parser.getAttributeValue(i);
+                        /*
+                        TODO implement 1.0 features (stream features etc)
+                        if (!"1.0".equals(parser.getAttributeValue("", "version"))) {
+                            // Notify that a stream has been opened if the
+                            // server is not XMPP 1.0 compliant otherwise make the
+                            // notification after TLS has been negotiated or if TLS
+                            // is not supported
+                            releaseConnectionIDLock();
+                        }*/
+                    }
+                    else if (parser.getAttributeName(i).equals("from")) {
+                        // Use the server name that the server says that it is.
+                        connection.setServiceName(parser.getAttributeValue(i));
+                    }
+                }
+
+
+                // if we are the initiator, this means stream has been initiated
+                // if we aren't the initiator, this means we have to respond with
+                // stream initiator.
+                if (connection.isInitiator()) {
+                    connectionID = connection.getServiceName();
+                    releaseConnectionIDLock();
+                }
+                else {
+                    // Check if service name is a known entity
+                    // if it is, open the stream and keep it open
+                    // otherwise open and immediately close it
+                    if (connection.getServiceName() == null) {
+                        System.err.println("No service name specified in stream initiation, canceling.");
+                        shutdown();
+                    } else if (connection.isNonBlocking()) {
+                        // Resolving the presence may take a while, which
+                        // mustn't hold up the selector thread. Continue the
+                        // session once it has been resolved instead.
+                        final SettableFuture<LLPresence> future =
+                            service.getPresenceByServiceNameAsync(connection.getServiceName());
+                        future.addListener(new Runnable() {
+                            public void run() {
+                                if (done) {
+                                    return;
+                                }
+                                try {
+                                    streamInitiated(future.peek());
+                                }
+                                catch (XMPPException e) {
+                                    notifyConnectionError(e);
+                                }
+                            }
+                        });
+                    } else {
+                        // Check if service name is known, if so
+                        // we will continue the session
+                        streamInitiated(service.getPresenceByServiceName(
+                                    connection.getServiceName()));
+                    }
+                }
+            }
+        }
+        else if (parser.getName().equals("error")) {
+            throw new XMPPException(parseStreamError(parser));
+        }
+    }
+
+    /**
+     * Continue the session of a stream initiated by the remote peer if its
+     * service name is known, otherwise close the connection.
+     *
+     * @param presence the presence of the remote peer, or null if unknown.
+     * @throws XMPPException if the stream couldn't be opened.
+     */
+    private void streamInitiated(LLPresence presence) throws XMPPException {
+        if (presence != null) {
+            connection.setRemotePresence(presence);
+            connectionID = connection.getServiceName();
+            connection.connectionID = connectionID;
+            connection.streamInitiatingReceived();
+            releaseConnectionIDLock();
+        } else {
+            System.err.println("Unknown service name '" +
+                    connection.getServiceName() +
+                    "' specified in stream initation, canceling.");
+            shutdown();
+        }
+    }
+
     /**
      * Parses an IQ packet.
      *
@@ -241,4 +312,62 @@ public class LLPacketReader extends AbstractPacketReader {
 
         return iqPacket;
     }
+
+    /**
+     * Receives the framed stream of a non-blocking connection. Every stanza is
+     * parsed on its own, prefixed by the opening stream tag so that namespace
+     * declarations of the stream are in scope.
+     */
+    private class ChannelListener implements LLChannel.Listener {
+        private String header;
+
+        public void streamOpened(String header) throws Exception {
+            this.header = header;
+            connection.updateLastActivity();
+            processStartTag(newParser(""));
+        }
+
+        public void stanzaReceived(String stanza) throws Exception {
+            if (done) {
+                return;
+            }
+            connection.updateLastActivity();
+            if (header == null) {
+                throw new XMPPException("Stanza received before stream was opened.");
+            }
+            XmlPullParser parser = newParser(stanza);
+            // Skip the opening stream tag
+            parser.next();
+            processStartTag(parser);
+        }
+
+        public void streamClosed() {
+            connection.disconnect();
+        }
+
+        public void channelClosed(Exception e) {
+            if (!done) {
+                if (e == null) {
+                    connection.disconnect();
+                }
+                else {
+                    // Close the connection and notify connection listeners of the
+                    // error.
+                    notifyConnectionError(e);
+                }
+            }
+        }
+
+        /**
+         * Create a parser positioned at the opening stream tag, followed by
+         * the given stanza.
+         */
+        private XmlPullParser newParser(String stanza) throws Exception {
+            XmlPullParser parser = new MXParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new StringReader(header + stanza));
+            parser.nextTag();
+            return parser;
+        }
+    }
 }
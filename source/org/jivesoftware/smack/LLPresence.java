@@ -18,10 +18,13 @@ package org.jivesoftware.smack;
 
 import org.jivesoftware.smack.util.Tuple;
 
+import java.util.EnumSet;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class for describing a Link-local presence information according to XEP-0174.
@@ -59,11 +62,32 @@ public class LLPresence {
         avail, away, dnd
     }
 
+    /**
+     * Kinds of changes between two versions of a presence.
+     */
+    public static enum Change {
+        /** The status changed. */
+        STATUS,
+        /** The status message changed. */
+        MESSAGE,
+        /** The entity caps hash, node or version changed. */
+        CAPS,
+        /** The host or port changed. */
+        ADDRESS,
+        /** Other information, such as the name or JID, changed. */
+        INFO
+    }
+
     // Host details
     private int port = 0;
     private String host;
     private String serviceName;
 
+    // The TXT records encoding this presence, null until needed
+    private volatile Encoding text;
+    // Incremented on every change, after the changed value is set
+    private final AtomicInteger modifications = new AtomicInteger(0);
+
     public LLPresence(String serviceName) {
         this.serviceName = serviceName;
     }
@@ -129,7 +153,7 @@ public class LLPresence {
         list.add(new Tuple<String,String>("hash", hash));
         list.add(new Tuple<String,String>("node", node));
         list.add(new Tuple<String,String>("ver", ver));
-        list.add(new Tuple<String,String>("port.p2ppj", new Integer(port).toString()));
+        list.add(new Tuple<String,String>("port.p2pj", Integer.toString(port)));
 
         for (Map.Entry<String,String> e : rest.entrySet()) {
             list.add(new Tuple<String,String>(e.getKey(), e.getValue()));
@@ -157,46 +181,57 @@ public class LLPresence {
 
     public void setFirstName(String name) {
         firstName = name;
+        changed();
     }
 
     public void setLastName(String name) {
         lastName = name;
+        changed();
     }
 
     public void setEMail(String email) {
         this.email = email;
+        changed();
     }
 
     public void setMsg(String msg) {
         this.msg = msg;
+        changed();
     }
 
     public void setNick(String nick) {
         this.nick = nick;
+        changed();
     }
 
     public void setStatus(Mode status) {
         this.status = status;
+        changed();
     }
 
     public void setJID(String jid) {
         this.jid = jid;
+        changed();
     }
 
     public void setHash(String hash) {
         this.hash = hash;
+        changed();
     }
 
     public void setNode(String node) {
         this.node = node;
+        changed();
     }
 
     public void setVer(String ver) {
         this.ver = ver;
+        changed();
     }
 
     void setPort(int port) {
         this.port = port;
+        changed();
     }
 
     public String getFirstName() {
@@ -257,6 +292,65 @@ public class LLPresence {
 
     public void putValue(String key, String value) {
         rest.put(key, value);
+        changed();
+    }
+
+    /**
+     * Returns the values with keys unknown to this class.
+     */
+    Map<String,String> getValues() {
+        return rest;
+    }
+
+    /**
+     * Returns the presence encoded as raw TXT records. The encoding is kept
+     * until the presence is changed, and must not be modified.
+     *
+     * @return the raw TXT records.
+     */
+    byte[] getTextBytes() {
+        int modification = modifications.get();
+        Encoding encoding = text;
+        if (encoding == null || encoding.modification != modification) {
+            // The encoding is only used until the next change, even if the
+            // presence is changed while encoding it.
+            encoding = new Encoding(modification, LLPresenceCodec.encode(this));
+            text = encoding;
+        }
+        return encoding.bytes;
+    }
+
+    private void changed() {
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Returns the changes from a previous version of this presence. An empty
+     * set means nothing changed.
+     *
+     * @param previous the previous version of the presence.
+     * @return the kinds of changes.
+     */
+    public Set<Change> getChanges(LLPresence previous) {
+        Set<Change> changes = EnumSet.noneOf(Change.class);
+        if (status != previous.status)
+            changes.add(Change.STATUS);
+        if (!equal(msg, previous.msg))
+            changes.add(Change.MESSAGE);
+        if (!equal(hash, previous.hash) || !equal(node, previous.node) ||
+                !equal(ver, previous.ver))
+            changes.add(Change.CAPS);
+        if (port != previous.port || !equal(host, previous.host))
+            changes.add(Change.ADDRESS);
+        if (!equal(firstName, previous.firstName) || !equal(lastName, previous.lastName) ||
+                !equal(email, previous.email) || !equal(nick, previous.nick) ||
+                !equal(jid, previous.jid) || !rest.equals(previous.rest))
+            changes.add(Change.INFO);
+        return changes;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     public boolean equals(Object o) {
@@ -271,4 +365,17 @@ public class LLPresence {
     public int hashCode() {
         return serviceName.hashCode();
     }
+
+    /**
+     * The TXT records encoding a presence, and the modification encoded.
+     */
+    private static class Encoding {
+        final int modification;
+        final byte[] bytes;
+
+        Encoding(int modification, byte[] bytes) {
+            this.modification = modification;
+            this.bytes = bytes;
+        }
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.Set;
+
+/**
+ * Presence listener also receiving notifications about what changed when a
+ * known presence is updated. A plain {@link LLPresenceListener} is notified
+ * about updates through {@link LLPresenceListener#presenceNew(LLPresence)}.
+ * Neither is notified when a presence is refreshed without changes.
+ *
+ * @author Jonas Ådahl
+ */
+public interface LLPresenceChangeListener extends LLPresenceListener {
+
+    /**
+     * The information of a known link-local presence has changed.
+     *
+     * @param previous the previous information of the presence.
+     * @param presence the new information of the presence.
+     * @param changes the kinds of changes, never empty.
+     */
+    public void presenceChanged(LLPresence previous, LLPresence presence,
+            Set<LLPresence.Change> changes);
+}
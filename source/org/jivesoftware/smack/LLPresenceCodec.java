@@ -0,0 +1,239 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+/**
+ * Encodes and decodes link-local presences as the raw TXT records described
+ * by XEP-0174. The records are a sequence of "key=value" strings, each
+ * preceded by a byte giving its length. Records are decoded in one pass
+ * straight into the fields of the presence, looking up known keys in a table
+ * without creating strings for them.
+ *
+ * @author Jonas Ådahl
+ */
+final class LLPresenceCodec {
+
+    // Indexes of the known keys in KEYS.
+    private static final int TXTVERS = 0;
+    private static final int FIRST = 1;
+    private static final int LAST = 2;
+    private static final int EMAIL = 3;
+    private static final int JID = 4;
+    private static final int NICK = 5;
+    private static final int STATUS = 6;
+    private static final int MSG = 7;
+    private static final int HASH = 8;
+    private static final int NODE = 9;
+    private static final int VER = 10;
+    private static final int PORT = 11;
+
+    private static final byte[][] KEYS = {
+        ascii("txtvers"), ascii("1st"), ascii("last"), ascii("email"), ascii("jid"),
+        ascii("nick"), ascii("status"), ascii("msg"), ascii("hash"), ascii("node"),
+        ascii("ver"), ascii("port.p2pj")
+    };
+
+    private static final int MAX_STRING_LENGTH = 255;
+
+    private LLPresenceCodec() {
+    }
+
+    /**
+     * Decode raw TXT records into a presence.
+     *
+     * @param serviceName the service name of the presence.
+     * @param host the host of the presence.
+     * @param port the port of the presence.
+     * @param bytes the raw TXT records.
+     * @return the presence.
+     */
+    static LLPresence decode(String serviceName, String host, int port, byte[] bytes) {
+        LLPresence presence = new LLPresence(serviceName, host, port);
+        if (bytes == null) {
+            return presence;
+        }
+        int i = 0;
+        while (i < bytes.length) {
+            int length = bytes[i++] & 0xff;
+            int end = Math.min(i + length, bytes.length);
+            int separator = indexOf(bytes, (byte) '=', i, end);
+            // Records without a value are not used by XEP-0174
+            if (separator > i) {
+                decodeRecord(presence, bytes, i, separator, end);
+            }
+            i = end;
+        }
+        return presence;
+    }
+
+    private static void decodeRecord(LLPresence presence, byte[] bytes,
+            int keyStart, int separator, int end) {
+        String value = utf8(bytes, separator + 1, end - separator - 1);
+        switch (lookupKey(bytes, keyStart, separator - keyStart)) {
+            case TXTVERS:
+            case PORT:
+                // Not part of the presence information
+                break;
+            case FIRST:
+                presence.setFirstName(value);
+                break;
+            case LAST:
+                presence.setLastName(value);
+                break;
+            case EMAIL:
+                presence.setEMail(value);
+                break;
+            case JID:
+                presence.setJID(value);
+                break;
+            case NICK:
+                presence.setNick(value);
+                break;
+            case STATUS:
+                try {
+                    presence.setStatus(LLPresence.Mode.valueOf(value));
+                }
+                catch (IllegalArgumentException iae) {
+                    System.err.println("Found invalid presence status (" +
+                            value + ") in TXT entry.");
+                }
+                break;
+            case MSG:
+                presence.setMsg(value);
+                break;
+            case HASH:
+                presence.setHash(value);
+                break;
+            case NODE:
+                presence.setNode(value);
+                break;
+            case VER:
+                presence.setVer(value);
+                break;
+            default:
+                String key = utf8(bytes, keyStart, separator - keyStart);
+                // Unknown key, the first value is used
+                if (presence.getValue(key) == null) {
+                    presence.putValue(key, value);
+                }
+        }
+    }
+
+    /**
+     * Encode a presence as raw TXT records. Fields without value are left
+     * out, and values too long for a record are truncated.
+     *
+     * @param presence the presence.
+     * @return the raw TXT records.
+     */
+    static byte[] encode(LLPresence presence) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        writeRecord(out, KEYS[TXTVERS], "1");
+        writeRecord(out, KEYS[FIRST], presence.getFirstName());
+        writeRecord(out, KEYS[LAST], presence.getLastName());
+        writeRecord(out, KEYS[EMAIL], presence.getEMail());
+        writeRecord(out, KEYS[JID], presence.getJID());
+        writeRecord(out, KEYS[NICK], presence.getNick());
+        writeRecord(out, KEYS[STATUS], presence.getStatus().toString());
+        writeRecord(out, KEYS[MSG], presence.getMsg());
+        writeRecord(out, KEYS[HASH], presence.getHash());
+        writeRecord(out, KEYS[NODE], presence.getNode());
+        writeRecord(out, KEYS[VER], presence.getVer());
+        writeRecord(out, KEYS[PORT], Integer.toString(presence.getPort()));
+        for (Map.Entry<String,String> e : presence.getValues().entrySet()) {
+            writeRecord(out, utf8(e.getKey()), e.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, byte[] key, String value) {
+        if (value == null) {
+            return;
+        }
+        byte[] v = utf8(value);
+        int length = Math.min(v.length, MAX_STRING_LENGTH - key.length - 1);
+        if (length < 0) {
+            return;
+        }
+        // Don't split a multi-byte character when truncating
+        while (length < v.length && length > 0 && (v[length] & 0xc0) == 0x80) {
+            length--;
+        }
+        out.write(key.length + 1 + length);
+        out.write(key, 0, key.length);
+        out.write('=');
+        out.write(v, 0, length);
+    }
+
+    private static int lookupKey(byte[] bytes, int offset, int length) {
+        for (int k = 0; k < KEYS.length; k++) {
+            byte[] key = KEYS[k];
+            if (key.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && key[j] == bytes[offset + j]) {
+                j++;
+            }
+            if (j == length) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException uee) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    private static String utf8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException uee) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(uee);
+        }
+    }
+}
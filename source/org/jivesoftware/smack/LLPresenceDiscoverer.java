@@ -20,10 +20,11 @@ import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceListener;
 
+import org.jivesoftware.smack.util.SettableFuture;
+
 import java.util.Set;
 import java.util.Collection;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collections;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
@@ -34,8 +35,10 @@ import java.util.concurrent.CopyOnWriteArraySet;
 public abstract class LLPresenceDiscoverer {
     // Listeners to be notified about changes.
     protected Set<LLPresenceListener> listeners = new CopyOnWriteArraySet<LLPresenceListener>();
-    // Map of service name -> Link-local presence
-    private Map<String,LLPresence> presences = new ConcurrentHashMap<String,LLPresence>();
+    // Known Link-local presences
+    private final LLPresenceRegistry presences = new LLPresenceRegistry();
+    // Serializes merging the presences discovered on several interfaces
+    private final Object mergeLock = new Object();
 
     /**
      * Add listener which will be notified when new presences are discovered,
@@ -44,7 +47,7 @@ public abstract class LLPresenceDiscoverer {
      */
     public void addPresenceListener(LLPresenceListener listener) {
         listeners.add(listener);
-        for (LLPresence presence : presences.values())
+        for (LLPresence presence : presences.getPresences())
             listener.presenceNew(presence);
     }
 
@@ -61,40 +64,181 @@ public abstract class LLPresenceDiscoverer {
      * @return all known presences.
      */
     public Collection<LLPresence> getPresences() {
-        return presences.values();
+        return presences.getPresences();
+    }
+
+    /**
+     * Return the registry of known presences, which may be queried by
+     * status, JID, entity caps node and TXT values.
+     *
+     * @return the registry of known presences.
+     */
+    public LLPresenceRegistry getRegistry() {
+        return presences;
     }
 
     /**
-     * Return the presence with the specified service name.
+     * Return the interfaces presences are discovered on, in order of
+     * preference. When a presence is discovered on several interfaces, the
+     * information from the first of them is used.
+     *
+     * @return the interfaces presences are discovered on, or an empty
+     *      collection if the discoverer doesn't keep track of interfaces.
+     */
+    public Collection<LLInterface> getInterfaces() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Return the presence with the specified service name. If the presence
+     * has been announced but not yet resolved, it is resolved before returning.
      * 
      * @param name service name of the presence.
      * @return the presence information with the given service name.
      */
     public LLPresence getPresence(String name) {
-        return presences.get(name);
+        LLPresence presence = presences.get(name);
+        if (presence == null && resolvePresence(name)) {
+            presence = presences.get(name);
+        }
+        return presence;
+    }
+
+    /**
+     * Return the presence with the specified service name without blocking.
+     * If the presence has been announced but not yet resolved, it is resolved
+     * in the background.
+     *
+     * @param name service name of the presence.
+     * @return a future completed with the presence information, or with null
+     *      if the presence isn't known or couldn't be resolved.
+     */
+    SettableFuture<LLPresence> getPresenceAsync(final String name) {
+        final SettableFuture<LLPresence> future = new SettableFuture<LLPresence>();
+        SettableFuture<Void> resolved = null;
+        if (presences.get(name) == null) {
+            resolved = resolvePresenceAsync(name);
+        }
+        if (resolved == null) {
+            future.set(presences.get(name));
+        }
+        else {
+            resolved.addListener(new Runnable() {
+                public void run() {
+                    future.set(presences.get(name));
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Used by the class extending this one to resolve a presence which is
+     * looked up before its information is known, for example because it is
+     * only resolved on demand. Blocks until the presence has been resolved,
+     * or resolving it has timed out.
+     *
+     * @param name service name of the presence.
+     * @return true if the presence was announced and has been resolved or
+     *      timed out, false if it isn't known.
+     */
+    protected boolean resolvePresence(String name) {
+        return false;
+    }
+
+    /**
+     * Used by the class extending this one to resolve a presence like
+     * {@link #resolvePresence(String)}, but without blocking.
+     *
+     * @param name service name of the presence.
+     * @return a future completed when the presence has been resolved or
+     *      resolving it has timed out, or null if the presence isn't known.
+     */
+    protected SettableFuture<Void> resolvePresenceAsync(String name) {
+        return null;
     }
 
     /**
      * Used by the class extending this one to tell when new
-     * presence is added.
+     * presence is added. The presence isn't known until its
+     * information is added.
      * 
      * @param name service name of the presence.
      */
     protected void presenceAdded(String name) {
-        presences.put(name, null);
     }
 
     /**
      * Used by the class extending this one to tell when new
-     * presence information is added.
+     * presence information is added. If the presence is known, listeners
+     * are only notified if the information changed.
      *
      * @param name service name of the presence.
      * @param presence presence information.
      */
     protected void presenceInfoAdded(String name, LLPresence presence) {
+        LLPresence previous = presences.get(name);
+        Set<LLPresence.Change> changes = null;
+        if (previous != null) {
+            changes = presence.getChanges(previous);
+            if (changes.isEmpty())
+                return;
+        }
         presences.put(name, presence);
-        for (LLPresenceListener l : listeners)
-            l.presenceNew(presence);
+        for (LLPresenceListener l : listeners) {
+            if (previous != null && l instanceof LLPresenceChangeListener)
+                ((LLPresenceChangeListener) l).presenceChanged(previous, presence, changes);
+            else
+                l.presenceNew(presence);
+        }
+    }
+
+    /**
+     * Used by the class extending this one to tell when presence information
+     * is added on one of its interfaces. The known presence is updated if the
+     * interface is the first one the presence is known on.
+     *
+     * @param iface the interface the presence was discovered on.
+     * @param name service name of the presence.
+     * @param presence presence information.
+     */
+    protected void presenceInfoAdded(LLInterface iface, String name, LLPresence presence) {
+        iface.resolved();
+        synchronized (mergeLock) {
+            iface.getRegistry().put(name, presence);
+            if (getPrimaryInterface(name) == iface)
+                presenceInfoAdded(name, presence);
+        }
+    }
+
+    /**
+     * Used by the class extending this one to tell when a presence goes
+     * offline on one of its interfaces. The presence only goes offline when
+     * it isn't known on any other interface, otherwise the information from
+     * the next interface is used.
+     *
+     * @param iface the interface the presence went offline on.
+     * @param name service name of the presence going offline.
+     */
+    protected void presenceRemoved(LLInterface iface, String name) {
+        synchronized (mergeLock) {
+            if (iface.getRegistry().remove(name) == null)
+                return;
+            iface.removed();
+            LLInterface primary = getPrimaryInterface(name);
+            if (primary == null)
+                presenceRemoved(name);
+            else
+                presenceInfoAdded(name, primary.getRegistry().get(name));
+        }
+    }
+
+    private LLInterface getPrimaryInterface(String name) {
+        for (LLInterface iface : getInterfaces()) {
+            if (iface.getRegistry().get(name) != null)
+                return iface;
+        }
+        return null;
     }
 
     /** 
@@ -105,6 +249,9 @@ public abstract class LLPresenceDiscoverer {
      */
     protected void presenceRemoved(String name) {
         LLPresence presence = presences.remove(name);
+        // Listeners were never told about presences not resolved
+        if (presence == null)
+            return;
         for (LLPresenceListener l : listeners)
             l.presenceRemove(presence);
     }
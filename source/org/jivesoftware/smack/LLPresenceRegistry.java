@@ -0,0 +1,377 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Registry of the known link-local presences, indexed by service name, status,
+ * JID, entity caps node#ver and selected TXT keys. Lookups by an indexed value
+ * cost time proportional to the number of presences found, rather than to the
+ * number of known presences.<p>
+ *
+ * All collections returned are snapshots, consistent with each other at the
+ * time of the call, and are not changed by later updates. Presences should not
+ * be modified once added, since the indexes are not updated.
+ *
+ * @see LLService#getPresenceRegistry()
+ * @author Jonas Ådahl
+ */
+public class LLPresenceRegistry {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Map of service name -> presence
+    private final Map<String,LLPresence> presences = new HashMap<String,LLPresence>();
+
+    // Indexes of value -> service names
+    private final Map<LLPresence.Mode,Set<String>> byStatus =
+        new EnumMap<LLPresence.Mode,Set<String>>(LLPresence.Mode.class);
+    private final Map<String,Set<String>> byJID = new HashMap<String,Set<String>>();
+    private final Map<String,Set<String>> byCapsNode = new HashMap<String,Set<String>>();
+
+    // Map of TXT key -> value -> service names, for the indexed keys
+    private final Map<String,Map<String,Set<String>>> byValue =
+        new HashMap<String,Map<String,Set<String>>>();
+
+    /**
+     * Returns the presence with the given service name.
+     *
+     * @param serviceName the service name.
+     * @return the presence, or null if not known.
+     */
+    public LLPresence get(String serviceName) {
+        lock.readLock().lock();
+        try {
+            return presences.get(serviceName);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all known presences.
+     *
+     * @return a snapshot of the known presences.
+     */
+    public Collection<LLPresence> getPresences() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<LLPresence>(presences.values());
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of known presences.
+     *
+     * @return the number of known presences.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return presences.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the presences with the given status.
+     *
+     * @param status the status.
+     * @return a snapshot of the presences with the status.
+     */
+    public Collection<LLPresence> getPresencesByStatus(LLPresence.Mode status) {
+        lock.readLock().lock();
+        try {
+            return lookup(byStatus.get(status));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the presences announcing the given JID.
+     *
+     * @param jid the JID.
+     * @return a snapshot of the presences with the JID.
+     */
+    public Collection<LLPresence> getPresencesByJID(String jid) {
+        lock.readLock().lock();
+        try {
+            return lookup(byJID.get(jid));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the presences announcing the given entity caps node#ver.
+     *
+     * @param capsNode the entity caps node#ver.
+     * @return a snapshot of the presences with the node#ver.
+     */
+    public Collection<LLPresence> getPresencesByCapsNode(String capsNode) {
+        lock.readLock().lock();
+        try {
+            return lookup(byCapsNode.get(capsNode));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the presences announcing the given entity caps node#ver and
+     * status.
+     *
+     * @param capsNode the entity caps node#ver.
+     * @param status the status.
+     * @return a snapshot of the presences with the node#ver and status.
+     */
+    public Collection<LLPresence> getPresencesByCapsNode(String capsNode,
+            LLPresence.Mode status) {
+        lock.readLock().lock();
+        try {
+            Set<String> names = byCapsNode.get(capsNode);
+            Set<String> withStatus = byStatus.get(status);
+            if (names == null || withStatus == null) {
+                return Collections.emptyList();
+            }
+            // Iterate the smaller set
+            if (withStatus.size() < names.size()) {
+                Set<String> tmp = names;
+                names = withStatus;
+                withStatus = tmp;
+            }
+            List<LLPresence> result = new ArrayList<LLPresence>();
+            for (String name : names) {
+                if (withStatus.contains(name)) {
+                    result.add(presences.get(name));
+                }
+            }
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the distinct entity caps node#ver announced by the known
+     * presences.
+     *
+     * @return a snapshot of the announced node#ver.
+     */
+    public Set<String> getCapsNodes() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<String>(byCapsNode.keySet());
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the presences with the given value of a TXT key not otherwise
+     * interpreted, see {@link LLPresence#getValue(String)}. The lookup is
+     * indexed if the key has been added with {@link #addIndexedKey(String)},
+     * otherwise all presences are scanned.
+     *
+     * @param key the TXT key.
+     * @param value the value.
+     * @return a snapshot of the presences with the value.
+     */
+    public Collection<LLPresence> getPresencesByValue(String key, String value) {
+        lock.readLock().lock();
+        try {
+            Map<String,Set<String>> index = byValue.get(key);
+            if (index != null) {
+                return lookup(index.get(value));
+            }
+            List<LLPresence> result = new ArrayList<LLPresence>();
+            for (LLPresence presence : presences.values()) {
+                if (value.equals(presence.getValue(key))) {
+                    result.add(presence);
+                }
+            }
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index the values of a TXT key not otherwise interpreted, making lookups
+     * by {@link #getPresencesByValue(String, String)} of the key cheap.
+     *
+     * @param key the TXT key to index.
+     */
+    public void addIndexedKey(String key) {
+        lock.writeLock().lock();
+        try {
+            if (byValue.containsKey(key)) {
+                return;
+            }
+            Map<String,Set<String>> index = new HashMap<String,Set<String>>();
+            byValue.put(key, index);
+            for (Map.Entry<String,LLPresence> e : presences.entrySet()) {
+                addTo(index, e.getValue().getValue(key), e.getKey());
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop indexing the values of a TXT key.
+     *
+     * @param key the TXT key.
+     */
+    public void removeIndexedKey(String key) {
+        lock.writeLock().lock();
+        try {
+            byValue.remove(key);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace a presence.
+     *
+     * @param serviceName the service name of the presence.
+     * @param presence the presence.
+     * @return the replaced presence, or null.
+     */
+    LLPresence put(String serviceName, LLPresence presence) {
+        lock.writeLock().lock();
+        try {
+            LLPresence previous = presences.put(serviceName, presence);
+            if (previous != null) {
+                unindex(serviceName, previous);
+            }
+            index(serviceName, presence);
+            return previous;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a presence.
+     *
+     * @param serviceName the service name of the presence.
+     * @return the removed presence, or null if not known.
+     */
+    LLPresence remove(String serviceName) {
+        lock.writeLock().lock();
+        try {
+            LLPresence previous = presences.remove(serviceName);
+            if (previous != null) {
+                unindex(serviceName, previous);
+            }
+            return previous;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void index(String name, LLPresence presence) {
+        addTo(byStatus, presence.getStatus(), name);
+        addTo(byJID, presence.getJID(), name);
+        addTo(byCapsNode, getCapsNode(presence), name);
+        for (Map.Entry<String,Map<String,Set<String>>> e : byValue.entrySet()) {
+            addTo(e.getValue(), presence.getValue(e.getKey()), name);
+        }
+    }
+
+    private void unindex(String name, LLPresence presence) {
+        removeFrom(byStatus, presence.getStatus(), name);
+        removeFrom(byJID, presence.getJID(), name);
+        removeFrom(byCapsNode, getCapsNode(presence), name);
+        for (Map.Entry<String,Map<String,Set<String>>> e : byValue.entrySet()) {
+            removeFrom(e.getValue(), presence.getValue(e.getKey()), name);
+        }
+    }
+
+    private static String getCapsNode(LLPresence presence) {
+        if (presence.getNode() == null || presence.getVer() == null) {
+            return null;
+        }
+        return presence.getNode() + "#" + presence.getVer();
+    }
+
+    private static <K> void addTo(Map<K,Set<String>> index, K value, String name) {
+        if (value == null) {
+            return;
+        }
+        Set<String> names = index.get(value);
+        if (names == null) {
+            names = new HashSet<String>();
+            index.put(value, names);
+        }
+        names.add(name);
+    }
+
+    private static <K> void removeFrom(Map<K,Set<String>> index, K value, String name) {
+        if (value == null) {
+            return;
+        }
+        Set<String> names = index.get(value);
+        if (names != null) {
+            names.remove(name);
+            if (names.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    private List<LLPresence> lookup(Set<String> names) {
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        List<LLPresence> result = new ArrayList<LLPresence>(names.size());
+        for (String name : names) {
+            result.add(presences.get(name));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector loop driving a set of non-blocking link-local channels using a
+ * single thread. Channels are registered together with a handler which is
+ * invoked from the selector thread whenever the channel is ready.
+ *
+ * All operations on the selector, such as registering channels and changing
+ * interest sets, are queued and performed by the selector thread, so they may
+ * be requested from any thread.
+ *
+ * @author Jonas Ådahl
+ */
+class LLSelector {
+
+    /**
+     * Handler of readiness events for a registered channel.
+     */
+    interface Handler {
+        /**
+         * The channel is ready for one or more of its registered operations.
+         *
+         * @param key the selection key of the channel.
+         * @throws IOException if an I/O error occurs.
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Handling the channel failed. The key has been cancelled.
+         *
+         * @param e the reason of the failure.
+         */
+        void failed(Exception e);
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+    private volatile boolean done = false;
+
+    /**
+     * Creates a new selector loop. The loop is not started until
+     * {@link #start()} is called.
+     *
+     * @param name the name of the selector thread.
+     * @throws IOException if the selector could not be opened.
+     */
+    LLSelector(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread() {
+            public void run() {
+                loop();
+            }
+        };
+        thread.setName(name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start the selector thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop the selector thread and close the selector. Registered channels are
+     * not closed.
+     */
+    void close() {
+        done = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Returns true if the current thread is the selector thread.
+     *
+     * @return true if called from the selector thread.
+     */
+    boolean inSelectorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task in the selector thread.
+     *
+     * @param task the task to run.
+     */
+    void invoke(Runnable task) {
+        pendingTasks.add(task);
+        // Also wake up when called from the selector thread, so that the
+        // next select does not block before the task has been run.
+        selector.wakeup();
+    }
+
+    /**
+     * Register a channel with this selector. The channel must already be in
+     * non-blocking mode.
+     *
+     * @param channel the channel to register.
+     * @param ops the initial interest set.
+     * @param handler the handler to notify when the channel is ready.
+     */
+    void register(final SelectableChannel channel, final int ops, final Handler handler) {
+        invoke(new Runnable() {
+            public void run() {
+                try {
+                    channel.register(selector, ops, handler);
+                }
+                catch (ClosedChannelException cce) {
+                    handler.failed(cce);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add operations to the interest set of a registered channel.
+     *
+     * @param channel the registered channel.
+     * @param ops the operations to add.
+     */
+    void addInterest(final SelectableChannel channel, final int ops) {
+        invoke(new Runnable() {
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | ops);
+                }
+            }
+        });
+    }
+
+    private void loop() {
+        while (!done) {
+            try {
+                selector.select();
+            }
+            catch (IOException ioe) {
+                ioe.printStackTrace();
+                break;
+            }
+
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (Exception e) {
+                    // Catch and print any exception so we can recover
+                    // from a faulty task
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    handler.ready(key);
+                }
+                catch (Exception e) {
+                    key.cancel();
+                    handler.failed(e);
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        }
+        catch (IOException ioe) {
+            // Ignore
+        }
+    }
+}
@@ -23,24 +23,40 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.AndFilter;
 import org.jivesoftware.smack.filter.OrFilter;
-import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.filter.MessageTypeFilter;
-import org.jivesoftware.smack.filter.IQTypeFilter;
+import org.jivesoftware.smack.util.HashedWheelTimer;
+import org.jivesoftware.smack.util.SettableFuture;
+import org.jivesoftware.smack.util.Tuple;
 
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Map;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * LLService acts as an abstract interface to a Link-local XMPP service
@@ -50,7 +66,8 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * The mDNS/DNS-SD is for example implemented by JmDNSService (using JmDNS).
  *
- * There is only one instance of LLService possible at one time.
+ * Several instances of LLService may run at the same time, each with its own
+ * presence and mDNS/DNS-SD daemon.
  *
  * Tasks taken care of here are:
  * <ul>
@@ -82,12 +99,22 @@ public abstract class LLService {
 
     private boolean initiated = false;
 
+    // Announcement of presence changes waiting for more changes, if any.
+    private HashedWheelTimer.Timeout pendingAnnouncement = null;
+    private final Object announcementLock = new Object();
+
+    // Failure of the last deferred announcement, reported by the next update.
+    private XMPPException announcementFailure = null;
+
+    // Presence updates not resulting in an announcement of their own.
+    private final AtomicLong suppressedAnnouncements = new AtomicLong(0);
+
     private Map<String,LLChat> chats =
         new ConcurrentHashMap<String,LLChat>();
 
-    private Map<String,XMPPLLConnection> ingoing =
+    private ConcurrentMap<String,XMPPLLConnection> ingoing =
         new ConcurrentHashMap<String,XMPPLLConnection>();
-    private Map<String,XMPPLLConnection> outgoing =
+    private ConcurrentMap<String,XMPPLLConnection> outgoing =
         new ConcurrentHashMap<String,XMPPLLConnection>();
 
     // Listeners for state updates, such as LLService closed down
@@ -117,6 +144,44 @@ public abstract class LLService {
         new HashSet<XMPPLLConnection>();
 
     private ServerSocket socket;
+    private int minPort = DEFAULT_MIN_PORT;
+    private int maxPort = DEFAULT_MAX_PORT;
+
+    // Whether connections are driven by selector loops instead of
+    // dedicated reader and writer threads per connection.
+    private boolean nonBlocking = false;
+    private int selectorCount = 1;
+    private LLSelector[] selectors;
+    private AtomicInteger selectorIndex = new AtomicInteger(0);
+
+    // Delivers received packets to listeners of the connections, if shared
+    private volatile PacketDispatcher packetDispatcher;
+
+    // Connections being established, by remote service name. Packets sent
+    // while a connection is being established are queued here.
+    private final Map<String,PendingConnection> pendingConnections =
+        new ConcurrentHashMap<String,PendingConnection>();
+
+    // Futures waiting for IQ replies, by packet ID. Completed by the reader
+    // of whichever associated connection receives the reply.
+    private final ConcurrentMap<String,SettableFuture<IQ>> iqReplies =
+        new ConcurrentHashMap<String,SettableFuture<IQ>>();
+
+    // Policy and statistics of established connections.
+    private final LLConnectionPool connectionPool = new LLConnectionPool();
+
+    // Executor establishing connections for asynchronous sends, and closing
+    // evicted connections. Bounded, so that sending to many unresponsive
+    // peers queues the attempts rather than starting a thread for each.
+    private static final int CONNECTOR_THREADS = 4;
+    private final ExecutorService connector =
+        Executors.newFixedThreadPool(CONNECTOR_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Smack Link-local Connector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
     static {
         SmackConfiguration.getVersion();
@@ -151,6 +216,8 @@ public abstract class LLService {
                 // We only care about this connection if we were the one
                 // creating it
                 if (isAssociatedConnection(connection)) {
+                    connection.shareReplyFutures(iqReplies);
+
                     if (connection.isInitiator()) {
                         addOutgoingConnection(connection);
                     }
@@ -251,17 +318,129 @@ public abstract class LLService {
 
     /**
      * Update the text field information. Used for setting new presence information.
+     *
+     * @return true if the encoded text field differs from the one announced.
      */
-    protected abstract void updateText();
+    protected abstract boolean updateText();
+
+    /**
+     * Set the range of ports the service may listen for connections on. The
+     * first free port in the range is used, where port 0 means any free
+     * port. Defaults to ports 2300 to 2400. Must be set before the service
+     * is initiated.
+     *
+     * @param minPort the lowest port to listen on.
+     * @param maxPort the highest port to listen on.
+     * @throws IllegalStateException if the service has already been initiated.
+     */
+    public void setPortRange(int minPort, int maxPort) {
+        if (initiated) {
+            throw new IllegalStateException("Link-local service already initiated.");
+        }
+        if (minPort < 0 || maxPort > 65535 || minPort > maxPort) {
+            throw new IllegalArgumentException("Invalid port range.");
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+    }
+
+    /**
+     * Set whether the link-local connections of this service should be
+     * non-blocking. Non-blocking connections are driven by a small fixed set
+     * of selector threads instead of reader and writer threads per connection.
+     * Must be set before the service is initiated.
+     *
+     * @param nonBlocking true if connections should be non-blocking.
+     * @throws IllegalStateException if the service has already been initiated.
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        if (initiated) {
+            throw new IllegalStateException("Link-local service already initiated.");
+        }
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * Tells if the link-local connections of this service are non-blocking.
+     *
+     * @return true if connections are driven by selector threads.
+     */
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    /**
+     * Set the dispatcher delivering packets received on the link-local
+     * connections of this service to packet listeners. A shared dispatcher
+     * lets a service with many remote peers deliver packets using a fixed
+     * number of threads, instead of a thread per connection. Applies to
+     * connections established afterwards.
+     *
+     * @param packetDispatcher the dispatcher, or null to use a thread per
+     *      connection.
+     * @see PooledPacketDispatcher
+     */
+    public void setPacketDispatcher(PacketDispatcher packetDispatcher) {
+        this.packetDispatcher = packetDispatcher;
+    }
+
+    /**
+     * Returns the dispatcher delivering packets received on the link-local
+     * connections of this service to packet listeners.
+     *
+     * @return the dispatcher, or null if each connection uses a thread.
+     */
+    public PacketDispatcher getPacketDispatcher() {
+        return packetDispatcher;
+    }
+
+    /**
+     * Set the number of selector threads used to drive non-blocking
+     * connections. The default is one. Must be set before the service
+     * is initiated.
+     *
+     * @param count the number of selector threads.
+     * @throws IllegalStateException if the service has already been initiated.
+     */
+    public void setSelectorCount(int count) {
+        if (initiated) {
+            throw new IllegalStateException("Link-local service already initiated.");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one selector is required.");
+        }
+        selectorCount = count;
+    }
+
+    /**
+     * Returns the selector which should drive the next non-blocking
+     * connection. Connections are distributed round-robin.
+     *
+     * @return a selector of this service.
+     */
+    LLSelector nextSelector() {
+        int i = selectorIndex.getAndIncrement() & Integer.MAX_VALUE;
+        return selectors[i % selectors.length];
+    }
 
     public void init() throws XMPPException {
-        // allocate a new port for remote clients to connect to
-        socket = bindRange(DEFAULT_MIN_PORT, DEFAULT_MAX_PORT);
-        presence.setPort(socket.getLocalPort());
+        if (nonBlocking) {
+            initNonBlocking();
+        }
+        else {
+            // allocate a new port for remote clients to connect to
+            socket = bindRange(minPort, maxPort);
+            presence.setPort(socket.getLocalPort());
+        }
 
         // register service on the allocated port
         registerService();
 
+        if (nonBlocking) {
+            initiated = true;
+            return;
+        }
+
         // start to listen for new connections
         listenerThread = new Thread() {
             public void run() {
@@ -286,8 +465,107 @@ public abstract class LLService {
         initiated = true;
     }
 
+    /**
+     * Start the selector threads and accept new connections on a
+     * non-blocking server socket.
+     *
+     * @throws XMPPException if the selectors couldn't be opened or no port
+     * could be bound.
+     */
+    private void initNonBlocking() throws XMPPException {
+        final ServerSocketChannel serverChannel =
+            bindRangeNonBlocking(minPort, maxPort);
+        socket = serverChannel.socket();
+        presence.setPort(socket.getLocalPort());
+
+        selectors = new LLSelector[selectorCount];
+        try {
+            for (int i = 0; i < selectorCount; i++) {
+                selectors[i] = new LLSelector("Smack Link-local Selector (" + i + ")");
+                selectors[i].start();
+            }
+        }
+        catch (IOException ioe) {
+            closeSelectors();
+            try {
+                serverChannel.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+            throw new XMPPException("Unable to open selector.", ioe);
+        }
+
+        selectors[0].register(serverChannel, SelectionKey.OP_ACCEPT,
+                new LLSelector.Handler() {
+                    public void ready(SelectionKey key) throws IOException {
+                        SocketChannel channel;
+                        while ((channel = serverChannel.accept()) != null) {
+                            acceptConnection(channel.socket());
+                        }
+                    }
+
+                    public void failed(Exception e) {
+                        if (!done) {
+                            XMPPException xe = new XMPPException(
+                                    "Link-local service unexpectedly closed down.", e);
+                            for (LLServiceStateListener listener : stateListeners)
+                                listener.serviceClosedOnError(xe);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Handle a connection accepted on a non-blocking server socket. The
+     * connection is set up without waiting for the remote peer to open the
+     * stream, since this is called from a selector thread.
+     *
+     * @param s the accepted socket.
+     */
+    private void acceptConnection(Socket s) {
+        LLConnectionConfiguration config =
+            new LLConnectionConfiguration(presence, s);
+        XMPPLLConnection connection = new XMPPLLConnection(this, config);
+
+        // Associate the new connection with this service
+        addAssociatedConnection(connection);
+
+        try {
+            connection.initListen();
+        }
+        catch (XMPPException xe) {
+            // ignore, since its an incoming connection
+            // there is nothing to save
+            removeAssociatedConnection(connection);
+        }
+    }
+
+    private void closeSelectors() {
+        if (selectors != null) {
+            for (LLSelector selector : selectors) {
+                if (selector != null) {
+                    selector.close();
+                }
+            }
+        }
+    }
+
     public void close() {
         done = true;
+        connector.shutdown();
+
+        synchronized (announcementLock) {
+            if (pendingAnnouncement != null) {
+                pendingAnnouncement.cancel();
+                pendingAnnouncement = null;
+            }
+        }
+
+        // fail requests waiting for replies
+        for (SettableFuture<IQ> future : iqReplies.values()) {
+            future.setException(new XMPPException("Link-local service closed."));
+        }
 
         // close incoming connections
         for (XMPPLLConnection connection : ingoing.values()) {
@@ -311,6 +589,12 @@ public abstract class LLService {
         } catch (IOException ioe) {
             // ignore
         }
+
+        if (nonBlocking) {
+            closeSelectors();
+            for (LLServiceStateListener listener : stateListeners)
+                listener.serviceClosed();
+        }
     }
 
     /**
@@ -374,6 +658,38 @@ public abstract class LLService {
         throw new XMPPException("Unable to bind port, no ports available.");
     }
 
+    /**
+     * Bind one non-blocking server socket to any port within a given range.
+     *
+     * @param min the minimum port number allowed
+     * @param max hte maximum port number allowed
+     * @throws XMPPException if binding failed on all allowed ports.
+     */
+    private static ServerSocketChannel bindRangeNonBlocking(int min, int max)
+            throws XMPPException {
+        for (int try_port = min; try_port <= max; try_port++) {
+            ServerSocketChannel channel = null;
+            try {
+                channel = ServerSocketChannel.open();
+                channel.socket().bind(new InetSocketAddress(try_port));
+                channel.configureBlocking(false);
+                return channel;
+            }
+            catch (IOException e) {
+                // failed to bind, try next
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException ioe) {
+                        // ignore
+                    }
+                }
+            }
+        }
+        throw new XMPPException("Unable to bind port, no ports available.");
+    }
+
     protected void unknownOriginMessage(Message message) {
         for (LLServiceStateListener listener : stateListeners) {
             listener.unknownOriginMessage(message);
@@ -575,6 +891,39 @@ public abstract class LLService {
         return presenceDiscoverer.getPresence(serviceName);
     }
 
+    /**
+     * Get the presence information associated with the given service name
+     * without blocking, resolving it in the background if needed.
+     *
+     * @param serviceName the service name which information should be returned.
+     * @return a future completed with the service information, or with null
+     *      if it isn't known.
+     */
+    SettableFuture<LLPresence> getPresenceByServiceNameAsync(String serviceName) {
+        return presenceDiscoverer.getPresenceAsync(serviceName);
+    }
+
+    /**
+     * Get the registry of known presences, which may be queried by status,
+     * JID, entity caps node and TXT values without scanning all presences.
+     *
+     * @return the registry of known presences.
+     */
+    public LLPresenceRegistry getPresenceRegistry() {
+        return presenceDiscoverer.getRegistry();
+    }
+
+    /**
+     * Get the interfaces the service announces and discovers presences on,
+     * each with its own table of discovered presences and traffic counters.
+     *
+     * @return the interfaces of the service, or an empty collection if the
+     *      implementation doesn't keep track of interfaces.
+     */
+    public Collection<LLInterface> getInterfaces() {
+        return presenceDiscoverer.getInterfaces();
+    }
+
     public CollectorWrapper createPacketCollector(PacketFilter filter) {
         CollectorWrapper wrapper = new CollectorWrapper(filter);
         collectorWrappers.add(wrapper);
@@ -595,36 +944,118 @@ public abstract class LLService {
         return connections;
     }
 
+    /**
+     * Returns the connection pool of this service, which controls for how
+     * long and how many idle connections are kept for reuse.
+     *
+     * @return the connection pool.
+     */
+    public LLConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     /**
      * Returns a connection to a given service name.
-     * First checks for an outgoing connection, if noone exists,
-     * try ingoing.
+     * If there are both an outgoing and an ingoing connection, the one
+     * kept according to {@link #keepsOutgoing(String)} is returned.
      *
      * @param serviceName the service name
      * @return a connection associated with the service name or null if no
      * connection is available.
      */
     XMPPLLConnection getConnectionTo(String serviceName) {
-        XMPPLLConnection connection = outgoing.get(serviceName);
-        if (connection != null)
-            return connection;
-        return ingoing.get(serviceName);
+        XMPPLLConnection connection;
+        if (keepsOutgoing(serviceName)) {
+            connection = outgoing.get(serviceName);
+            if (connection == null)
+                connection = ingoing.get(serviceName);
+        }
+        else {
+            connection = ingoing.get(serviceName);
+            if (connection == null)
+                connection = outgoing.get(serviceName);
+        }
+        return connection;
+    }
+
+    /**
+     * Tells which connection to keep when both the local client and the
+     * remote peer have connected to each other. Both peers apply the same
+     * rule, so they agree on the connection to use: the peer with the lower
+     * service name keeps its outgoing connection.
+     *
+     * @param serviceName the service name of the remote peer.
+     * @return true if the outgoing connection is kept, false if the ingoing
+     * connection is kept.
+     */
+    private boolean keepsOutgoing(String serviceName) {
+        return presence.getServiceName().compareTo(serviceName) < 0;
     }
 
     void addIngoingConnection(XMPPLLConnection connection) {
-        ingoing.put(connection.getServiceName(), connection);
+        if (ingoing.put(connection.getServiceName(), connection) == connection)
+            return;
+        evict(connectionPool.add(connection));
+        collapseParallelConnections(connection.getServiceName());
     }
 
     void removeIngoingConnection(XMPPLLConnection connection) {
-        ingoing.remove(connection.getServiceName());
+        ingoing.remove(connection.getServiceName(), connection);
     }
 
     void addOutgoingConnection(XMPPLLConnection connection) {
-        outgoing.put(connection.getServiceName(), connection);
+        if (outgoing.put(connection.getServiceName(), connection) == connection)
+            return;
+        evict(connectionPool.add(connection));
+        collapseParallelConnections(connection.getServiceName());
+    }
+
+    /**
+     * Handle the case of the local client and the remote peer having
+     * connected to each other at the same time. From now on both peers only
+     * send on the kept connection. The redundant connection is closed by the
+     * peer which initiated it, once the stanzas already sent on it have been
+     * written. The end of the stream follows them, so the remote peer
+     * receives them before the connection is closed.
+     *
+     * @param serviceName the service name of the remote peer.
+     */
+    private void collapseParallelConnections(String serviceName) {
+        if (!outgoing.containsKey(serviceName) || !ingoing.containsKey(serviceName))
+            return;
+        // If the ingoing connection is redundant the remote peer closes it.
+        if (keepsOutgoing(serviceName))
+            return;
+
+        XMPPLLConnection redundant = outgoing.get(serviceName);
+        if (redundant != null)
+            redundant.closeWhenDrained();
+    }
+
+    /**
+     * Close a connection evicted from the connection pool. The connection is
+     * closed asynchronously since closing may block for a short while.
+     *
+     * @param connection the evicted connection, or null.
+     */
+    private void evict(final XMPPLLConnection connection) {
+        if (connection == null)
+            return;
+        Runnable task = new Runnable() {
+            public void run() {
+                connection.shutdown();
+            }
+        };
+        try {
+            connector.execute(task);
+        }
+        catch (RejectedExecutionException ree) {
+            task.run();
+        }
     }
 
     void removeOutgoingConnection(XMPPLLConnection connection) {
-        outgoing.remove(connection.getServiceName());
+        outgoing.remove(connection.getServiceName(), connection);
     }
 
     LLChat removeLLChat(String serviceName) {
@@ -661,6 +1092,8 @@ public abstract class LLService {
     /**
      * Returns a XMPPLLConnection to the serviceName.
      * If no established connection exists, a new connection is created.
+     * If a connection to the service name is already being established,
+     * that connection is waited for instead of creating another one.
      * 
      * @param serviceName Service name of the remote client.
      * @return A connection to the given service name.
@@ -668,10 +1101,63 @@ public abstract class LLService {
     public XMPPLLConnection getConnection(String serviceName) throws XMPPException {
         // If a connection exists, return it.
         XMPPLLConnection connection = getConnectionTo(serviceName);
-        if (connection != null)
+        if (connection != null) {
+            connectionPool.recordHit();
+            connectionPool.touch(connection);
             return connection;
+        }
 
-        // If no connection exists, look up the presence and connect according to.
+        connectionPool.recordMiss();
+        return getPendingConnection(serviceName, false).await();
+    }
+
+    /**
+     * Returns the pending connection to the given service name. If there is
+     * none, a new one is created and started, either in the calling thread or
+     * asynchronously.
+     *
+     * @param serviceName the service name of the remote peer.
+     * @param async true if a new connection should be established
+     * asynchronously, false if it should be established by the calling thread.
+     * @return the pending connection.
+     */
+    private PendingConnection getPendingConnection(String serviceName, boolean async) {
+        PendingConnection pending;
+        boolean created = false;
+        synchronized (pendingConnections) {
+            pending = pendingConnections.get(serviceName);
+            if (pending == null) {
+                pending = new PendingConnection(serviceName);
+                pendingConnections.put(serviceName, pending);
+                created = true;
+            }
+        }
+        if (created) {
+            if (async) {
+                try {
+                    connector.execute(pending);
+                }
+                catch (RejectedExecutionException ree) {
+                    // The service has been closed
+                    pending.run();
+                }
+            }
+            else {
+                pending.run();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Create a new connection to the given service name.
+     *
+     * @param serviceName the service name of the remote peer.
+     * @return the established connection.
+     * @throws XMPPException if the connection could not be established.
+     */
+    XMPPLLConnection connect(String serviceName) throws XMPPException {
+        // Look up the presence and connect according to.
         LLPresence remotePresence = getPresenceByServiceName(serviceName);
 
         if (remotePresence == null) {
@@ -680,10 +1166,16 @@ public abstract class LLService {
 
         LLConnectionConfiguration config =
             new LLConnectionConfiguration(presence, remotePresence);
-        connection = new XMPPLLConnection(this, config);
+        XMPPLLConnection connection = new XMPPLLConnection(this, config);
         // Associate the new connection with this service
         addAssociatedConnection(connection);
-        connection.connect();
+        try {
+            connection.connect();
+        }
+        catch (XMPPException xe) {
+            removeAssociatedConnection(connection);
+            throw xe;
+        }
         addOutgoingConnection(connection);
 
         return connection;
@@ -701,20 +1193,135 @@ public abstract class LLService {
 
 
     /**
-     * Send a packet to the remote peer.
+     * Send a packet to the remote peer. If no connection exists, one is
+     * established and the call blocks until the packet has been sent.
      *
      * @param packet the packet to be sent.
      * @throws XMPPException if the packet cannot be sent.
      */
     public void sendPacket(Packet packet) throws XMPPException {
-        getConnection(packet.getTo()).sendPacket(packet);
+        Future<Void> future = sendPacketAsync(packet);
+        try {
+            future.get();
+        }
+        catch (ExecutionException ee) {
+            throw toXMPPException(ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            throw new XMPPException("Interrupted while sending packet.", ie);
+        }
     }
 
     /**
-     * Send an IQ set or get and wait for the response. This function works
-     * different from a normal one-connection IQ request where a packet
-     * collector is created and added to the connection. This function
-     * takes care of (at least) two cases when this doesn't work:
+     * Send a packet to the remote peer without blocking. If no connection
+     * exists, one is established in the background and the packet is queued
+     * until the stream is opened. Packets to the same peer are sent in the
+     * order this method is called, and concurrent sends share a single
+     * connection attempt.
+     *
+     * @param packet the packet to be sent.
+     * @return a future which completes when the packet has been handed to the
+     * connection, or fails with an XMPPException if it could not be sent.
+     */
+    public Future<Void> sendPacketAsync(Packet packet) {
+        return send(packet);
+    }
+
+    /**
+     * Send a packet to the remote peer without blocking.
+     *
+     * @see #sendPacketAsync(Packet)
+     */
+    private SettableFuture<Void> send(Packet packet) {
+        SettableFuture<Void> future = new SettableFuture<Void>();
+        String serviceName = packet.getTo();
+
+        // Queue the packet if a connection is being established, so that
+        // packets sent before the connection was established are sent first.
+        PendingConnection pending = pendingConnections.get(serviceName);
+        if (pending != null && pending.enqueue(packet, future)) {
+            connectionPool.recordMiss();
+            return future;
+        }
+
+        XMPPLLConnection connection = getConnectionTo(serviceName);
+        if (connection != null) {
+            connectionPool.recordHit();
+            connectionPool.touch(connection);
+        }
+        else {
+            connectionPool.recordMiss();
+            pending = getPendingConnection(serviceName, true);
+            if (pending.enqueue(packet, future))
+                return future;
+            // The connection attempt finished in between, use its outcome.
+            try {
+                connection = pending.await();
+            }
+            catch (XMPPException xe) {
+                future.setException(xe);
+                return future;
+            }
+        }
+
+        sendPacket(connection, packet, future);
+        return future;
+    }
+
+    /**
+     * Send a packet on a connection and complete the future accordingly.
+     */
+    private static void sendPacket(XMPPLLConnection connection, Packet packet,
+            SettableFuture<Void> future) {
+        try {
+            connection.sendPacket(packet);
+            future.set(null);
+        }
+        catch (RuntimeException re) {
+            future.setException(new XMPPException("Failed to send packet.", re));
+        }
+    }
+
+    private static XMPPException toXMPPException(Throwable t) {
+        if (t instanceof XMPPException)
+            return (XMPPException) t;
+        return new XMPPException(t);
+    }
+
+    /**
+     * Send an IQ set or get and wait for the response.
+     *
+     * @param request the IQ request.
+     * @return the result or error reply.
+     * @throws XMPPException if the request couldn't be sent or no reply was
+     * received in time.
+     * @see #getIQResponseAsync(IQ)
+     */
+    public IQ getIQResponse(IQ request) throws XMPPException {
+        Future<IQ> future = getIQResponseAsync(request);
+        try {
+            return future.get();
+        }
+        catch (ExecutionException ee) {
+            throw toXMPPException(ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            future.cancel(false);
+            throw new XMPPException("Interrupted while waiting for response.", ie);
+        }
+    }
+
+    /**
+     * Send an IQ set or get without blocking. The returned future is
+     * completed with the response, or fails with an XMPPException if the
+     * request could not be sent or no response was received within the
+     * packet reply timeout after the request was sent.<p>
+     *
+     * This function works different from a normal one-connection IQ request
+     * where a packet collector is created and added to the connection. The
+     * response is looked up by packet ID among the packets received on any
+     * connection associated with this service, which takes care of (at least)
+     * two cases when a single connection doesn't work:
      * <ul>
      *  <li>Consider client A requests something from B. This is done by
      *      A connecting to B (no existing connection is available), then
@@ -724,58 +1331,166 @@ public abstract class LLService {
      *      establish a new connection. This function takes care of this
      *      by listening for the packets on all new connections.</li>
      *  <li>Consider client A and client B concurrently establishes
-     *      connections between them. This will result in two parallell
-     *      connections between the two entities and the two clients may
-     *      choose whatever connection to use when communicating. This
-     *      function takes care of the possibility that if A requests
-     *      something from B using connection #1 and B replies using
-     *      connection #2, the packet will still be collected.</li>
+     *      connections between them. Both clients settle on the same
+     *      connection and the other one is closed, but until then a
+     *      request may be sent on one connection and the reply on the
+     *      other. This function takes care of the possibility that if A
+     *      requests something from B using connection #1 and B replies
+     *      using connection #2, the packet will still be received.</li>
      * </ul>
+     * No thread is used per outstanding request, so a large number of
+     * requests to different peers may be in flight at the same time.
+     *
+     * @param request the IQ request.
+     * @return a future completed with the result or error reply.
      */
-    public IQ getIQResponse(IQ request) throws XMPPException {
-        XMPPLLConnection connection = getConnection(request.getTo());
-
-        // Create a packet collector to listen for a response.
-        // Filter: req.id == rpl.id ^ (rp.iqtype in (result, error))
-        CollectorWrapper collector = createPacketCollector(
-                new AndFilter(
-                    new PacketIDFilter(request.getPacketID()),
-                    new OrFilter(
-                        new IQTypeFilter(IQ.Type.RESULT),
-                        new IQTypeFilter(IQ.Type.ERROR))));
+    public Future<IQ> getIQResponseAsync(IQ request) {
+        final String packetID = request.getPacketID();
+        final SettableFuture<IQ> future = new SettableFuture<IQ>();
+        iqReplies.put(packetID, future);
+        future.addListener(new Runnable() {
+            public void run() {
+                iqReplies.remove(packetID, future);
+            }
+        });
 
-        connection.sendPacket(request);
+        final SettableFuture<Void> sent = send(request);
+        sent.addListener(new Runnable() {
+            public void run() {
+                try {
+                    sent.get();
+                    // Wait for the reply once sent, establishing a connection
+                    // to the peer doesn't count against the reply timeout.
+                    final HashedWheelTimer.Timeout timeout = ConnectionTimer.schedule(new Runnable() {
+                        public void run() {
+                            future.setException(new XMPPException("No response from the remote host."));
+                        }
+                    }, SmackConfiguration.getPacketReplyTimeout(), TimeUnit.MILLISECONDS);
+                    future.addListener(new Runnable() {
+                        public void run() {
+                            timeout.cancel();
+                        }
+                    });
+                }
+                catch (ExecutionException ee) {
+                    future.setException(ee.getCause());
+                }
+                catch (InterruptedException ie) {
+                    // Not possible, the future is completed
+                }
+            }
+        });
+        return future;
+    }
 
-        // Wait up to 5 seconds for a result.
-        IQ result = (IQ) collector.nextResult(
-                SmackConfiguration.getPacketReplyTimeout());
+    /**
+     * Update the presence information announced by the mDNS/DNS-SD daemon.
+     * The presence object stored in the LLService class is updated at once,
+     * and the daemon reannounces the changes.<p>
+     *
+     * Unless {@link SmackConfiguration#getLinkLocalAnnounceDelay()} is 0, the
+     * changes are announced asynchronously after that many milliseconds, so
+     * that changes made meanwhile are announced together. This method then
+     * returns before the changes are announced, and an error announcing them
+     * is thrown by the next call of this method instead, after its changes
+     * have been applied and scheduled to be announced. If the delay is 0,
+     * changes are announced before this method returns. Changes that don't
+     * alter the announced information are not announced.
+     *
+     * @param presence the new presence information
+     * @throws XMPPException if an error occurs announcing the change immediately,
+     * or occurred announcing the previous changes asynchronously.
+     */
+    public void updatePresence(LLPresence presence) throws XMPPException {
+        // Not announced while only partly updated
+        synchronized (this.presence) {
+            this.presence.update(presence);
+        }
 
-        // Stop queuing results
-        collector.cancel();
-        if (result == null) {
-            throw new XMPPException("No response from the remote host.");
+        if (!initiated) {
+            return;
         }
+        int delay = SmackConfiguration.getLinkLocalAnnounceDelay();
+        if (delay == 0) {
+            throwAnnouncementFailure();
+            announcePresence();
+            return;
+        }
+        synchronized (announcementLock) {
+            if (pendingAnnouncement != null) {
+                // Announced together with the pending changes
+                suppressedAnnouncements.incrementAndGet();
+            }
+            else {
+                pendingAnnouncement = ConnectionTimer.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (announcementLock) {
+                            pendingAnnouncement = null;
+                        }
+                        try {
+                            announcePresence();
+                        }
+                        catch (XMPPException xe) {
+                            synchronized (announcementLock) {
+                                announcementFailure = xe;
+                            }
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        throwAnnouncementFailure();
+    }
 
-        return result;
+    /**
+     * Throw the error of the last asynchronous announcement, if it failed
+     * since the previous call.
+     *
+     * @throws XMPPException if the last asynchronous announcement failed.
+     */
+    private void throwAnnouncementFailure() throws XMPPException {
+        XMPPException failure;
+        synchronized (announcementLock) {
+            failure = announcementFailure;
+            announcementFailure = null;
+        }
+        if (failure != null) {
+            throw new XMPPException("Failed to announce presence.", failure);
+        }
     }
 
     /**
-     * Update the presence information announced by the mDNS/DNS-SD daemon.
-     * The presence object stored in the LLService class will be updated
-     * with the new information and the daemon will reannounce the changes.
+     * Announce the current presence information, unless it is identical to the
+     * information last announced.
      *
-     * @param presence the new presence information
      * @throws XMPPException if an error occurs
      */
-    public void updatePresence(LLPresence presence) throws XMPPException {
-        this.presence.update(presence);
-
-        if (initiated) {
-            updateText();
-            reannounceService();
+    private void announcePresence() throws XMPPException {
+        synchronized (presence) {
+            if (done) {
+                return;
+            }
+            if (updateText()) {
+                reannounceService();
+            }
+            else {
+                suppressedAnnouncements.incrementAndGet();
+            }
         }
     }
 
+    /**
+     * Returns the number of presence updates which didn't result in an
+     * announcement of their own, either because they were announced together
+     * with other updates, or because they didn't change the announced
+     * information.
+     *
+     * @return the number of suppressed announcements.
+     */
+    public long getSuppressedAnnouncementCount() {
+        return suppressedAnnouncements.get();
+    }
+
     /**
      * Get current Link-local presence.
      */
@@ -819,6 +1534,7 @@ public abstract class LLService {
                 removeIngoingConnection(connection);
 
             removeAssociatedConnection(connection);
+            connectionPool.remove(connection);
         }
     }
 
@@ -871,6 +1587,89 @@ public abstract class LLService {
         }
     }
 
+    /**
+     * A connection being established to a remote peer. Packets sent to the
+     * peer meanwhile are queued, and flushed in order once the stream has
+     * been opened.
+     */
+    private class PendingConnection implements Runnable {
+        private final String serviceName;
+        private final SettableFuture<XMPPLLConnection> result =
+            new SettableFuture<XMPPLLConnection>();
+        // Queued packets and their futures, null once flushed.
+        private List<Tuple<Packet,SettableFuture<Void>>> queue =
+            new ArrayList<Tuple<Packet,SettableFuture<Void>>>();
+
+        PendingConnection(String serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        /**
+         * Queue a packet to be sent once the connection is established.
+         *
+         * @return false if the queue has already been flushed, in which case
+         * the packet was not queued.
+         */
+        synchronized boolean enqueue(Packet packet, SettableFuture<Void> future) {
+            if (queue == null)
+                return false;
+            queue.add(new Tuple<Packet,SettableFuture<Void>>(packet, future));
+            return true;
+        }
+
+        /**
+         * Wait for the connection to be established.
+         *
+         * @return the established connection.
+         * @throws XMPPException if the connection could not be established.
+         */
+        XMPPLLConnection await() throws XMPPException {
+            try {
+                return result.get();
+            }
+            catch (ExecutionException ee) {
+                throw toXMPPException(ee.getCause());
+            }
+            catch (InterruptedException ie) {
+                throw new XMPPException("Interrupted while connecting.", ie);
+            }
+        }
+
+        public void run() {
+            XMPPLLConnection connection = null;
+            XMPPException failure = null;
+            try {
+                // A connection may have been established since this attempt
+                // was requested, for example by the remote peer.
+                connection = getConnectionTo(serviceName);
+                if (connection == null)
+                    connection = connect(serviceName);
+            }
+            catch (XMPPException xe) {
+                failure = xe;
+            }
+            catch (RuntimeException re) {
+                failure = new XMPPException(re);
+            }
+
+            synchronized (this) {
+                for (Tuple<Packet,SettableFuture<Void>> t : queue) {
+                    if (connection != null)
+                        sendPacket(connection, t.a, t.b);
+                    else
+                        t.b.setException(failure);
+                }
+                queue = null;
+            }
+            pendingConnections.remove(serviceName);
+
+            if (connection != null)
+                result.set(connection);
+            else
+                result.setException(failure);
+        }
+    }
+
     /**
      * A wrapper class to associate a packet filter with a listener.
      */
@@ -948,7 +1747,7 @@ public abstract class LLService {
          *                (in milleseconds).
          * @return the next available packet.
          */
-        public synchronized Packet nextResult(long timeout) {
+        public Packet nextResult(long timeout) {
             Packet packet;
             long waitTime = timeout;
             long start = System.currentTimeMillis();
@@ -975,6 +1774,7 @@ public abstract class LLService {
                     }
                     long now = System.currentTimeMillis();
                     waitTime -= (now - start);
+                    start = now;
                 }
             }
             catch (InterruptedException ie) {
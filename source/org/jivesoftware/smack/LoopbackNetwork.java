@@ -0,0 +1,533 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.util.SettableFuture;
+
+/**
+ * A virtual mDNS/DNS-SD network shared by link-local services in the same
+ * process, see {@link LoopbackService}. Presences registered on the network
+ * are announced to every discoverer on it, and connections between the
+ * services are made over loopback TCP. This makes it possible to run and
+ * measure a large number of link-local services where multicast isn't
+ * available.<p>
+ *
+ * The network simulates the delay of announcements and of resolving the
+ * presence information of an announced service, with an optional random
+ * jitter added to each, as well as the loss of announcements and
+ * resolutions. Like mDNS, announcements are sent three times at doubling
+ * intervals, a lost resolution is queried again, and every discoverer keeps
+ * browsing for presences at doubling intervals, which presences it doesn't
+ * know yet answer. The first interval is the retransmit interval. Goodbyes
+ * are never lost, since there are no record TTLs expiring presences left
+ * behind.<p>
+ *
+ * Events are delivered in order for every discoverer and service name,
+ * regardless of jitter.
+ *
+ * @author Jonas Ådahl
+ */
+public class LoopbackNetwork {
+    static final String HOST = "127.0.0.1";
+
+    // Registered presences, by service name
+    private final ConcurrentMap<String,Registration> registrations =
+        new ConcurrentHashMap<String,Registration>();
+
+    private final Set<LoopbackPresenceDiscoverer> discoverers =
+        new CopyOnWriteArraySet<LoopbackPresenceDiscoverer>();
+
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+
+    private volatile long announceLatency = 0;
+    private volatile long resolveLatency = 0;
+    private volatile long jitter = 0;
+    private volatile double lossRate = 0;
+    private volatile long retransmitInterval = 1000;
+
+    // Number of times announcements are sent, and resolutions queried.
+    private static final int ANNOUNCEMENTS = 3;
+    private static final int QUERIES = 3;
+
+    // Longest interval between browse queries, in retransmit intervals.
+    private static final int MAX_BROWSE_INTERVALS = 3600;
+
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong lost = new AtomicLong(0);
+
+    /**
+     * Creates a new network without latency or loss.
+     */
+    public LoopbackNetwork() {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Smack Link-local Loopback");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the number of milliseconds it takes for an announcement to
+     * reach the discoverers.
+     *
+     * @return the announcement latency in milliseconds.
+     */
+    public long getAnnounceLatency() {
+        return announceLatency;
+    }
+
+    /**
+     * Sets the number of milliseconds it takes for an announcement to reach
+     * the discoverers. Defaults to 0.
+     *
+     * @param announceLatency the announcement latency in milliseconds.
+     */
+    public void setAnnounceLatency(long announceLatency) {
+        if (announceLatency < 0) {
+            throw new IllegalArgumentException("Latency must not be negative.");
+        }
+        this.announceLatency = announceLatency;
+    }
+
+    /**
+     * Returns the number of milliseconds it takes to resolve the information
+     * of an announced presence.
+     *
+     * @return the resolution latency in milliseconds.
+     */
+    public long getResolveLatency() {
+        return resolveLatency;
+    }
+
+    /**
+     * Sets the number of milliseconds it takes to resolve the information of
+     * an announced presence. Defaults to 0.
+     *
+     * @param resolveLatency the resolution latency in milliseconds.
+     */
+    public void setResolveLatency(long resolveLatency) {
+        if (resolveLatency < 0) {
+            throw new IllegalArgumentException("Latency must not be negative.");
+        }
+        this.resolveLatency = resolveLatency;
+    }
+
+    /**
+     * Returns the maximum number of milliseconds randomly added to each
+     * latency.
+     *
+     * @return the jitter in milliseconds.
+     */
+    public long getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Sets the maximum number of milliseconds randomly added to each
+     * latency. Defaults to 0.
+     *
+     * @param jitter the jitter in milliseconds.
+     */
+    public void setJitter(long jitter) {
+        if (jitter < 0) {
+            throw new IllegalArgumentException("Jitter must not be negative.");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns the probability of an announcement or resolution being lost.
+     *
+     * @return the loss rate, between 0 and 1.
+     */
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * Sets the probability of an announcement or resolution being lost.
+     * Defaults to 0.
+     *
+     * @param lossRate the loss rate, between 0 and 1.
+     */
+    public void setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate > 1) {
+            throw new IllegalArgumentException("Loss rate must be between 0 and 1.");
+        }
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Returns the number of milliseconds until an announcement is repeated,
+     * a lost resolution is queried again, or a discoverer browses again the
+     * first time. The interval doubles for every repetition.
+     *
+     * @return the retransmit interval in milliseconds.
+     */
+    public long getRetransmitInterval() {
+        return retransmitInterval;
+    }
+
+    /**
+     * Sets the number of milliseconds until an announcement is repeated, a
+     * lost resolution is queried again, or a discoverer browses again the
+     * first time. Defaults to 1000, like mDNS.
+     *
+     * @param retransmitInterval the retransmit interval in milliseconds.
+     */
+    public void setRetransmitInterval(long retransmitInterval) {
+        if (retransmitInterval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive.");
+        }
+        this.retransmitInterval = retransmitInterval;
+    }
+
+    /**
+     * Returns the number of announcements, resolutions and goodbyes
+     * delivered, or scheduled to be delivered.
+     *
+     * @return the number of delivered messages.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of announcements and resolutions lost.
+     *
+     * @return the number of lost messages.
+     */
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    /**
+     * Returns the number of presences registered on the network.
+     *
+     * @return the number of registered presences.
+     */
+    public int getRegistrationCount() {
+        return registrations.size();
+    }
+
+    /**
+     * Stop delivering announcements. Services still using the network stop
+     * discovering presences.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        discoverers.clear();
+        registrations.clear();
+    }
+
+    /**
+     * Register a presence, renaming it if the name is taken by another
+     * service, and announce it.
+     *
+     * @param owner the service registering the presence.
+     * @param name the preferred service name.
+     * @param port the port of the service.
+     * @param text the TXT records of the presence.
+     * @return the registered service name.
+     */
+    String register(LoopbackService owner, String name, int port, byte[] text) {
+        Registration registration = new Registration(owner, port, text);
+        String registered = name;
+        for (int i = 2; registrations.putIfAbsent(registered, registration) != null; i++) {
+            registered = name + " (" + i + ")";
+        }
+        announce(registered);
+        return registered;
+    }
+
+    /**
+     * Update the TXT records of a registered presence and announce it.
+     */
+    void update(LoopbackService owner, String name, byte[] text) {
+        Registration registration = registrations.get(name);
+        if (registration != null && registration.owner == owner) {
+            registration.text = text;
+            announce(name);
+        }
+    }
+
+    /**
+     * Announce a registered presence to every discoverer.
+     */
+    void announce(String name) {
+        for (LoopbackPresenceDiscoverer discoverer : discoverers) {
+            announce(discoverer, name);
+        }
+    }
+
+    /**
+     * Unregister a presence, telling every discoverer it went offline.
+     */
+    void unregister(LoopbackService owner, String name) {
+        Registration registration = registrations.get(name);
+        if (registration == null || registration.owner != owner ||
+                !registrations.remove(name, registration)) {
+            return;
+        }
+        for (final LoopbackPresenceDiscoverer discoverer : discoverers) {
+            final String removed = name;
+            schedule(discoverer, name, announceLatency, new Runnable() {
+                public void run() {
+                    discoverer.serviceRemoved(removed);
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a discoverer, announcing the presences already registered to it.
+     */
+    void addDiscoverer(LoopbackPresenceDiscoverer discoverer) {
+        discoverers.add(discoverer);
+        for (String name : registrations.keySet()) {
+            announce(discoverer, name);
+        }
+        scheduleBrowse(discoverer, retransmitInterval);
+    }
+
+    void removeDiscoverer(LoopbackPresenceDiscoverer discoverer) {
+        discoverers.remove(discoverer);
+    }
+
+    /**
+     * Resolve the information of a presence, as a discoverer querying it
+     * would. Blocks for the resolution latency, and for the retransmit
+     * intervals if queries are lost.
+     *
+     * @return the presence, or null if it isn't registered or every query was
+     *      lost.
+     */
+    LLPresence resolve(String name) throws InterruptedException {
+        for (int count = 0; ; count++) {
+            Thread.sleep(delay(resolveLatency));
+            if (!isLost()) {
+                break;
+            }
+            if (count + 1 == QUERIES) {
+                return null;
+            }
+            Thread.sleep(retransmitInterval << count);
+        }
+        delivered.incrementAndGet();
+        return lookup(name);
+    }
+
+    private void announce(LoopbackPresenceDiscoverer discoverer, String name) {
+        Registration registration = registrations.get(name);
+        if (registration != null) {
+            announce(discoverer, name, registration, 0);
+        }
+    }
+
+    /**
+     * Announce a registered presence to a discoverer, and schedule repeating
+     * the announcement as long as the presence stays registered.
+     *
+     * @param count the number of times the announcement has been sent.
+     */
+    private void announce(final LoopbackPresenceDiscoverer discoverer, final String name,
+            final Registration registration, final int count) {
+        if (registrations.get(name) != registration || !discoverers.contains(discoverer)) {
+            return;
+        }
+        if (!isLost()) {
+            schedule(discoverer, name, announceLatency, new Runnable() {
+                public void run() {
+                    discoverer.serviceAdded(name);
+                }
+            });
+        }
+        if (count + 1 < ANNOUNCEMENTS) {
+            retransmit(retransmitInterval << count, new Runnable() {
+                public void run() {
+                    announce(discoverer, name, registration, count + 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Browse for presences on behalf of a discoverer. The registered presences
+     * the discoverer doesn't know answer, and the next browse is scheduled
+     * after twice the interval, at most an hour in the default retransmit
+     * interval.
+     *
+     * @param interval milliseconds until the next browse.
+     */
+    private void scheduleBrowse(final LoopbackPresenceDiscoverer discoverer,
+            final long interval) {
+        retransmit(interval, new Runnable() {
+            public void run() {
+                if (!discoverers.contains(discoverer)) {
+                    return;
+                }
+                for (final String name : registrations.keySet()) {
+                    if (!discoverer.knows(name) && !isLost()) {
+                        schedule(discoverer, name, announceLatency, new Runnable() {
+                            public void run() {
+                                discoverer.serviceAdded(name);
+                            }
+                        });
+                    }
+                }
+                scheduleBrowse(discoverer,
+                        Math.min(2 * interval, MAX_BROWSE_INTERVALS * retransmitInterval));
+            }
+        });
+    }
+
+    /**
+     * Schedule the resolution of an announced presence by a discoverer. Lost
+     * queries are repeated.
+     *
+     * @param future a future completed once the resolution has been delivered
+     *      or every query was lost, or null.
+     */
+    void scheduleResolve(LoopbackPresenceDiscoverer discoverer, String name,
+            SettableFuture<Void> future) {
+        scheduleResolve(discoverer, name, future, 0);
+    }
+
+    private void scheduleResolve(final LoopbackPresenceDiscoverer discoverer,
+            final String name, final SettableFuture<Void> future, final int count) {
+        if (isLost()) {
+            if (count + 1 < QUERIES && discoverers.contains(discoverer) &&
+                    retransmit(retransmitInterval << count, new Runnable() {
+                        public void run() {
+                            scheduleResolve(discoverer, name, future, count + 1);
+                        }
+                    })) {
+                return;
+            }
+            if (future != null) {
+                future.set(null);
+            }
+            return;
+        }
+        boolean scheduled = schedule(discoverer, name, resolveLatency, new Runnable() {
+            public void run() {
+                LLPresence presence = lookup(name);
+                if (presence != null) {
+                    discoverer.serviceResolved(name, presence);
+                }
+                if (future != null) {
+                    future.set(null);
+                }
+            }
+        });
+        if (!scheduled && future != null) {
+            future.set(null);
+        }
+    }
+
+    /**
+     * Schedule a repeated transmission.
+     *
+     * @return false if the network is closed.
+     */
+    private boolean retransmit(long delay, Runnable task) {
+        try {
+            scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException ree) {
+            // Network closed
+            return false;
+        }
+    }
+
+    private LLPresence lookup(String name) {
+        Registration registration = registrations.get(name);
+        if (registration == null) {
+            return null;
+        }
+        return LLPresenceCodec.decode(name, HOST, registration.port, registration.text);
+    }
+
+    /**
+     * Schedule an event for a discoverer, after any event already scheduled
+     * for the same service name.
+     *
+     * @return false if the network is closed.
+     */
+    private boolean schedule(LoopbackPresenceDiscoverer discoverer, String name,
+            long latency, Runnable event) {
+        long time = discoverer.nextDeliveryTime(name,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay(latency)));
+        delivered.incrementAndGet();
+        try {
+            scheduler.schedule(event, time - System.nanoTime(), TimeUnit.NANOSECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException ree) {
+            // Network closed
+            return false;
+        }
+    }
+
+    private long delay(long latency) {
+        long max = jitter;
+        if (max == 0) {
+            return latency;
+        }
+        return latency + (long) (random.nextDouble() * max);
+    }
+
+    private boolean isLost() {
+        double rate = lossRate;
+        if (rate > 0 && random.nextDouble() < rate) {
+            lost.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A presence registered on the network.
+     */
+    private static class Registration {
+        final LoopbackService owner;
+        final int port;
+        volatile byte[] text;
+
+        Registration(LoopbackService owner, int port, byte[] text) {
+            this.owner = owner;
+            this.port = port;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.SettableFuture;
+
+/**
+ * An implementation of LLPresenceDiscoverer discovering the presences
+ * registered on a {@link LoopbackNetwork}. Announced presences are resolved
+ * right away, unless presences are resolved on demand, see
+ * {@link SmackConfiguration#isLinkLocalResolveOnDemand()}.
+ *
+ * @author Jonas Ådahl
+ */
+class LoopbackPresenceDiscoverer extends LLPresenceDiscoverer {
+    private final LoopbackNetwork network;
+    private final LLInterface iface;
+    private final boolean onDemand;
+
+    // Announced presences waiting to be resolved on demand.
+    private final ConcurrentMap<String,Boolean> unresolved =
+        new ConcurrentHashMap<String,Boolean>();
+
+    // Time of the last event scheduled for each service name, in
+    // nanoseconds, keeping the events in order.
+    private final Map<String,Long> deliveryTimes = new HashMap<String,Long>();
+
+    // Least time between two events for the same service name.
+    private static final long DELIVERY_GAP = TimeUnit.MILLISECONDS.toNanos(1);
+
+    LoopbackPresenceDiscoverer(LoopbackNetwork network) {
+        this.network = network;
+        try {
+            iface = new LLInterface(InetAddress.getByName(LoopbackNetwork.HOST));
+        }
+        catch (UnknownHostException uhe) {
+            // A literal address is never looked up
+            throw new IllegalStateException(uhe);
+        }
+        onDemand = SmackConfiguration.isLinkLocalResolveOnDemand();
+        network.addDiscoverer(this);
+    }
+
+    public Collection<LLInterface> getInterfaces() {
+        return Collections.singletonList(iface);
+    }
+
+    /**
+     * Add a presence listener. Presences waiting to be resolved on demand are
+     * resolved so that the listener can be notified about them.
+     *
+     * @param listener the listener to be notified.
+     */
+    public void addPresenceListener(LLPresenceListener listener) {
+        super.addPresenceListener(listener);
+        for (String name : unresolved.keySet()) {
+            if (unresolved.remove(name) != null) {
+                iface.queried();
+                network.scheduleResolve(this, name, null);
+            }
+        }
+    }
+
+    protected boolean resolvePresence(String name) {
+        if (unresolved.remove(name) == null) {
+            return false;
+        }
+        iface.queried();
+        try {
+            LLPresence presence = network.resolve(name);
+            if (presence != null) {
+                presenceInfoAdded(iface, name, presence);
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    protected SettableFuture<Void> resolvePresenceAsync(String name) {
+        if (unresolved.remove(name) == null) {
+            return null;
+        }
+        SettableFuture<Void> future = new SettableFuture<Void>();
+        iface.queried();
+        network.scheduleResolve(this, name, future);
+        return future;
+    }
+
+    /**
+     * Stop discovering presences.
+     */
+    void close() {
+        network.removeDiscoverer(this);
+        unresolved.clear();
+    }
+
+    /**
+     * Returns true if a presence is known, or waiting to be resolved on demand.
+     */
+    boolean knows(String name) {
+        return iface.getRegistry().get(name) != null || unresolved.containsKey(name);
+    }
+
+    void serviceAdded(String name) {
+        if (onDemand && listeners.isEmpty()) {
+            unresolved.put(name, Boolean.TRUE);
+        }
+        else {
+            iface.queried();
+            network.scheduleResolve(this, name, null);
+        }
+    }
+
+    void serviceResolved(String name, LLPresence presence) {
+        unresolved.remove(name);
+        presenceInfoAdded(iface, name, presence);
+    }
+
+    void serviceRemoved(String name) {
+        unresolved.remove(name);
+        presenceRemoved(iface, name);
+        synchronized (this) {
+            Long last = deliveryTimes.get(name);
+            if (last != null && last.longValue() <= System.nanoTime()) {
+                deliveryTimes.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the time an event for a service name may be delivered at, after
+     * the events already scheduled for it.
+     *
+     * @param name the service name.
+     * @param time the preferred delivery time, as given by System.nanoTime().
+     * @return the delivery time.
+     */
+    synchronized long nextDeliveryTime(String name, long time) {
+        Long last = deliveryTimes.get(name);
+        if (last != null && last.longValue() + DELIVERY_GAP > time) {
+            time = last.longValue() + DELIVERY_GAP;
+        }
+        deliveryTimes.put(name, time);
+        return time;
+    }
+}
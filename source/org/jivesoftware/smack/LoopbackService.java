@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.Arrays;
+
+/**
+ * Implements a LLService on a {@link LoopbackNetwork} shared by the services
+ * of the same process instead of mDNS/DNS-SD. Services discover each other
+ * through the network and connect over loopback TCP, which makes it possible
+ * to test and benchmark a large number of link-local services on one machine
+ * without multicast. Unlike other services, a loopback service listens on
+ * any free port by default, see {@link #setPortRange(int, int)}.
+ *
+ * @author Jonas Ådahl
+ */
+public class LoopbackService extends LLService {
+    private final LoopbackNetwork network;
+    private final LoopbackPresenceDiscoverer presenceDiscoverer;
+
+    // TXT records last registered on the network, null if unregistered.
+    private byte[] text;
+    private String registeredName;
+
+    private LoopbackService(LLPresence presence, LoopbackNetwork network,
+            LoopbackPresenceDiscoverer presenceDiscoverer) {
+        super(presence, presenceDiscoverer);
+        this.network = network;
+        this.presenceDiscoverer = presenceDiscoverer;
+        setPortRange(0, 0);
+    }
+
+    /**
+     * Instantiate a new LoopbackService on a network. The service starts to
+     * listen for connections once initiated.
+     *
+     * @param presence the presence information that should be used.
+     * @param network the network to announce and discover presences on.
+     */
+    public static LoopbackService create(LLPresence presence, LoopbackNetwork network) {
+        return new LoopbackService(presence, network, new LoopbackPresenceDiscoverer(network));
+    }
+
+    /**
+     * Returns the network the service announces and discovers presences on.
+     *
+     * @return the network of the service.
+     */
+    public LoopbackNetwork getNetwork() {
+        return network;
+    }
+
+    @Override
+    public void close() {
+        makeUnavailable();
+        super.close();
+        presenceDiscoverer.close();
+    }
+
+    protected synchronized boolean updateText() {
+        byte[] bytes = presence.getTextBytes();
+        if (Arrays.equals(text, bytes)) {
+            return false;
+        }
+        text = bytes;
+        return true;
+    }
+
+    /**
+     * Register the presence on the network. If the service name is taken,
+     * the presence is renamed.
+     */
+    protected synchronized void registerService() throws XMPPException {
+        text = presence.getTextBytes();
+        String name = presence.getServiceName();
+        registeredName = network.register(this, name, presence.getPort(), text);
+        presence.setServiceName(registeredName);
+        if (!registeredName.equals(name)) {
+            serviceNameChanged(registeredName, name);
+        }
+        getInterface().announced();
+    }
+
+    /**
+     * Announce the current presence information on the network.
+     */
+    protected synchronized void reannounceService() throws XMPPException {
+        if (registeredName != null) {
+            network.update(this, registeredName, text);
+            getInterface().announced();
+        }
+    }
+
+    /**
+     * Unregister the presence, making the client unavailable.
+     */
+    public synchronized void makeUnavailable() {
+        if (registeredName != null) {
+            network.unregister(this, registeredName);
+            getInterface().announced();
+            registeredName = null;
+            text = null;
+        }
+    }
+
+    private LLInterface getInterface() {
+        return presenceDiscoverer.getInterfaces().iterator().next();
+    }
+}
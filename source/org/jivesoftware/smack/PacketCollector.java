@@ -23,7 +23,11 @@ package org.jivesoftware.smack;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
 
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Provides a mechanism to collect packets into a result queue that pass a
@@ -33,7 +37,11 @@ import java.util.LinkedList;
  * result.<p>
  *
  * Each packet collector will queue up to 2^16 packets for processing before
- * older packets are automatically dropped.
+ * older packets are automatically dropped.<p>
+ *
+ * The result queue is lock-free; packets are added by the reader without
+ * blocking, and threads waiting for a result are parked until a packet
+ * arrives.
  *
  * @see XMPPConnection#createPacketCollector(PacketFilter)
  * @author Matt Tucker
@@ -48,10 +56,16 @@ public class PacketCollector {
     private static final int MAX_PACKETS = 65536;
 
     private PacketFilter packetFilter;
-    private LinkedList<Packet> resultQueue;
+    private final Queue<Packet> resultQueue = new ConcurrentLinkedQueue<Packet>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    // Threads parked in nextResult.
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
     private AbstractPacketReader packetReader;
-    private boolean cancelled = false;
-    private Object lock = new Object();
+    private volatile boolean cancelled = false;
+    // Lock notified about new packets, in addition to the parked threads.
+    private volatile Object lock = null;
+    // Packet ID the reader routes packets to this collector by, if any.
+    String routedPacketID = null;
 
     /**
      * Creates a new packet collector. If the packet filter is <tt>null</tt>, then
@@ -63,21 +77,23 @@ public class PacketCollector {
     protected PacketCollector(AbstractPacketReader packetReader, PacketFilter packetFilter) {
         this.packetReader = packetReader;
         this.packetFilter = packetFilter;
-        this.resultQueue = new LinkedList<Packet>();
     }
 
     /**
-     * Set the lock used for notifying about new packages.
+     * Set a lock to be notified about new packages. Used when one thread waits
+     * for results from several collectors.
      *
      * @param lock the new lock object.
      */
-    public synchronized void setLock(Object lock) {
+    public void setLock(Object lock) {
         Object oldLock = this.lock;
         this.lock = lock;
 
         // release the threads waiting for a notify on the old lock
-        synchronized (oldLock) {
-            oldLock.notifyAll();
+        if (oldLock != null) {
+            synchronized (oldLock) {
+                oldLock.notifyAll();
+            }
         }
     }
 
@@ -121,80 +137,88 @@ public class PacketCollector {
      * @return the next packet result, or <tt>null</tt> if there are no more
      *      results.
      */
-    public synchronized Packet pollResult() {
-        if (resultQueue.isEmpty()) {
-            return null;
-        }
-        else {
-            return resultQueue.removeLast();
+    public Packet pollResult() {
+        Packet packet = resultQueue.poll();
+        if (packet != null) {
+            size.decrementAndGet();
         }
+        return packet;
     }
 
     /**
      * Returns the next available packet. The method call will block (not return)
-     * until a packet is available.
+     * until a packet is available. Interrupting the calling thread doesn't stop
+     * the wait, but its interrupt status is set again before returning.
      *
      * @return the next available packet.
      */
     public Packet nextResult() {
-        // Wait indefinitely until there is a result to return.
-        while (resultQueue.isEmpty()) {
-            try {
-                synchronized (lock) {
-                    lock.wait();
+        Packet packet = pollResult();
+        if (packet != null) {
+            return packet;
+        }
+        Thread current = Thread.currentThread();
+        boolean interrupted = false;
+        waiters.add(current);
+        try {
+            // Wait indefinitely until there is a result to return. The interrupt
+            // status is cleared while waiting, since park() returns at once while
+            // it is set.
+            while ((packet = pollResult()) == null) {
+                if (Thread.interrupted()) {
+                    interrupted = true;
                 }
+                LockSupport.park();
             }
-            catch (InterruptedException ie) {
-                // Ignore.
+        }
+        finally {
+            waiters.remove(current);
+            if (interrupted) {
+                current.interrupt();
             }
         }
-        return resultQueue.removeLast();
+        return packet;
     }
 
     /**
      * Returns the next available packet. The method call will block (not return)
      * until a packet is available or the <tt>timeout</tt> has elapased. If the
-     * timeout elapses without a result, <tt>null</tt> will be returned.
+     * timeout elapses without a result, or the calling thread is interrupted,
+     * <tt>null</tt> will be returned.
      *
      * @param timeout the amount of time to wait for the next packet (in milleseconds).
      * @return the next available packet.
      */
     public Packet nextResult(long timeout) {
-        // Wait up to the specified amount of time for a result.
-        if (resultQueue.isEmpty()) {
-            long waitTime = timeout;
-            long start = System.currentTimeMillis();
-            try {
-                // Keep waiting until the specified amount of time has elapsed, or
-                // a packet is available to return.
-                while (resultQueue.isEmpty()) {
-                    if (waitTime <= 0) {
-                        break;
-                    }
-                    synchronized (lock) {
-                        lock.wait(waitTime);
-                    }
-                    long now = System.currentTimeMillis();
-                    waitTime -= (now - start);
-                    start = now;
+        // There's already a packet waiting, so return it.
+        Packet packet = pollResult();
+        if (packet != null || timeout <= 0) {
+            return packet;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        // Register before polling again, so that a packet added in between
+        // unparks this thread.
+        waiters.add(current);
+        try {
+            // Keep waiting until the specified amount of time has elapsed, or
+            // a packet is available to return.
+            while ((packet = pollResult()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
                 }
-            }
-            catch (InterruptedException ie) {
-                // Ignore.
-            }
-            // Still haven't found a result, so return null.
-            if (resultQueue.isEmpty()) {
-                return null;
-            }
-            // Return the packet that was found.
-            else {
-                return resultQueue.removeLast();
+                if (Thread.interrupted()) {
+                    current.interrupt();
+                    break;
+                }
+                LockSupport.parkNanos(remaining);
             }
         }
-        // There's already a packet waiting, so return it.
-        else {
-            return resultQueue.removeLast();
+        finally {
+            waiters.remove(current);
         }
+        return packet;
     }
 
     /**
@@ -203,20 +227,26 @@ public class PacketCollector {
      *
      * @param packet the packet to process.
      */
-    protected synchronized void processPacket(Packet packet) {
+    protected void processPacket(Packet packet) {
         if (packet == null) {
             return;
         }
         if (packetFilter == null || packetFilter.accept(packet)) {
             // If the max number of packets has been reached, remove the oldest one.
-            if (resultQueue.size() == MAX_PACKETS) {
-                resultQueue.removeLast();
+            if (size.incrementAndGet() > MAX_PACKETS) {
+                pollResult();
             }
             // Add the new packet.
-            resultQueue.addFirst(packet);
+            resultQueue.add(packet);
             // Notify waiting threads a result is available.
-            synchronized (lock) {
-                lock.notifyAll();
+            for (Thread waiter : waiters) {
+                LockSupport.unpark(waiter);
+            }
+            Object lock = this.lock;
+            if (lock != null) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
             }
         }
     }
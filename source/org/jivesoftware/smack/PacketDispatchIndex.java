@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.filter.FilterKey;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable index of items, such as packet listeners, by the keys of their
+ * packet filters. Looking up a packet gives the items whose filters may accept
+ * it: those indexed by one of the keys of the packet, and those whose filters
+ * have no keys. The filters of the candidates still have to be evaluated.
+ *
+ * @param <T> the type of the indexed items.
+ * @see org.jivesoftware.smack.filter.KeyedPacketFilter
+ * @author Jonas Ådahl
+ */
+final class PacketDispatchIndex<T> {
+
+    private final Map<FilterKey, List<T>> indexed = new HashMap<FilterKey, List<T>>();
+    private final List<T> unindexed = new ArrayList<T>();
+    // Items indexed by several keys, which a packet may have more than one of
+    private final Set<T> multiplyIndexed = new HashSet<T>();
+    private final Set<FilterKey.Kind> kinds = EnumSet.noneOf(FilterKey.Kind.class);
+
+    /**
+     * Compiles an index.
+     *
+     * @param filters the items to index and their filters. A null filter
+     *      accepts every packet.
+     */
+    PacketDispatchIndex(Map<T, PacketFilter> filters) {
+        for (Map.Entry<T, PacketFilter> entry : filters.entrySet()) {
+            T item = entry.getKey();
+            Collection<FilterKey> keys = FilterKey.getKeys(entry.getValue());
+            if (keys == null) {
+                unindexed.add(item);
+                continue;
+            }
+            if (keys.size() > 1) {
+                multiplyIndexed.add(item);
+            }
+            for (FilterKey key : keys) {
+                List<T> items = indexed.get(key);
+                if (items == null) {
+                    items = new ArrayList<T>(1);
+                    indexed.put(key, items);
+                }
+                items.add(item);
+                kinds.add(key.getKind());
+            }
+        }
+    }
+
+    /**
+     * Returns the items whose filters may accept a packet, each once.
+     *
+     * @param packet the packet.
+     * @return the candidate items.
+     */
+    Collection<T> getCandidates(Packet packet) {
+        if (indexed.isEmpty()) {
+            return unindexed;
+        }
+
+        List<T> candidates = new ArrayList<T>(unindexed);
+        Set<T> added = null;
+        for (FilterKey key : FilterKey.getKeys(packet, kinds)) {
+            List<T> items = indexed.get(key);
+            if (items == null) {
+                continue;
+            }
+            for (T item : items) {
+                if (multiplyIndexed.contains(item)) {
+                    if (added == null) {
+                        added = new HashSet<T>();
+                    }
+                    if (!added.add(item)) {
+                        continue;
+                    }
+                }
+                candidates.add(item);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the number of items whose filters have no keys, and are
+     * candidates for every packet.
+     *
+     * @return the number of unindexed items.
+     */
+    int getUnindexedCount() {
+        return unindexed.size();
+    }
+
+    static <T> PacketDispatchIndex<T> empty() {
+        return new PacketDispatchIndex<T>(Collections.<T, PacketFilter>emptyMap());
+    }
+}
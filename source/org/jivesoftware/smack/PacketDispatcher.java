@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+/**
+ * Strategy for delivering received packets to packet listeners. A connection
+ * hands the dispatcher a task for each packet, keyed by the connection and the
+ * bare JID of the sender, and a task of its own for each listener registered
+ * as isolated.
+ * Tasks with equal keys must be executed one at a time in the order they
+ * were dispatched, while tasks with different keys may run in parallel.<p>
+ *
+ * A connection without a dispatcher set uses a thread of its own, executing
+ * all tasks in order. A dispatcher may be shared by many connections, and is
+ * not shut down when they are closed.
+ *
+ * @see AbstractConnection#setPacketDispatcher(PacketDispatcher)
+ * @see PooledPacketDispatcher
+ * @author Jonas Ådahl
+ */
+public interface PacketDispatcher {
+
+    /**
+     * Executes a task delivering a packet to listeners.
+     *
+     * @param key the ordering key of the task.
+     * @param task the task.
+     */
+    void execute(Object key, Runnable task);
+}
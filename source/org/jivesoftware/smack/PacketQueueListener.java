@@ -0,0 +1,58 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Listener notified about the state of the queue of packets waiting to be
+ * written to a connection. Used to detect peers that don't keep up, so that
+ * the application can shed load before sending threads are blocked. The
+ * methods are called by the sending thread and should return quickly.
+ *
+ * @see PacketQueuePolicy#addPacketQueueListener(PacketQueueListener)
+ * @author Jonas Ådahl
+ */
+public interface PacketQueueListener {
+
+    /**
+     * A packet was added to the queue.
+     *
+     * @param connection the connection the packet is to be sent on.
+     * @param depth the number of packets in the queue after adding the packet.
+     * @param latency the nanoseconds the sending thread waited for room in
+     *      the queue.
+     */
+    public void packetQueued(AbstractConnection connection, int depth, long latency);
+
+    /**
+     * The number of queued packets reached the high watermark. Not notified
+     * again until the queue has gone below the high watermark.
+     *
+     * @param connection the connection whose queue is filling up.
+     * @param depth the number of packets in the queue.
+     */
+    public void highWatermarkReached(AbstractConnection connection, int depth);
+
+    /**
+     * A low priority packet was dropped since the queue was full.
+     *
+     * @param connection the connection the packet was to be sent on.
+     * @param packet the dropped packet.
+     */
+    public void packetDropped(AbstractConnection connection, Packet packet);
+}
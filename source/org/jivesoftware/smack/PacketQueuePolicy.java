@@ -0,0 +1,274 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Policy of the queue of packets waiting to be written to a connection. The
+ * policy controls the size of the queue and what happens when a packet is sent
+ * while the queue is full, which happens when the remote end doesn't read fast
+ * enough:
+ * <ul>
+ *   <li>{@link Overflow#BLOCK} - the sending thread waits for room in the queue,
+ *       at most the block timeout if set. This is the default.</li>
+ *   <li>{@link Overflow#FAIL} - the packet is not sent, and an
+ *       IllegalStateException is thrown to the sending thread.</li>
+ *   <li>{@link Overflow#DROP_LOW_PRIORITY} - the oldest queued low priority packet,
+ *       such as an availability presence or chat state notification, is dropped to
+ *       make room. If the new packet is of low priority itself and no queued one is,
+ *       the new packet is dropped. Otherwise the sending thread waits as with BLOCK.</li>
+ * </ul>
+ * If waiting for room in the queue times out, an IllegalStateException is thrown
+ * to the sending thread.<p>
+ *
+ * Non-blocking link-local connections have no queue, and write packets directly
+ * to their channel. There the policy applies to the packets written but still
+ * pending in the channel. Since these are already serialized, DROP_LOW_PRIORITY
+ * only drops the new packet if it is of low priority.<p>
+ *
+ * Changes of the capacity take effect the next time the connection is connected.
+ *
+ * @see AbstractConnection#getPacketQueuePolicy()
+ * @author Jonas Ådahl
+ */
+public class PacketQueuePolicy {
+
+    /**
+     * What to do when a packet is sent while the queue is full.
+     */
+    public enum Overflow {
+        BLOCK,
+        FAIL,
+        DROP_LOW_PRIORITY
+    }
+
+    private static final String CHAT_STATES_NAMESPACE = "http://jabber.org/protocol/chatstates";
+    private static final String MUC_NAMESPACE = "http://jabber.org/protocol/muc";
+
+    /**
+     * Filter accepting broadcast availability presences, and messages without
+     * body only carrying a chat state notification. Subscription, unavailable,
+     * directed and multi-user chat presences are never dropped, since a later
+     * presence doesn't replace them.
+     */
+    private static final PacketFilter DEFAULT_LOW_PRIORITY_FILTER = new PacketFilter() {
+        public boolean accept(Packet packet) {
+            if (packet instanceof Presence) {
+                Presence presence = (Presence) packet;
+                if (presence.getType() != Presence.Type.available || presence.getTo() != null) {
+                    return false;
+                }
+                for (PacketExtension extension : presence.getExtensions()) {
+                    String namespace = extension.getNamespace();
+                    if (namespace != null && namespace.startsWith(MUC_NAMESPACE)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (packet instanceof Message) {
+                Message message = (Message) packet;
+                return message.getBody() == null && message.getSubject() == null
+                        && message.getExtension(CHAT_STATES_NAMESPACE) != null;
+            }
+            return false;
+        }
+    };
+
+    private volatile int capacity = 500;
+    private volatile Overflow overflow = Overflow.BLOCK;
+    private volatile long blockTimeout = 0;
+    private volatile int highWatermark = 400;
+    private volatile PacketFilter lowPriorityFilter = DEFAULT_LOW_PRIORITY_FILTER;
+
+    private final Set<PacketQueueListener> listeners =
+        new CopyOnWriteArraySet<PacketQueueListener>();
+
+    /**
+     * Returns the maximum number of packets in the queue.
+     *
+     * @return the capacity of the queue.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the maximum number of packets in the queue. The default is 500.
+     *
+     * @param capacity the capacity of the queue.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns what happens when a packet is sent while the queue is full.
+     *
+     * @return the overflow policy.
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Sets what happens when a packet is sent while the queue is full.
+     *
+     * @param overflow the overflow policy.
+     */
+    public void setOverflow(Overflow overflow) {
+        if (overflow == null) {
+            throw new NullPointerException("Overflow policy is null.");
+        }
+        this.overflow = overflow;
+    }
+
+    /**
+     * Returns the number of milliseconds a sending thread waits for room in
+     * the queue, or 0 if it waits until there is room.
+     *
+     * @return the block timeout in milliseconds.
+     */
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds a sending thread waits for room in the
+     * queue before failing. The default is 0, which means waiting until
+     * there is room.
+     *
+     * @param blockTimeout the block timeout in milliseconds, or 0.
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        if (blockTimeout < 0) {
+            throw new IllegalArgumentException("Timeout can't be negative.");
+        }
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * Returns the number of queued packets at which listeners are notified.
+     *
+     * @return the high watermark.
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Sets the number of queued packets at which listeners are notified that
+     * the queue is filling up. The default is 400.
+     *
+     * @param highWatermark the high watermark.
+     */
+    public void setHighWatermark(int highWatermark) {
+        if (highWatermark <= 0) {
+            throw new IllegalArgumentException("High watermark must be positive.");
+        }
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Sets the filter deciding which packets may be dropped by the
+     * {@link Overflow#DROP_LOW_PRIORITY} policy. By default broadcast availability
+     * presences, and messages only carrying a chat state notification, are of
+     * low priority.
+     *
+     * @param filter the filter accepting low priority packets.
+     */
+    public void setLowPriorityFilter(PacketFilter filter) {
+        if (filter == null) {
+            throw new NullPointerException("Filter is null.");
+        }
+        this.lowPriorityFilter = filter;
+    }
+
+    /**
+     * Returns true if a packet is of low priority, and may be dropped.
+     *
+     * @param packet the packet.
+     * @return true if the packet is of low priority.
+     */
+    public boolean isLowPriority(Packet packet) {
+        return lowPriorityFilter.accept(packet);
+    }
+
+    /**
+     * Add a listener notified about the state of the queue.
+     *
+     * @param listener the listener.
+     */
+    public void addPacketQueueListener(PacketQueueListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a queue listener.
+     *
+     * @param listener the listener.
+     */
+    public void removePacketQueueListener(PacketQueueListener listener) {
+        listeners.remove(listener);
+    }
+
+    void notifyPacketQueued(AbstractConnection connection, int depth, long latency) {
+        for (PacketQueueListener listener : listeners) {
+            try {
+                listener.packetQueued(connection, depth, latency);
+            }
+            catch (Exception e) {
+                // Catch and print any exception so we can recover
+                // from a faulty listener
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void notifyHighWatermarkReached(AbstractConnection connection, int depth) {
+        for (PacketQueueListener listener : listeners) {
+            try {
+                listener.highWatermarkReached(connection, depth);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void notifyPacketDropped(AbstractConnection connection, Packet packet) {
+        for (PacketQueueListener listener : listeners) {
+            try {
+                listener.packetDropped(connection, packet);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -22,6 +22,8 @@ package org.jivesoftware.smack;
 
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.util.HashedWheelTimer;
+import org.jivesoftware.smack.util.UTF8Writer;
 
 import java.io.IOException;
 import java.io.Writer;
@@ -29,31 +31,62 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Writes packets to a XMPP server. Packets are sent using a dedicated thread. Packet
  * interceptors can be registered to dynamically modify packets before they're actually
- * sent. Packet listeners can be registered to listen for all outgoing packets.
+ * sent. Packet listeners can be registered to listen for all outgoing packets.<p>
+ *
+ * The writer thread writes all packets queued at the time, up to
+ * {@link SmackConfiguration#getPacketWriterBatchSize()}, before flushing, so that a
+ * burst of packets results in few writes to the socket.
  *
  * @author Matt Tucker
  */
 class PacketWriter {
 
     private Thread writerThread;
-    private Thread keepAliveThread;
+    // The current keep-alive task and its timeout. Guarded by keepAliveLock.
+    private KeepAliveTask keepAliveTask;
+    private HashedWheelTimer.Timeout keepAliveTimeout;
+    private final Object keepAliveLock = new Object();
     private Writer writer;
     private AbstractConnection connection;
     private final BlockingQueue<Packet> queue;
-    private boolean done;
+    private final PacketQueuePolicy policy;
+    private volatile boolean done;
+
+    // True while the queue is above the high watermark of the policy.
+    private final AtomicBoolean aboveHighWatermark = new AtomicBoolean(false);
+
+    /**
+     * True if packets are queued and written by a dedicated writer thread. If false,
+     * packets are written directly by the sending thread, which requires a writer
+     * that never blocks, such as the writer of a non-blocking link-local channel.
+     */
+    private final boolean threaded;
+
+    // The channel written to directly when not threaded, if any. The queue
+    // policy is applied to the packets pending in the channel.
+    private final LLChannel channel;
     
     private final Map<PacketListener, ListenerWrapper> listeners =
             new ConcurrentHashMap<PacketListener, ListenerWrapper>();
 
     /**
-     * Timestamp when the last stanza was sent to the server. This information is used
-     * by the keep alive process to only send heartbeats when the connection has been idle.
+     * Timestamp when the last stanza was sent to the server, as given by System.nanoTime().
+     * This information is used by the keep alive process to only send heartbeats when the
+     * connection has been idle.
      */
-    private long lastActive = System.currentTimeMillis();
+    private volatile long lastActive = System.nanoTime();
+
+    // Statistics of the stanzas written and the number of flushes needed.
+    private final AtomicLong stanzaCount = new AtomicLong(0);
+    private final AtomicLong flushCount = new AtomicLong(0);
+    private volatile int largestBatch = 0;
 
     /**
      * List of PacketInterceptors that will be notified when a new packet is about to be
@@ -69,8 +102,24 @@ class PacketWriter {
      * @param connection the connection.
      */
     protected PacketWriter(AbstractConnection connection) {
-        this.queue = new ArrayBlockingQueue<Packet>(500, true);
+        this(connection, null);
+    }
+
+    /**
+     * Creates a new packet writer with the specified connection.
+     *
+     * @param connection the connection.
+     * @param channel the non-blocking channel packets should be written
+     *      directly to by the sending thread, or null if they should be written
+     *      by a dedicated writer thread. Packets pending in the channel are
+     *      subject to the queue policy of the connection like queued packets.
+     */
+    PacketWriter(AbstractConnection connection, LLChannel channel) {
+        this.policy = connection.getPacketQueuePolicy();
+        this.queue = new ArrayBlockingQueue<Packet>(policy.getCapacity(), true);
         this.connection = connection;
+        this.channel = channel;
+        this.threaded = channel == null;
         init();
     }
 
@@ -82,19 +131,24 @@ class PacketWriter {
         this.writer = connection.writer;
         done = false;
 
-        writerThread = new Thread() {
-            public void run() {
-                writePackets(this);
-            }
-        };
-        writerThread.setName("Smack Packet Writer (" + connection.connectionCounterValue + ")");
-        writerThread.setDaemon(true);
+        if (threaded) {
+            writerThread = new Thread() {
+                public void run() {
+                    writePackets(this);
+                }
+            };
+            writerThread.setName("Smack Packet Writer (" + connection.connectionCounterValue + ")");
+            writerThread.setDaemon(true);
+        }
     }
 
     /**
-     * Sends the specified packet to the server.
+     * Sends the specified packet to the server. If the queue of the writer is
+     * full, the packet is handled as given by the queue policy of the connection.
      *
      * @param packet the packet to send.
+     * @throws IllegalStateException if the queue is full and the packet can't be
+     *      queued according to the queue policy.
      */
     public void sendPacket(Packet packet) {
         if (!done) {
@@ -102,13 +156,35 @@ class PacketWriter {
             // may modify the content of the packet.
             processInterceptors(packet);
 
+            long start = System.nanoTime();
+            if (!threaded) {
+                try {
+                    if (!reserveDirect(packet)) {
+                        // The packet was dropped by the policy
+                        return;
+                    }
+                }
+                catch (InterruptedException ie) {
+                    ie.printStackTrace();
+                    return;
+                }
+                writeDirect(packet);
+                notifyQueued(System.nanoTime() - start);
+                processListeners(packet);
+                return;
+            }
+
             try {
-                queue.put(packet);
+                if (!enqueue(packet)) {
+                    // The packet was dropped by the policy
+                    return;
+                }
             }
             catch (InterruptedException ie) {
                 ie.printStackTrace();
                 return;
             }
+            notifyQueued(System.nanoTime() - start);
             synchronized (queue) {
                 queue.notifyAll();
             }
@@ -119,6 +195,138 @@ class PacketWriter {
         }
     }
 
+    /**
+     * Adds a packet to the queue, applying the overflow policy if the queue
+     * is full.
+     *
+     * @param packet the packet to queue.
+     * @return true if the packet was queued, false if it was dropped.
+     * @throws InterruptedException if interrupted while waiting for room.
+     */
+    private boolean enqueue(Packet packet) throws InterruptedException {
+        if (queue.offer(packet)) {
+            return true;
+        }
+        switch (policy.getOverflow()) {
+            case FAIL:
+                throw new IllegalStateException("Outgoing packet queue full.");
+            case DROP_LOW_PRIORITY:
+                Packet dropped;
+                while ((dropped = removeLowPriority()) != null) {
+                    policy.notifyPacketDropped(connection, dropped);
+                    if (queue.offer(packet)) {
+                        return true;
+                    }
+                }
+                if (policy.isLowPriority(packet)) {
+                    policy.notifyPacketDropped(connection, packet);
+                    return false;
+                }
+                // Nothing to drop, so wait for room
+                return put(packet);
+            default:
+                return put(packet);
+        }
+    }
+
+    /**
+     * Applies the overflow policy to a packet written directly to the channel
+     * while the channel is full. Packets pending in the channel are already
+     * serialized, so unlike with the queue, DROP_LOW_PRIORITY only drops the
+     * new packet if it is of low priority, and otherwise waits for room. The
+     * capacity may be exceeded by concurrent senders.
+     *
+     * @param packet the packet to write.
+     * @return true if the packet may be written, false if it was dropped.
+     * @throws InterruptedException if interrupted while waiting for room.
+     */
+    private boolean reserveDirect(Packet packet) throws InterruptedException {
+        int capacity = policy.getCapacity();
+        if (channel == null || channel.getPendingFlushes() < capacity) {
+            return true;
+        }
+        switch (policy.getOverflow()) {
+            case FAIL:
+                throw new IllegalStateException("Outgoing packet queue full.");
+            case DROP_LOW_PRIORITY:
+                if (policy.isLowPriority(packet)) {
+                    policy.notifyPacketDropped(connection, packet);
+                    return false;
+                }
+                // Nothing to drop, so wait for room
+            default:
+                if (!channel.awaitRoom(capacity, policy.getBlockTimeout())) {
+                    throw new IllegalStateException("Timed out waiting for room in " +
+                            "outgoing packet queue.");
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Adds a packet to the queue, waiting for room at most the block timeout
+     * of the policy.
+     *
+     * @param packet the packet to queue.
+     * @return true, since the packet was queued.
+     * @throws InterruptedException if interrupted while waiting for room.
+     */
+    private boolean put(Packet packet) throws InterruptedException {
+        long timeout = policy.getBlockTimeout();
+        if (timeout == 0) {
+            queue.put(packet);
+        }
+        else if (!queue.offer(packet, timeout, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Timed out waiting for room in " +
+                    "outgoing packet queue.");
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest queued packet of low priority.
+     *
+     * @return the removed packet, or null if no queued packet is of low priority.
+     */
+    private Packet removeLowPriority() {
+        for (Packet queued : queue) {
+            if (policy.isLowPriority(queued) && queue.remove(queued)) {
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Notify the queue listeners about a queued packet, and about the queue
+     * reaching the high watermark once each time it does.
+     *
+     * @param latency the nanoseconds spent waiting for room in the queue.
+     */
+    private void notifyQueued(long latency) {
+        int depth = getQueueSize();
+        policy.notifyPacketQueued(connection, depth, latency);
+        if (depth >= policy.getHighWatermark()) {
+            if (aboveHighWatermark.compareAndSet(false, true)) {
+                policy.notifyHighWatermarkReached(connection, depth);
+            }
+        }
+        else if (!threaded) {
+            // Nothing else notices the channel draining
+            aboveHighWatermark.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be written, either in the queue
+     * or pending in the channel written to directly.
+     *
+     * @return the size of the queue.
+     */
+    int getQueueSize() {
+        return channel != null ? channel.getPendingFlushes() : queue.size();
+    }
+
     /**
      * Registers a packet listener with this writer. The listener will be
      * notified immediately after every packet this writer sends. A packet filter
@@ -180,7 +388,18 @@ class PacketWriter {
      * error occurs.
      */
     public void startup() {
-        writerThread.start();
+        if (threaded) {
+            writerThread.start();
+        }
+        else {
+            try {
+                openStream();
+            }
+            catch (IOException ioe) {
+                done = true;
+                connection.packetReader.notifyConnectionError(ioe);
+            }
+        }
     }
 
     /**
@@ -193,15 +412,29 @@ class PacketWriter {
         // out a space character each time it runs to keep the TCP/IP connection open.
         int keepAliveInterval = SmackConfiguration.getKeepAliveInterval();
         if (keepAliveInterval > 0) {
-            KeepAliveTask task = new KeepAliveTask(keepAliveInterval);
-            keepAliveThread = new Thread(task);
-            task.setThread(keepAliveThread);
-            keepAliveThread.setDaemon(true);
-            keepAliveThread.setName("Smack Keep Alive (" + connection.connectionCounterValue + ")");
-            keepAliveThread.start();
+            synchronized (keepAliveLock) {
+                cancelKeepAlive();
+                // Wait 15 seconds before sending first heartbeat. This will give time to
+                // properly finish TLS negotiation and then start sending heartbeats.
+                keepAliveTask = new KeepAliveTask(keepAliveInterval);
+                keepAliveTimeout = ConnectionTimer.schedule(keepAliveTask, 15000,
+                        TimeUnit.MILLISECONDS);
+            }
         }
     }
 
+    /**
+     * Stops the current keep-alive task, if any. A run of the task already in
+     * progress will not reschedule it. Must be called holding keepAliveLock.
+     */
+    private void cancelKeepAlive() {
+        if (keepAliveTimeout != null) {
+            keepAliveTimeout.cancel();
+            keepAliveTimeout = null;
+        }
+        keepAliveTask = null;
+    }
+
     void setWriter(Writer writer) {
         this.writer = writer;
     }
@@ -211,6 +444,29 @@ class PacketWriter {
      * packets will be written to the server.
      */
     public void shutdown() {
+        synchronized (keepAliveLock) {
+            cancelKeepAlive();
+        }
+        if (!threaded && !done) {
+            // Close the stream.
+            try {
+                synchronized (writer) {
+                    writer.write("</stream:stream>");
+                    writer.flush();
+                }
+            }
+            catch (Exception e) {
+                // Do nothing
+            }
+            finally {
+                try {
+                    writer.close();
+                }
+                catch (Exception e) {
+                    // Do nothing
+                }
+            }
+        }
         done = true;
         synchronized (queue) {
             queue.notifyAll();
@@ -254,12 +510,7 @@ class PacketWriter {
             while (!done && (writerThread == thisThread)) {
                 Packet packet = nextPacket();
                 if (packet != null) {
-                    synchronized (writer) {
-                        writer.write(packet.toXML());
-                        writer.flush();
-                        // Keep track of the last time a stanza was sent to the server
-                        lastActive = System.currentTimeMillis();
-                    }
+                    writeBatch(packet);
                 }
             }
             // Flush out the rest of the queue. If the queue is extremely large, it's possible
@@ -269,7 +520,7 @@ class PacketWriter {
                 synchronized (writer) {
                    while (!queue.isEmpty()) {
                        Packet packet = queue.remove();
-                        writer.write(packet.toXML());
+                       write(packet);
                     }
                     writer.flush();
                 }
@@ -306,6 +557,131 @@ class PacketWriter {
         }
     }
 
+    /**
+     * Writes a packet to the writer without flushing. If the writer encodes
+     * directly to the connection, the packet is serialized into the buffer of
+     * the writer, otherwise, for example when the writer is observed by a
+     * debugger, the XML string of the packet is written. Must be called holding
+     * the writer lock.
+     *
+     * @param packet the packet to write.
+     * @throws IOException if writing fails.
+     */
+    private void write(Packet packet) throws IOException {
+        if (writer instanceof UTF8Writer) {
+            packet.toXML(((UTF8Writer) writer).getBuffer());
+        }
+        else {
+            writer.write(packet.toXML());
+        }
+    }
+
+    /**
+     * Writes a packet followed by the packets queued meanwhile, and flushes
+     * the writer once. Waits up to the configured linger time for more packets
+     * if the queue runs empty before the batch is full.
+     *
+     * @param packet the first packet of the batch.
+     * @throws IOException if writing fails.
+     */
+    private void writeBatch(Packet packet) throws IOException {
+        int maxBatch = SmackConfiguration.getPacketWriterBatchSize();
+        long linger = TimeUnit.MICROSECONDS.toNanos(SmackConfiguration.getPacketWriterLinger());
+        long deadline = System.nanoTime() + linger;
+        int count = 0;
+        synchronized (writer) {
+            while (packet != null) {
+                write(packet);
+                if (++count >= maxBatch) {
+                    break;
+                }
+                packet = queue.poll();
+                if (packet == null && linger > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        try {
+                            packet = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        }
+                        catch (InterruptedException ie) {
+                            // Flush what has been written so far
+                        }
+                    }
+                }
+            }
+            writer.flush();
+            // Keep track of the last time a stanza was sent to the server
+            lastActive = System.nanoTime();
+        }
+        recordFlush(count);
+        if (queue.size() < policy.getHighWatermark()) {
+            aboveHighWatermark.set(false);
+        }
+    }
+
+    /**
+     * Update the statistics after a flush.
+     *
+     * @param count the number of stanzas written in the flush.
+     */
+    private void recordFlush(int count) {
+        stanzaCount.addAndGet(count);
+        flushCount.incrementAndGet();
+        if (count > largestBatch) {
+            largestBatch = count;
+        }
+    }
+
+    /**
+     * Returns the number of stanzas written.
+     *
+     * @return the number of stanzas written.
+     */
+    long getStanzaCount() {
+        return stanzaCount.get();
+    }
+
+    /**
+     * Returns the number of times the writer was flushed after writing stanzas.
+     * Together with the number of stanzas written, this gives the average
+     * number of stanzas per flush.
+     *
+     * @return the number of flushes.
+     */
+    long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Returns the largest number of stanzas written in a single flush.
+     *
+     * @return the largest batch written.
+     */
+    int getLargestBatch() {
+        return largestBatch;
+    }
+
+    /**
+     * Writes a packet directly to the writer using the sending thread.
+     *
+     * @param packet the packet to write.
+     */
+    private void writeDirect(Packet packet) {
+        try {
+            synchronized (writer) {
+                write(packet);
+                writer.flush();
+                lastActive = System.nanoTime();
+            }
+            recordFlush(1);
+        }
+        catch (IOException ioe) {
+            if (!done) {
+                done = true;
+                connection.packetReader.notifyConnectionError(ioe);
+            }
+        }
+    }
+
     /**
      * Process listeners.
      *
@@ -412,52 +788,51 @@ class PacketWriter {
     }
 
     /**
-     * A TimerTask that keeps connections to the server alive by sending a space
-     * character on an interval.
+     * A task that keeps connections to the server alive by sending a space
+     * character on an interval. The task reschedules itself on the shared
+     * connection timer until the writer is shut down or the task is replaced
+     * by a new one.
      */
     private class KeepAliveTask implements Runnable {
 
-        private int delay;
-        private Thread thread;
+        private long delay;
 
         public KeepAliveTask(int delay) {
-            this.delay = delay;
+            this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
         }
 
-        protected void setThread(Thread thread) {
-            this.thread = thread;
-        }
-        
         public void run() {
-            try {
-                // Sleep 15 seconds before sending first heartbeat. This will give time to
-                // properly finish TLS negotiation and then start sending heartbeats.
-                Thread.sleep(15000);
-            }
-            catch (InterruptedException ie) {
-                // Do nothing
+            if (!isCurrent()) {
+                return;
             }
-            while (!done && keepAliveThread == thread) {
-                synchronized (writer) {
-                    // Send heartbeat if no packet has been sent to the server for a given time
-                    if (System.currentTimeMillis() - lastActive >= delay) {
-                        try {
-                            writer.write(" ");
-                            writer.flush();
-                        }
-                        catch (Exception e) {
-                            // Do nothing
-                        }
+            long idle;
+            synchronized (writer) {
+                // Send heartbeat if no packet has been sent to the server for a given time
+                idle = System.nanoTime() - lastActive;
+                if (idle >= delay) {
+                    try {
+                        writer.write(" ");
+                        writer.flush();
                     }
+                    catch (Exception e) {
+                        // Do nothing
+                    }
+                    idle = 0;
                 }
-                try {
-                    // Sleep until we should write the next keep-alive.
-                    Thread.sleep(delay);
-                }
-                catch (InterruptedException ie) {
-                    // Do nothing
+            }
+            // Run again when the next keep-alive may be needed.
+            synchronized (keepAliveLock) {
+                if (isCurrent()) {
+                    keepAliveTimeout = ConnectionTimer.schedule(this, delay - idle,
+                            TimeUnit.NANOSECONDS);
                 }
             }
         }
+
+        private boolean isCurrent() {
+            synchronized (keepAliveLock) {
+                return !done && keepAliveTask == this;
+            }
+        }
     }
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A packet dispatcher executing tasks on a fixed pool of threads, which may
+ * be shared by any number of connections. Tasks with the same key, such as
+ * the packets from one sender, are queued and executed in order by one thread
+ * at a time, while tasks with different keys are executed in parallel. A
+ * thread executes a limited number of tasks of a key before moving on, so a
+ * busy sender doesn't starve the others.<p>
+ *
+ * The dispatcher keeps track of the number of queued tasks and the time tasks
+ * spend queued before being executed.
+ *
+ * @author Jonas Ådahl
+ */
+public class PooledPacketDispatcher implements PacketDispatcher {
+
+    // Tasks of one key executed before letting other keys run
+    private static final int BATCH_SIZE = 16;
+
+    private final ExecutorService workers;
+    private final ConcurrentMap<Object, TaskQueue> queues =
+            new ConcurrentHashMap<Object, TaskQueue>();
+
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicInteger largestQueued = new AtomicInteger(0);
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong totalLatency = new AtomicLong(0);
+    private final AtomicLong largestLatency = new AtomicLong(0);
+
+    /**
+     * Creates a dispatcher with as many threads as there are processors.
+     */
+    public PooledPacketDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param parallelism the number of threads, and thereby the number of
+     *      keys whose tasks may execute at the same time.
+     */
+    public PooledPacketDispatcher(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one thread is required.");
+        }
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "Smack Packet Dispatcher (" + threadCount.incrementAndGet() + ")");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Executes a task delivering a packet to listeners.
+     *
+     * @param key the ordering key of the task.
+     * @param task the task.
+     * @throws RejectedExecutionException if the dispatcher has been shut down.
+     */
+    public void execute(Object key, Runnable task) {
+        if (workers.isShutdown()) {
+            throw new RejectedExecutionException("Dispatcher shut down.");
+        }
+        Task entry = new Task(task);
+        while (true) {
+            TaskQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new TaskQueue(key);
+                TaskQueue existing = queues.putIfAbsent(key, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            boolean schedule;
+            synchronized (queue) {
+                if (queue.removed) {
+                    // Emptied and removed after the lookup
+                    continue;
+                }
+                queue.tasks.add(entry);
+                schedule = !queue.scheduled;
+                queue.scheduled = true;
+            }
+            updateLargest(largestQueued, queued.incrementAndGet());
+            if (schedule) {
+                schedule(queue);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed.
+     *
+     * @return the number of queued tasks.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the largest number of tasks which have been waiting to be
+     * executed at the same time.
+     *
+     * @return the largest number of queued tasks.
+     */
+    public int getLargestQueuedCount() {
+        return largestQueued.get();
+    }
+
+    /**
+     * Returns the number of keys with tasks queued or executing.
+     *
+     * @return the number of active keys.
+     */
+    public int getActiveKeyCount() {
+        return queues.size();
+    }
+
+    /**
+     * Returns the number of executed tasks.
+     *
+     * @return the number of executed tasks.
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * Returns the average time tasks were queued before being executed.
+     *
+     * @return the average latency in milliseconds.
+     */
+    public double getAverageLatency() {
+        long count = executed.get();
+        if (count == 0) {
+            return 0;
+        }
+        return (double) TimeUnit.NANOSECONDS.toMicros(totalLatency.get()) / count / 1000;
+    }
+
+    /**
+     * Returns the longest time a task was queued before being executed.
+     *
+     * @return the largest latency in milliseconds.
+     */
+    public long getLargestLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(largestLatency.get());
+    }
+
+    /**
+     * Stops the threads of the dispatcher. Queued tasks are executed, but no
+     * new tasks may be dispatched.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Schedules the tasks of a key on a worker thread. Once the dispatcher is
+     * shut down, the tasks are executed by the current thread instead, since
+     * they were queued before the shutdown.
+     *
+     * @param queue the queue of the key.
+     */
+    private void schedule(TaskQueue queue) {
+        try {
+            workers.execute(queue);
+        }
+        catch (RejectedExecutionException ree) {
+            queue.execute(Integer.MAX_VALUE);
+        }
+    }
+
+    private static void updateLargest(AtomicInteger largest, int value) {
+        int current;
+        while (value > (current = largest.get())) {
+            if (largest.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private static void updateLargest(AtomicLong largest, long value) {
+        long current;
+        while (value > (current = largest.get())) {
+            if (largest.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A task and the time it was queued.
+     */
+    private static class Task {
+        private final Runnable runnable;
+        private final long queuedAt = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * The queued tasks of a key. The queue is scheduled on a worker thread
+     * while it has tasks, and removed once it's emptied.
+     */
+    private class TaskQueue implements Runnable {
+        private final Object key;
+        private final LinkedList<Task> tasks = new LinkedList<Task>();
+        private boolean scheduled = false;
+        private boolean removed = false;
+
+        TaskQueue(Object key) {
+            this.key = key;
+        }
+
+        public void run() {
+            if (execute(BATCH_SIZE)) {
+                // Let other keys run before continuing
+                schedule(this);
+            }
+        }
+
+        /**
+         * Executes queued tasks, removing the queue once it's emptied.
+         *
+         * @param count the maximum number of tasks to execute.
+         * @return true if tasks remain to be executed.
+         */
+        boolean execute(int count) {
+            for (int i = 0; i < count; i++) {
+                Task task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        removed = true;
+                        queues.remove(key, this);
+                        return false;
+                    }
+                }
+                queued.decrementAndGet();
+                long latency = System.nanoTime() - task.queuedAt;
+                totalLatency.addAndGet(latency);
+                updateLargest(largestLatency, latency);
+                try {
+                    task.runnable.run();
+                }
+                catch (Exception e) {
+                    // Catch and print any exception so that the following
+                    // tasks of the key are still executed
+                    e.printStackTrace();
+                }
+                executed.incrementAndGet();
+            }
+            return true;
+        }
+    }
+}
@@ -48,6 +48,13 @@ public final class SmackConfiguration {
 
     private static int packetReplyTimeout = 5000;
     private static int keepAliveInterval = 30000;
+    private static int linkLocalIdleTimeout = 15000;
+    private static int packetWriterBatchSize = 64;
+    private static int packetWriterLinger = 0;
+    private static int linkLocalResolverThreads = 4;
+    private static int linkLocalMaxQueries = 4;
+    private static boolean linkLocalResolveOnDemand = false;
+    private static int linkLocalAnnounceDelay = 100;
     private static Vector<String> defaultMechs = new Vector<String>();
 
     private SmackConfiguration() {
@@ -88,6 +95,34 @@ public final class SmackConfiguration {
                                 else if (parser.getName().equals("keepAliveInterval")) {
                                     keepAliveInterval = parseIntProperty(parser, keepAliveInterval);
                                 }
+                                else if (parser.getName().equals("linkLocalIdleTimeout")) {
+                                    linkLocalIdleTimeout =
+                                            parseIntProperty(parser, linkLocalIdleTimeout);
+                                }
+                                else if (parser.getName().equals("packetWriterBatchSize")) {
+                                    packetWriterBatchSize =
+                                            parseIntProperty(parser, packetWriterBatchSize);
+                                }
+                                else if (parser.getName().equals("packetWriterLinger")) {
+                                    packetWriterLinger =
+                                            parseIntProperty(parser, packetWriterLinger);
+                                }
+                                else if (parser.getName().equals("linkLocalResolverThreads")) {
+                                    linkLocalResolverThreads =
+                                            parseIntProperty(parser, linkLocalResolverThreads);
+                                }
+                                else if (parser.getName().equals("linkLocalMaxQueries")) {
+                                    linkLocalMaxQueries =
+                                            parseIntProperty(parser, linkLocalMaxQueries);
+                                }
+                                else if (parser.getName().equals("linkLocalResolveOnDemand")) {
+                                    linkLocalResolveOnDemand =
+                                            Boolean.valueOf(parser.nextText().trim());
+                                }
+                                else if (parser.getName().equals("linkLocalAnnounceDelay")) {
+                                    linkLocalAnnounceDelay =
+                                            parseIntProperty(parser, linkLocalAnnounceDelay);
+                                }
                                 else if (parser.getName().equals("mechName")) {
                                     defaultMechs.add(parser.nextText());
                                 }
@@ -175,6 +210,182 @@ public final class SmackConfiguration {
         keepAliveInterval = interval;
     }
 
+    /**
+     * Returns the number of milliseconds a link-local connection may be
+     * inactive before it is closed. The default value is 15000 ms.
+     *
+     * @return the milliseconds of inactivity before a link-local connection
+     *      is closed.
+     */
+    public static int getLinkLocalIdleTimeout() {
+        return linkLocalIdleTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds a link-local connection may be
+     * inactive before it is closed.
+     *
+     * @param timeout the milliseconds of inactivity before a link-local
+     *      connection is closed.
+     */
+    public static void setLinkLocalIdleTimeout(int timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException();
+        }
+        linkLocalIdleTimeout = timeout;
+    }
+
+    /**
+     * Returns the maximum number of queued stanzas the packet writer writes
+     * before flushing the connection. The default value is 64. A value of 1
+     * means every stanza is flushed as soon as it has been written.
+     *
+     * @return the maximum number of stanzas written per flush.
+     */
+    public static int getPacketWriterBatchSize() {
+        return packetWriterBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of queued stanzas the packet writer writes
+     * before flushing the connection. A value of 1 means every stanza is
+     * flushed as soon as it has been written.
+     *
+     * @param size the maximum number of stanzas written per flush.
+     */
+    public static void setPacketWriterBatchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException();
+        }
+        packetWriterBatchSize = size;
+    }
+
+    /**
+     * Returns the number of microseconds the packet writer waits for more
+     * stanzas to be queued before flushing a batch. The default value is 0,
+     * which means only stanzas already queued are written in the same batch.
+     *
+     * @return the microseconds to wait for more stanzas before flushing.
+     */
+    public static int getPacketWriterLinger() {
+        return packetWriterLinger;
+    }
+
+    /**
+     * Sets the number of microseconds the packet writer waits for more
+     * stanzas to be queued before flushing a batch. A longer time gives fewer
+     * and larger writes at the cost of latency.
+     *
+     * @param linger the microseconds to wait for more stanzas before flushing.
+     */
+    public static void setPacketWriterLinger(int linger) {
+        if (linger < 0) {
+            throw new IllegalArgumentException();
+        }
+        packetWriterLinger = linger;
+    }
+
+    /**
+     * Returns the number of threads resolving the address and TXT record of
+     * discovered link-local presences. The default value is 4.
+     *
+     * @return the number of threads resolving link-local presences.
+     */
+    public static int getLinkLocalResolverThreads() {
+        return linkLocalResolverThreads;
+    }
+
+    /**
+     * Sets the number of threads resolving the address and TXT record of
+     * discovered link-local presences. Takes effect for presence discoverers
+     * created afterwards.
+     *
+     * @param threads the number of threads resolving link-local presences.
+     */
+    public static void setLinkLocalResolverThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException();
+        }
+        linkLocalResolverThreads = threads;
+    }
+
+    /**
+     * Returns the maximum number of mDNS queries resolving link-local presences
+     * that may be outstanding at the same time. The default value is 4.<p>
+     *
+     * Each query occupies a resolver thread until answered, so a limit higher
+     * than {@link #getLinkLocalResolverThreads()} has no effect.
+     *
+     * @return the maximum number of outstanding mDNS queries.
+     */
+    public static int getLinkLocalMaxQueries() {
+        return linkLocalMaxQueries;
+    }
+
+    /**
+     * Sets the maximum number of mDNS queries resolving link-local presences
+     * that may be outstanding at the same time. Takes effect for presence
+     * discoverers created afterwards.
+     *
+     * @param queries the maximum number of outstanding mDNS queries.
+     */
+    public static void setLinkLocalMaxQueries(int queries) {
+        if (queries <= 0) {
+            throw new IllegalArgumentException();
+        }
+        linkLocalMaxQueries = queries;
+    }
+
+    /**
+     * Returns true if discovered link-local presences are only resolved when
+     * needed. The default value is false.
+     *
+     * @return true if link-local presences are resolved on demand.
+     * @see #setLinkLocalResolveOnDemand(boolean)
+     */
+    public static boolean isLinkLocalResolveOnDemand() {
+        return linkLocalResolveOnDemand;
+    }
+
+    /**
+     * Sets whether discovered link-local presences are only resolved when
+     * needed. If true, the address and TXT record of an announced presence are
+     * not queried until the presence is looked up, for example when opening a
+     * chat or connection to it, or until a presence listener is added. This
+     * avoids a burst of mDNS queries when many presences are announced at once
+     * and nobody is interested in them.
+     *
+     * @param onDemand true if link-local presences should be resolved on demand.
+     */
+    public static void setLinkLocalResolveOnDemand(boolean onDemand) {
+        linkLocalResolveOnDemand = onDemand;
+    }
+
+    /**
+     * Returns the number of milliseconds link-local presence changes are
+     * collected before being announced. The default value is 100 ms.
+     *
+     * @return the milliseconds to wait before announcing presence changes.
+     */
+    public static int getLinkLocalAnnounceDelay() {
+        return linkLocalAnnounceDelay;
+    }
+
+    /**
+     * Sets the number of milliseconds link-local presence changes are
+     * collected before being announced. Changes made within the delay are
+     * announced together. A value of 0 means every change is announced
+     * immediately.
+     *
+     * @param delay the milliseconds to wait before announcing presence changes.
+     */
+    public static void setLinkLocalAnnounceDelay(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException();
+        }
+        linkLocalAnnounceDelay = delay;
+    }
+
     /**
      * Add a SASL mechanism to the list to be used.
      *
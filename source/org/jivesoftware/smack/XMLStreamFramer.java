@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack;
+
+import java.nio.CharBuffer;
+
+/**
+ * Incremental framer for XMPP streams. Characters are fed as they arrive from
+ * the network and the framer reports the opening stream tag, every complete
+ * top-level stanza and the closing stream tag. The framer only keeps track of
+ * element depth; the stanzas themselves are parsed by the packet reader.
+ *
+ * Whitespace between stanzas (such as keep-alive heartbeats), processing
+ * instructions and comments on the stream level are discarded.
+ *
+ * @author Jonas Ådahl
+ */
+class XMLStreamFramer {
+
+    /**
+     * Receives the framing events of a stream.
+     */
+    interface Handler {
+        /**
+         * The opening stream tag has been read.
+         *
+         * @param header the complete opening stream tag.
+         */
+        void streamOpened(String header) throws Exception;
+
+        /**
+         * A complete top-level stanza has been read.
+         *
+         * @param stanza the stanza including its start and end tag.
+         */
+        void stanzaReceived(String stanza) throws Exception;
+
+        /**
+         * The closing stream tag has been read.
+         */
+        void streamClosed() throws Exception;
+    }
+
+    private final Handler handler;
+    private final StringBuilder buffer = new StringBuilder();
+    // Position in the buffer where scanning continues.
+    private int position = 0;
+    // Start of the stanza currently being read, or -1 if none.
+    private int stanzaStart = -1;
+    private int depth = 0;
+
+    XMLStreamFramer(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Returns the current element depth, where 0 means outside of the stream
+     * and 1 means between stanzas.
+     *
+     * @return the current element depth.
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Feed newly received characters to the framer. All events that become
+     * complete with the new characters are reported before this method returns.
+     *
+     * @param chars the received characters.
+     * @throws Exception if the handler fails to process an event.
+     */
+    void feed(CharBuffer chars) throws Exception {
+        buffer.append(chars);
+        scan();
+    }
+
+    /**
+     * Feed newly received characters to the framer.
+     *
+     * @param chars the received characters.
+     * @throws Exception if the handler fails to process an event.
+     */
+    void feed(String chars) throws Exception {
+        buffer.append(chars);
+        scan();
+    }
+
+    private void scan() throws Exception {
+        int length = buffer.length();
+        while (position < length) {
+            int markup = indexOf('<', position);
+            if (markup < 0) {
+                // Character data, either inside a stanza or ignorable whitespace
+                position = length;
+                break;
+            }
+            int end = markupEnd(markup);
+            if (end < 0) {
+                // Incomplete markup, wait for more characters
+                position = markup;
+                break;
+            }
+            position = end;
+
+            char c = markup + 1 < length ? buffer.charAt(markup + 1) : 0;
+            if (c == '?' || c == '!') {
+                // Processing instruction, comment or CDATA section
+                continue;
+            }
+            else if (c == '/') {
+                depth--;
+                if (depth == 1 && stanzaStart >= 0) {
+                    emitStanza(end);
+                }
+                else if (depth <= 0) {
+                    depth = 0;
+                    compact(end);
+                    handler.streamClosed();
+                }
+            }
+            else if (buffer.charAt(end - 2) == '/') {
+                // Empty element
+                if (depth == 1) {
+                    stanzaStart = markup;
+                    emitStanza(end);
+                }
+            }
+            else {
+                depth++;
+                if (depth == 1) {
+                    String header = buffer.substring(markup, end);
+                    compact(end);
+                    handler.streamOpened(header);
+                }
+                else if (depth == 2) {
+                    stanzaStart = markup;
+                }
+            }
+            length = buffer.length();
+        }
+
+        // Drop characters between stanzas that have already been scanned
+        if (stanzaStart < 0 && position > 0) {
+            compact(position);
+        }
+    }
+
+    private void emitStanza(int end) throws Exception {
+        String stanza = buffer.substring(stanzaStart, end);
+        stanzaStart = -1;
+        compact(end);
+        handler.stanzaReceived(stanza);
+    }
+
+    /**
+     * Remove all characters before the given offset from the buffer.
+     */
+    private void compact(int offset) {
+        buffer.delete(0, offset);
+        position -= offset;
+        if (stanzaStart >= 0) {
+            stanzaStart -= offset;
+        }
+    }
+
+    /**
+     * Returns the offset just after the markup starting at the given offset,
+     * or -1 if the markup is not complete yet.
+     */
+    private int markupEnd(int start) {
+        if (startsWith(start, "<!--")) {
+            int end = indexOf("-->", start + 4);
+            return end < 0 ? -1 : end + 3;
+        }
+        if (startsWith(start, "<![CDATA[")) {
+            int end = indexOf("]]>", start + 9);
+            return end < 0 ? -1 : end + 3;
+        }
+        if (startsWith(start, "<?")) {
+            int end = indexOf("?>", start + 2);
+            return end < 0 ? -1 : end + 2;
+        }
+
+        // Element tag, look for a '>' that is not part of an attribute value
+        char quote = 0;
+        for (int i = start + 1; i < buffer.length(); i++) {
+            char c = buffer.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            }
+            else if (c == '"' || c == '\'') {
+                quote = c;
+            }
+            else if (c == '>') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int offset, String prefix) {
+        int length = prefix.length();
+        if (offset + length > buffer.length()) {
+            // Treat a possible prefix as a match, so that the markup is kept
+            // until enough characters are available
+            for (int i = 0; offset + i < buffer.length(); i++) {
+                if (buffer.charAt(offset + i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return length > 2;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < buffer.length(); i++) {
+            if (buffer.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(String s, int from) {
+        return buffer.indexOf(s, from);
+    }
+}
@@ -26,6 +26,7 @@ import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.UTF8Writer;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -790,8 +791,7 @@ public class XMPPConnection extends AbstractConnection {
             if (!usingCompression) {
                 reader =
                         new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                writer = new BufferedWriter(
-                        new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                writer = new UTF8Writer(socket.getOutputStream());
             }
             else {
                 try {
@@ -801,8 +801,7 @@ public class XMPPConnection extends AbstractConnection {
                     Object out = constructor.newInstance(socket.getOutputStream(), 9);
                     Method method = zoClass.getMethod("setFlushMode", Integer.TYPE);
                     method.invoke(out, 2);
-                    writer =
-                            new BufferedWriter(new OutputStreamWriter((OutputStream) out, "UTF-8"));
+                    writer = new UTF8Writer((OutputStream) out);
 
                     Class<?> ziClass = Class.forName("com.jcraft.jzlib.ZInputStream");
                     constructor = ziClass.getConstructor(InputStream.class);
@@ -815,8 +814,7 @@ public class XMPPConnection extends AbstractConnection {
                     e.printStackTrace();
                     reader = new BufferedReader(
                             new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                    writer = new BufferedWriter(
-                            new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                    writer = new UTF8Writer(socket.getOutputStream());
                 }
             }
         }
@@ -18,16 +18,23 @@ package org.jivesoftware.smack;
 
 import org.jivesoftware.smack.debugger.SmackDebugger;
 import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.util.HashedWheelTimer;
+import org.jivesoftware.smack.util.SettableFuture;
+import org.jivesoftware.smack.util.UTF8Writer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.lang.reflect.Constructor;
-import java.util.Date;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 
@@ -45,9 +52,20 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
     private LLService service;
     private LLPresence localPresence, remotePresence;
     private boolean initiator;
-    private long lastActivity = 0;
+    // Time of the last activity, as given by System.nanoTime().
+    private volatile long lastActivity = 0;
     protected XMPPLLConnection connection;
-    private Thread timeoutThread;
+    // Closes the connection when inactive, scheduled on the shared connection timer.
+    private HashedWheelTimer.Timeout idleTimeout;
+    // Closes an incoming connection if the stream is not opened in time.
+    private HashedWheelTimer.Timeout streamOpenTimeout;
+    // Milliseconds between checks of whether the writer of a connection
+    // waiting to be closed has drained.
+    private static final long DRAIN_CHECK_INTERVAL = 50;
+
+    // Non-blocking channel, used instead of reader and writer threads when
+    // the service drives its connections using selectors.
+    private LLChannel channel;
 
     private LLConnectionConfiguration configuration;
 
@@ -61,32 +79,9 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
         connection = this;
         this.service = service;
         configuration = config;
+        setPacketDispatcher(service.getPacketDispatcher());
         updateLastActivity();
 
-        // A timeout thread's purpose is to close down inactive connections
-        // after a certain amount of seconds (defaults to 15).
-        timeoutThread = new Thread() {
-            public void run() {
-                try {
-                    while (connection != null) {
-                        //synchronized (connection) {
-                            Thread.sleep(14000);
-                            long currentTime = new Date().getTime();
-                            if (currentTime - lastActivity > 15000) {
-                                shutdown();
-                                break;
-                            }
-                        //}
-                    }
-                } catch (InterruptedException ie) {
-                    shutdown();
-                }
-            }
-        };
-
-        timeoutThread.setName("Smack Link-local Connection Timeout (" + connection.connectionCounterValue + ")");
-        timeoutThread.setDaemon(true);
-
 
         if (config.isInitiator()) {
             // we are connecting to remote host
@@ -144,12 +139,44 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
     }
 
     /**
-     * Start listen for data and a stream tag.
+     * Start listen for data and a stream tag. If the connection is
+     * non-blocking this method returns immediately, otherwise it blocks
+     * until the remote peer has opened the stream.
      */
     void initListen() throws XMPPException {
         initConnection();
     }
 
+    /**
+     * Tells if this connection is driven by a selector of the service instead
+     * of dedicated reader and writer threads.
+     *
+     * @return true if the connection is non-blocking.
+     */
+    boolean isNonBlocking() {
+        return service.isNonBlocking();
+    }
+
+    /**
+     * Returns the non-blocking channel of this connection.
+     *
+     * @return the channel, or null if the connection is not non-blocking or
+     * not yet connected.
+     */
+    LLChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Route IQ replies received on this connection to the futures of a map
+     * shared by all connections of the service.
+     *
+     * @param replyFutures the shared futures, by packet ID.
+     */
+    void shareReplyFutures(ConcurrentMap<String,SettableFuture<IQ>> replyFutures) {
+        packetReader.shareReplyFutures(replyFutures);
+    }
+
     /**
      * Adds a listener that are notified when a new link-local connection
      * has been established.
@@ -178,7 +205,12 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
         int port = remotePresence.getPort();
 
         try {
-            socket = new Socket(host, port);
+            if (isNonBlocking()) {
+                socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            }
+            else {
+                socket = new Socket(host, port);
+            }
         }
         catch (UnknownHostException uhe) {
             String errorMessage = "Could not connect to " + host + ":" + port + ".";
@@ -206,7 +238,7 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
         if (serviceName == null) {
             shutdown();
         } else {
-            packetWriter = new PacketWriter(this);
+            packetWriter = new PacketWriter(this, channel);
             if (debugger != null) {
                 if (debugger.getWriterListener() != null) {
                     packetWriter.addPacketListener(debugger.getWriterListener(), null);
@@ -227,11 +259,83 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
     }
 
     /**
-     * Update the timer telling when the last activity happend. Used by timeout
-     * thread to tell how long the connection has been inactive.
+     * Update the timer telling when the last activity happend. Used by the
+     * idle timeout to tell how long the connection has been inactive.
      */
     void updateLastActivity() {
-        lastActivity = new Date().getTime();
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Schedule the idle timeout to close down the connection after a period
+     * of inactivity, as given by the connection pool of the service (defaults
+     * to 15 seconds). Connections to pinned peers are kept open.
+     *
+     * @param delay nanoseconds until the inactivity should be checked.
+     */
+    private void scheduleIdleTimeout(long delay) {
+        idleTimeout = ConnectionTimer.schedule(new Runnable() {
+            public void run() {
+                if (connection == null) {
+                    return;
+                }
+                LLConnectionPool pool = service.getConnectionPool();
+                long limit = TimeUnit.MILLISECONDS.toNanos(pool.getMaxIdleTime());
+                long idle = System.nanoTime() - lastActivity;
+                if (pool.isPinned(serviceName)) {
+                    scheduleIdleTimeout(limit);
+                }
+                else if (idle >= limit) {
+                    shutdownFromTimer();
+                }
+                else {
+                    // There has been activity since the timeout was
+                    // scheduled, check again when it could have expired.
+                    scheduleIdleTimeout(limit - idle);
+                }
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Close the connection unless the remote peer opens the stream in time.
+     * Used for incoming connections that aren't waited for by any thread.
+     */
+    private void scheduleStreamOpenTimeout() {
+        streamOpenTimeout = ConnectionTimer.schedule(new Runnable() {
+            public void run() {
+                if (connection != null && connectionID == null) {
+                    shutdownFromTimer();
+                }
+            }
+        }, 3 * SmackConfiguration.getPacketReplyTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close the connection once the packets sent on it have been written,
+     * so that the remote peer receives them before the end of the stream.
+     * The writer is checked every {@link #DRAIN_CHECK_INTERVAL} milliseconds
+     * on the connection timer, and the connection is closed regardless if it
+     * hasn't drained within three times the packet reply timeout.
+     */
+    void closeWhenDrained() {
+        final long deadline = System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(3 * SmackConfiguration.getPacketReplyTimeout());
+        ConnectionTimer.schedule(new Runnable() {
+            public void run() {
+                if (connection == null) {
+                    return;
+                }
+                PacketWriter writer = packetWriter;
+                if (writer != null && writer.getQueueSize() > 0
+                        && System.nanoTime() < deadline) {
+                    ConnectionTimer.schedule(this, DRAIN_CHECK_INTERVAL,
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+                shutdownFromTimer();
+            }
+        }, DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -256,14 +360,15 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
     private void initConnection() throws XMPPException {
         // Set the reader and writer instance variables
         initReaderAndWriter();
-        timeoutThread.start();
+        scheduleIdleTimeout(TimeUnit.MILLISECONDS.toNanos(
+                service.getConnectionPool().getMaxIdleTime()));
 
         try {
             // Don't initialize packet writer until we know it's a valid connection
             // unless we are the initiator. If we are NOT the initializer, we instead
             // wait for a stream initiation before doing anything.
             if (isInitiator())
-                packetWriter = new PacketWriter(this);
+                packetWriter = new PacketWriter(this, channel);
 
             // Initialize packet reader
             packetReader = new LLPacketReader(service, this);
@@ -284,8 +389,15 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
             if (isInitiator())
                 packetWriter.startup();
             // Start the packet reader. The startup() method will block until we
-            // get an opening stream packet back from server.
-            packetReader.startup();
+            // get an opening stream packet back from server. A non-blocking
+            // connection waiting for the remote peer to open the stream
+            // returns immediately.
+            if (isInitiator() || !isNonBlocking())
+                packetReader.startup();
+            else {
+                scheduleStreamOpenTimeout();
+                packetReader.startListening();
+            }
         }
         catch (XMPPException ex) {
             // An exception occurred in setting up the connection. Make sure we shut down the
@@ -335,10 +447,16 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
 
     private void initReaderAndWriter() throws XMPPException {
         try {
-            reader =
-                    new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            if (isNonBlocking()) {
+                channel = new LLChannel(service.nextSelector(), socket.getChannel());
+                reader = null;
+                writer = channel.getWriter();
+            }
+            else {
+                reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                writer = new UTF8Writer(socket.getOutputStream());
+            }
         }
         catch (IOException ioe) {
             throw new XMPPException(
@@ -408,21 +526,56 @@ public class XMPPLLConnection extends AbstractConnection // public for debugging
     }
 
     protected void shutdown() {
+        stopReaderAndWriter();
+
+        // Wait 150 ms for processes to clean-up, then shutdown. Non-blocking
+        // connections have no reader or writer threads to wait for.
+        if (!isNonBlocking()) {
+            try {
+                Thread.sleep(150);
+            }
+            catch (Exception e) {
+                // Ignore.
+            }
+        }
+
+        closeStreams();
+    }
+
+    /**
+     * Shut down the connection from a task of the connection timer, which
+     * must not block. Instead of waiting for the reader and writer threads to
+     * clean up, closing the streams is scheduled on the timer.
+     */
+    private void shutdownFromTimer() {
+        stopReaderAndWriter();
+        if (isNonBlocking()) {
+            closeStreams();
+        }
+        else {
+            ConnectionTimer.schedule(new Runnable() {
+                public void run() {
+                    closeStreams();
+                }
+            }, 150, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopReaderAndWriter() {
         connection = null;
 
+        if (idleTimeout != null)
+            idleTimeout.cancel();
+        if (streamOpenTimeout != null)
+            streamOpenTimeout.cancel();
+
         if (packetReader != null)
             packetReader.shutdown();
         if (packetWriter != null)
             packetWriter.shutdown();
+    }
 
-        // Wait 150 ms for processes to clean-up, then shutdown.
-        try {
-            Thread.sleep(150);
-        }
-        catch (Exception e) {
-            // Ignore.
-        }
-
+    private void closeStreams() {
         // Close down the readers and writers.
         if (reader != null) {
             try {
@@ -22,6 +22,7 @@ package org.jivesoftware.smack.filter;
 
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -31,7 +32,7 @@ import java.util.ArrayList;
  *
  * @author Matt Tucker
  */
-public class AndFilter implements PacketFilter {
+public class AndFilter implements KeyedPacketFilter {
 
     /**
      * The list of filters.
@@ -65,7 +66,11 @@ public class AndFilter implements PacketFilter {
 
     /**
      * Adds a filter to the filter list for the AND operation. A packet
-     * will pass the filter if all of the filters in the list accept it.
+     * will pass the filter if all of the filters in the list accept it.<p>
+     *
+     * The keys of the filter are read when it is registered with a
+     * connection, so filters should be added before that; the keys are not
+     * updated to those of a filter added later.
      *
      * @param filter a filter to add to the filter list.
      */
@@ -85,6 +90,23 @@ public class AndFilter implements PacketFilter {
         return true;
     }
 
+    /**
+     * Returns the keys of the filter in the list with the fewest keys, since
+     * each accepted packet is accepted by all filters in the list.
+     *
+     * @return the keys, or null if no filter in the list has keys.
+     */
+    public Collection<FilterKey> getKeys() {
+        Collection<FilterKey> keys = null;
+        for (PacketFilter filter : filters) {
+            Collection<FilterKey> filterKeys = FilterKey.getKeys(filter);
+            if (filterKeys != null && (keys == null || filterKeys.size() < keys.size())) {
+                keys = filterKeys;
+            }
+        }
+        return keys;
+    }
+
     public String toString() {
         return filters.toString();
     }
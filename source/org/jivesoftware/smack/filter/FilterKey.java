@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.filter;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A discriminating attribute of a packet, such as its packet ID or the
+ * namespace of one of its extensions. Filters implementing
+ * {@link KeyedPacketFilter} describe the packets they accept with keys, which
+ * lets a connection look up the listeners interested in a packet instead of
+ * evaluating every filter.
+ *
+ * @author Jonas Ådahl
+ */
+public final class FilterKey {
+
+    /**
+     * The attributes keys are made of.
+     */
+    public static enum Kind {
+        /** The kind of stanza: message, presence or iq. */
+        STANZA,
+        /**
+         * A packet class more specific than the kind of stanza. IQ child
+         * elements are parsed into their own classes, so this identifies the
+         * child element of an IQ.
+         */
+        PACKET_CLASS,
+        /** The kind of stanza together with its type, such as "iq/get". */
+        TYPE,
+        /** The packet ID. */
+        ID,
+        /** The lower case bare JID of the sender. */
+        FROM,
+        /** The namespace of an extension. */
+        EXTENSION
+    }
+
+    private final Kind kind;
+    private final String value;
+
+    /**
+     * Creates a key.
+     *
+     * @param kind the attribute of the key.
+     * @param value the value of the attribute.
+     */
+    public FilterKey(Kind kind, String value) {
+        if (kind == null || value == null) {
+            throw new IllegalArgumentException("Parameters cannot be null.");
+        }
+        this.kind = kind;
+        this.value = value;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the key of packets being instances of a class, or null if every
+     * packet is.
+     *
+     * @param packetType a sub-class of Packet.
+     * @return the key, or null.
+     */
+    public static FilterKey forPacketType(Class<?> packetType) {
+        String stanza = getStanza(packetType);
+        if (stanza != null) {
+            return new FilterKey(Kind.STANZA, stanza);
+        }
+        if (packetType == Packet.class) {
+            return null;
+        }
+        return new FilterKey(Kind.PACKET_CLASS, packetType.getName());
+    }
+
+    /**
+     * Returns the key of stanzas of a certain type.
+     *
+     * @param stanza the kind of stanza; "message", "presence" or "iq".
+     * @param type the type of the stanza.
+     * @return the key.
+     */
+    public static FilterKey forType(String stanza, Object type) {
+        return new FilterKey(Kind.TYPE, stanza + "/" + type);
+    }
+
+    /**
+     * Returns the keys of a filter, of which each packet the filter accepts
+     * has at least one.
+     *
+     * @param filter the filter, may be null.
+     * @return the keys, or null if the filter can't describe the packets it
+     *      accepts.
+     */
+    public static Collection<FilterKey> getKeys(PacketFilter filter) {
+        if (filter instanceof KeyedPacketFilter) {
+            return ((KeyedPacketFilter) filter).getKeys();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the keys of a packet.
+     *
+     * @param packet the packet.
+     * @param kinds the kinds of keys to return.
+     * @return the keys of the packet of the given kinds.
+     */
+    public static List<FilterKey> getKeys(Packet packet, Set<Kind> kinds) {
+        List<FilterKey> keys = new ArrayList<FilterKey>(4);
+        String stanza = null;
+        if (packet instanceof Message) {
+            stanza = "message";
+        }
+        else if (packet instanceof Presence) {
+            stanza = "presence";
+        }
+        else if (packet instanceof IQ) {
+            stanza = "iq";
+        }
+        if (stanza != null) {
+            if (kinds.contains(Kind.STANZA)) {
+                keys.add(new FilterKey(Kind.STANZA, stanza));
+            }
+            if (kinds.contains(Kind.TYPE)) {
+                Object type;
+                if (packet instanceof Message) {
+                    type = ((Message) packet).getType();
+                }
+                else if (packet instanceof Presence) {
+                    type = ((Presence) packet).getType();
+                }
+                else {
+                    type = ((IQ) packet).getType();
+                }
+                if (type != null) {
+                    keys.add(forType(stanza, type));
+                }
+            }
+        }
+        if (kinds.contains(Kind.PACKET_CLASS)) {
+            for (Class<?> c = packet.getClass(); c != Packet.class && c != null;
+                    c = c.getSuperclass()) {
+                if (getStanza(c) == null) {
+                    keys.add(new FilterKey(Kind.PACKET_CLASS, c.getName()));
+                }
+            }
+        }
+        if (kinds.contains(Kind.ID)) {
+            String packetID = packet.getPacketID();
+            if (packetID != null) {
+                keys.add(new FilterKey(Kind.ID, packetID));
+            }
+        }
+        if (kinds.contains(Kind.FROM)) {
+            String from = packet.getFrom();
+            if (from != null) {
+                keys.add(new FilterKey(Kind.FROM,
+                        StringUtils.parseBareAddress(from).toLowerCase()));
+            }
+        }
+        if (kinds.contains(Kind.EXTENSION)) {
+            for (PacketExtension extension : packet.getExtensions()) {
+                if (extension.getNamespace() != null) {
+                    keys.add(new FilterKey(Kind.EXTENSION, extension.getNamespace()));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the kind of stanza a class is, or null if it's a sub-class of
+     * a stanza class or not a stanza class at all.
+     */
+    private static String getStanza(Class<?> packetType) {
+        if (packetType == Message.class) {
+            return "message";
+        }
+        else if (packetType == Presence.class) {
+            return "presence";
+        }
+        else if (packetType == IQ.class) {
+            return "iq";
+        }
+        return null;
+    }
+
+    public boolean equals(Object o) {
+        if (o instanceof FilterKey) {
+            FilterKey key = (FilterKey) o;
+            return kind == key.kind && value.equals(key.value);
+        }
+        return false;
+    }
+
+    public int hashCode() {
+        return 31 * kind.hashCode() + value.hashCode();
+    }
+
+    public String toString() {
+        return kind + ":" + value;
+    }
+}
@@ -23,6 +23,9 @@ package org.jivesoftware.smack.filter;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.util.StringUtils;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Filter for packets where the "from" field exactly matches a specified JID. If the specified
  * address is a bare JID then the filter will match any address whose bare JID matches the
@@ -31,7 +34,7 @@ import org.jivesoftware.smack.util.StringUtils;
  *
  * @author Gaston Dombiak
  */
-public class FromMatchesFilter implements PacketFilter {
+public class FromMatchesFilter implements KeyedPacketFilter {
 
     private String address;
     /**
@@ -61,7 +64,8 @@ public class FromMatchesFilter implements PacketFilter {
         }
         else if (matchBareJID) {
             // Check if the bare JID of the sender of the packet matches the specified JID
-            return packet.getFrom().toLowerCase().startsWith(address);
+            return address.equals(
+                    StringUtils.parseBareAddress(packet.getFrom()).toLowerCase());
         }
         else {
             // Check if the full JID of the sender of the packet matches the specified JID
@@ -69,6 +73,11 @@ public class FromMatchesFilter implements PacketFilter {
         }
     }
 
+    public Collection<FilterKey> getKeys() {
+        return Collections.singleton(new FilterKey(FilterKey.Kind.FROM,
+                StringUtils.parseBareAddress(address)));
+    }
+
     public String toString() {
         return "FromMatchesFilter: " + address;
     }
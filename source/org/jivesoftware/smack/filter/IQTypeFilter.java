@@ -22,6 +22,9 @@ package org.jivesoftware.smack.filter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * A filter for IQ packet types. Returns true only if the packet is an IQ packet
  * and it matches the type provided in the constructor.
@@ -29,7 +32,7 @@ import org.jivesoftware.smack.packet.Packet;
  * @author Alexander Wenckus
  * 
  */
-public class IQTypeFilter implements PacketFilter {
+public class IQTypeFilter implements KeyedPacketFilter {
 
 	private IQ.Type type;
 
@@ -45,4 +48,8 @@ public class IQTypeFilter implements PacketFilter {
 	public boolean accept(Packet packet) {
 		return (packet instanceof IQ && ((IQ) packet).getType().equals(type));
 	}
+
+	public Collection<FilterKey> getKeys() {
+		return Collections.singleton(FilterKey.forType("iq", type));
+	}
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.filter;
+
+import java.util.Collection;
+
+/**
+ * A packet filter describing the packets it accepts with keys, such as the
+ * kind of stanza or the namespace of an extension. A connection only
+ * evaluates the filter for packets having at least one of the keys, while
+ * filters not implementing this interface are evaluated for every packet.<p>
+ *
+ * The keys are read when the filter is registered with a connection, so a
+ * filter changed after that must not start accepting packets without any of
+ * the keys.
+ *
+ * @author Jonas Ådahl
+ */
+public interface KeyedPacketFilter extends PacketFilter {
+
+    /**
+     * Returns keys of which each packet accepted by the filter has at least
+     * one. The filter may still reject packets having some of the keys.
+     *
+     * @return the keys, or null if the filter can't describe the packets it
+     *      accepts this way.
+     */
+    Collection<FilterKey> getKeys();
+}
@@ -23,13 +23,16 @@ package org.jivesoftware.smack.filter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Filters for packets of a specific type of Message (e.g. CHAT).
  * 
  * @see org.jivesoftware.smack.packet.Message.Type
  * @author Ward Harold
  */
-public class MessageTypeFilter implements PacketFilter {
+public class MessageTypeFilter implements KeyedPacketFilter {
 
     private final Message.Type type;
 
@@ -51,4 +54,7 @@ public class MessageTypeFilter implements PacketFilter {
         }
     }
 
+    public Collection<FilterKey> getKeys() {
+        return Collections.singleton(FilterKey.forType("message", type));
+    }
 }
@@ -22,13 +22,17 @@ package org.jivesoftware.smack.filter;
 
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Implements the logical OR operation over two or more packet filters. In
  * other words, packets pass this filter if they pass <b>any</b> of the filters.
  *
  * @author Matt Tucker
  */
-public class OrFilter implements PacketFilter {
+public class OrFilter implements KeyedPacketFilter {
 
     /**
      * The current number of elements in the filter.
@@ -67,7 +71,11 @@ public class OrFilter implements PacketFilter {
 
     /**
      * Adds a filter to the filter list for the OR operation. A packet
-     * will pass the filter if any filter in the list accepts it.
+     * will pass the filter if any filter in the list accepts it.<p>
+     *
+     * The keys of the filter are read when it is registered with a
+     * connection, so filters must be added before that; packets accepted
+     * only by a filter added later may not be delivered.
      *
      * @param filter a filter to add to the filter list.
      */
@@ -97,6 +105,24 @@ public class OrFilter implements PacketFilter {
         return false;
     }
 
+    /**
+     * Returns the keys of all filters in the list, since each accepted packet
+     * is accepted by one of them.
+     *
+     * @return the keys, or null if a filter in the list has no keys.
+     */
+    public Collection<FilterKey> getKeys() {
+        Set<FilterKey> keys = new HashSet<FilterKey>();
+        for (int i=0; i<size; i++) {
+            Collection<FilterKey> filterKeys = FilterKey.getKeys(filters[i]);
+            if (filterKeys == null) {
+                return null;
+            }
+            keys.addAll(filterKeys);
+        }
+        return keys;
+    }
+
     public String toString() {
         return filters.toString();
     }
@@ -22,12 +22,15 @@ package org.jivesoftware.smack.filter;
 
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Filters for packets with a particular type of packet extension.
  *
  * @author Matt Tucker
  */
-public class PacketExtensionFilter implements PacketFilter {
+public class PacketExtensionFilter implements KeyedPacketFilter {
 
     private String elementName;
     private String namespace;
@@ -58,4 +61,12 @@ public class PacketExtensionFilter implements PacketFilter {
     public boolean accept(Packet packet) {
         return packet.getExtension(elementName, namespace) != null;
     }
+
+    public Collection<FilterKey> getKeys() {
+        if (namespace == null) {
+            // Accepts nothing
+            return Collections.emptySet();
+        }
+        return Collections.singleton(new FilterKey(FilterKey.Kind.EXTENSION, namespace));
+    }
 }
@@ -22,12 +22,15 @@ package org.jivesoftware.smack.filter;
 
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Filters for packets with a particular packet ID.
  *
  * @author Matt Tucker
  */
-public class PacketIDFilter implements PacketFilter {
+public class PacketIDFilter implements KeyedPacketFilter {
 
     private String packetID;
 
@@ -47,6 +50,10 @@ public class PacketIDFilter implements PacketFilter {
         return packetID.equals(packet.getPacketID());
     }
 
+    public Collection<FilterKey> getKeys() {
+        return Collections.singleton(new FilterKey(FilterKey.Kind.ID, packetID));
+    }
+
     public String toString() {
         return "PacketIDFilter by id: " + packetID;
     }
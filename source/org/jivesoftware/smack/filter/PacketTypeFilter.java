@@ -22,6 +22,9 @@ package org.jivesoftware.smack.filter;
 
 import org.jivesoftware.smack.packet.Packet;
 
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Filters for packets of a particular type. The type is given as a Class object, so
  * example types would:
@@ -33,7 +36,7 @@ import org.jivesoftware.smack.packet.Packet;
  *
  * @author Matt Tucker
  */
-public class PacketTypeFilter implements PacketFilter {
+public class PacketTypeFilter implements KeyedPacketFilter {
 
     Class packetType;
 
@@ -55,6 +58,11 @@ public class PacketTypeFilter implements PacketFilter {
         return packetType.isInstance(packet);
     }
 
+    public Collection<FilterKey> getKeys() {
+        FilterKey key = FilterKey.forPacketType(packetType);
+        return key == null ? null : Collections.singleton(key);
+    }
+
     public String toString() {
         return "PacketTypeFilter: " + packetType.getName();
     }
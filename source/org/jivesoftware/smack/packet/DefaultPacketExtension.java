@@ -20,6 +20,8 @@
 
 package org.jivesoftware.smack.packet;
 
+import org.jivesoftware.smack.util.XMLBuffer;
+
 import java.util.*;
 
 /**
@@ -44,7 +46,7 @@ import java.util.*;
  *
  * @author Matt Tucker
  */
-public class DefaultPacketExtension implements PacketExtension {
+public class DefaultPacketExtension implements StreamablePacketExtension {
 
     private String elementName;
     private String namespace;
@@ -80,7 +82,22 @@ public class DefaultPacketExtension implements PacketExtension {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        XMLBuffer buf = new XMLBuffer(new StringBuilder());
+        writeXML(buf);
+        return buf.toString();
+    }
+
+    public void toXML(XMLBuffer buffer) {
+        // Subclasses may have overridden toXML()
+        if (getClass() != DefaultPacketExtension.class) {
+            buffer.append(toXML());
+        }
+        else {
+            writeXML(buffer);
+        }
+    }
+
+    private void writeXML(XMLBuffer buf) {
         buf.append("<").append(elementName).append(" xmlns=\"").append(namespace).append("\">");
         for (String name : getNames()) {
             String value = getValue(name);
@@ -89,7 +106,6 @@ public class DefaultPacketExtension implements PacketExtension {
             buf.append("</").append(name).append(">");
         }
         buf.append("</").append(elementName).append(">");
-        return buf.toString();
     }
 
     /**
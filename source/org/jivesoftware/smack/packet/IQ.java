@@ -20,7 +20,7 @@
 
 package org.jivesoftware.smack.packet;
 
-import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XMLBuffer;
 
 /**
  * The base IQ (Info/Query) packet. IQ packets are used to get and set information
@@ -67,16 +67,30 @@ public abstract class IQ extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        XMLBuffer buf = new XMLBuffer(new StringBuilder());
+        writeXML(buf);
+        return buf.toString();
+    }
+
+    public void toXML(XMLBuffer buffer) {
+        if (isToXMLOverridden(IQ.class)) {
+            buffer.append(toXML());
+        }
+        else {
+            writeXML(buffer);
+        }
+    }
+
+    private void writeXML(XMLBuffer buf) {
         buf.append("<iq ");
         if (getPacketID() != null) {
-            buf.append("id=\"" + getPacketID() + "\" ");
+            buf.append("id=\"").append(getPacketID()).append("\" ");
         }
         if (getTo() != null) {
-            buf.append("to=\"").append(StringUtils.escapeForXML(getTo())).append("\" ");
+            buf.append("to=\"").appendEscaped(getTo()).append("\" ");
         }
         if (getFrom() != null) {
-            buf.append("from=\"").append(StringUtils.escapeForXML(getFrom())).append("\" ");
+            buf.append("from=\"").appendEscaped(getFrom()).append("\" ");
         }
         if (type == null) {
             buf.append("type=\"get\">");
@@ -85,17 +99,13 @@ public abstract class IQ extends Packet {
             buf.append("type=\"").append(getType()).append("\">");
         }
         // Add the query section if there is one.
-        String queryXML = getChildElementXML();
-        if (queryXML != null) {
-            buf.append(queryXML);
-        }
+        writeChildElementXML(buf);
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
         if (error != null) {
             buf.append(error.toXML());
         }
         buf.append("</iq>");
-        return buf.toString();
     }
 
     /**
@@ -108,6 +118,20 @@ public abstract class IQ extends Packet {
      */
     public abstract String getChildElementXML();
 
+    /**
+     * Writes the sub-element XML section of the IQ packet into a buffer. The
+     * default implementation appends the result of {@link #getChildElementXML()},
+     * subclasses may override this method to write directly into the buffer.
+     *
+     * @param buf the buffer to write the child element section to.
+     */
+    protected void writeChildElementXML(XMLBuffer buf) {
+        String queryXML = getChildElementXML();
+        if (queryXML != null) {
+            buf.append(queryXML);
+        }
+    }
+
     /**
      * A class to represent the type of the IQ packet. The types are:
      *
@@ -20,7 +20,7 @@
 
 package org.jivesoftware.smack.packet;
 
-import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XMLBuffer;
 
 import java.util.*;
 
@@ -285,7 +285,21 @@ public class Message extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        XMLBuffer buf = new XMLBuffer(new StringBuilder());
+        writeXML(buf);
+        return buf.toString();
+    }
+
+    public void toXML(XMLBuffer buffer) {
+        if (isToXMLOverridden(Message.class)) {
+            buffer.append(toXML());
+        }
+        else {
+            writeXML(buffer);
+        }
+    }
+
+    private void writeXML(XMLBuffer buf) {
         buf.append("<message");
         if (getXmlns() != null) {
             buf.append(" xmlns=\"").append(getXmlns()).append("\"");
@@ -297,21 +311,21 @@ public class Message extends Packet {
             buf.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            buf.append(" to=\"").appendEscaped(getTo()).append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            buf.append(" from=\"").appendEscaped(getFrom()).append("\"");
         }
         if (type != Type.normal) {
             buf.append(" type=\"").append(type).append("\"");
         }
         buf.append(">");
         if (subject != null) {
-            buf.append("<subject>").append(StringUtils.escapeForXML(subject)).append("</subject>");
+            buf.append("<subject>").appendEscaped(subject).append("</subject>");
         }
         // Add the body in the default language
         if (getBody() != null) {
-            buf.append("<body>").append(StringUtils.escapeForXML(getBody())).append("</body>");
+            buf.append("<body>").appendEscaped(getBody()).append("</body>");
         }
         // Add the bodies in other languages
         for (Body body : getBodies()) {
@@ -320,7 +334,7 @@ public class Message extends Packet {
                 continue;
             }
             buf.append("<body xml:lang=\"").append(body.getLanguage()).append("\">");
-            buf.append(StringUtils.escapeForXML(body.getMessage()));
+            buf.appendEscaped(body.getMessage());
             buf.append("</body>");
         }
         if (thread != null) {
@@ -334,9 +348,8 @@ public class Message extends Packet {
             }
         }
         // Add packet extensions, if any are defined.
-        buf.append(getExtensionsXML());
+        writeExtensionsXML(buf);
         buf.append("</message>");
-        return buf.toString();
     }
 
 
@@ -21,11 +21,10 @@
 package org.jivesoftware.smack.packet;
 
 import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XMLBuffer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -35,8 +34,11 @@ import java.util.concurrent.CopyOnWriteArrayList;
  *
  * Properties provide an easy mechanism for clients to share data. Each property has a
  * String name, and a value that is a Java primitive (int, long, float, double, boolean)
- * or any Serializable object (a Java object is Serializable when it implements the
- * Serializable interface).
+ * or an object of a type with a registered {@link PropertyCodec}, such as a String,
+ * byte array, UUID, Date, List or Map. Other Serializable objects may be used if Java
+ * serialization is enabled in {@link PropertyCodecs}. Note that byte arrays, UUIDs,
+ * Dates, Lists and Maps are sent as types earlier versions of Smack don't understand,
+ * see {@link PropertyCodecs} for how to send them as serialized objects instead.
  *
  * @author Matt Tucker
  */
@@ -65,6 +67,13 @@ public abstract class Packet {
      */
     private static long id = 0;
 
+    /**
+     * Whether packet classes override toXML() below the class implementing
+     * the buffer based serialization, by packet class.
+     */
+    private static final Map<Class<?>,Boolean> toXMLOverridden =
+            new ConcurrentHashMap<Class<?>,Boolean>();
+
     private String xmlns = DEFAULT_XML_NS;
 
     /**
@@ -281,16 +290,17 @@ public abstract class Packet {
     }
 
     /**
-     * Sets a property with an Object as the value. The value must be Serializable
-     * or an IllegalArgumentException will be thrown.
+     * Sets a property with an Object as the value. The value must be of a type
+     * with a registered property codec or an IllegalArgumentException will be
+     * thrown. Lists and maps may only contain values the built in codecs
+     * handle, or an IllegalArgumentException will be thrown as well.
      *
      * @param name the name of the property.
      * @param value the value of the property.
+     * @see PropertyCodecs
      */
     public synchronized void setProperty(String name, Object value) {
-        if (!(value instanceof Serializable)) {
-            throw new IllegalArgumentException("Value must be serialiazble");
-        }
+        PropertyCodecs.checkEncodable(value);
         properties.put(name, value);
     }
 
@@ -327,6 +337,45 @@ public abstract class Packet {
      */
     public abstract String toXML();
 
+    /**
+     * Writes the packet as XML into a buffer. Used when sending packets, so that
+     * they are serialized directly into the reusable buffer of the connection
+     * instead of into intermediate strings. The default implementation appends
+     * the result of {@link #toXML()}; subclasses implementing this method must
+     * produce the same XML as toXML().
+     *
+     * @param buffer the buffer to write the XML format of the packet to.
+     */
+    public void toXML(XMLBuffer buffer) {
+        buffer.append(toXML());
+    }
+
+    /**
+     * Returns true if toXML() has been overridden by a subclass of the class
+     * implementing {@link #toXML(XMLBuffer)}. Such subclasses, which don't know
+     * of the buffer based serialization, must be serialized using toXML().
+     *
+     * @param implementor the class implementing the buffer based serialization.
+     * @return true if the buffer based serialization should not be used.
+     */
+    protected final boolean isToXMLOverridden(Class<? extends Packet> implementor) {
+        Class<?> packetClass = getClass();
+        if (packetClass == implementor) {
+            return false;
+        }
+        Boolean overridden = toXMLOverridden.get(packetClass);
+        if (overridden == null) {
+            try {
+                overridden = packetClass.getMethod("toXML").getDeclaringClass() != implementor;
+            }
+            catch (NoSuchMethodException nsme) {
+                overridden = Boolean.TRUE;
+            }
+            toXMLOverridden.put(packetClass, overridden);
+        }
+        return overridden;
+    }
+
     /**
      * Returns the extension sub-packets (including properties data) as an XML
      * String, or the Empty String if there are no packet extensions.
@@ -335,10 +384,27 @@ public abstract class Packet {
      * are no packet extensions.
      */
     protected synchronized String getExtensionsXML() {
-        StringBuilder buf = new StringBuilder();
+        XMLBuffer buf = new XMLBuffer(new StringBuilder());
+        writeExtensionsXML(buf);
+        return buf.toString();
+    }
+
+    /**
+     * Writes the extension sub-packets (including properties data) as XML into
+     * a buffer. Extensions implementing {@link StreamablePacketExtension} are
+     * written directly, others using their toXML() method.
+     *
+     * @param buf the buffer to write the extension sub-packets to.
+     */
+    protected synchronized void writeExtensionsXML(XMLBuffer buf) {
         // Add in all standard extension sub-packets.
         for (PacketExtension extension : getExtensions()) {
-            buf.append(extension.toXML());
+            if (extension instanceof StreamablePacketExtension) {
+                ((StreamablePacketExtension) extension).toXML(buf);
+            }
+            else {
+                buf.append(extension.toXML());
+            }
         }
         // Add in packet properties.
         if (properties != null && !properties.isEmpty()) {
@@ -346,70 +412,29 @@ public abstract class Packet {
             // Loop through all properties and write them out.
             for (String name : getPropertyNames()) {
                 Object value = getProperty(name);
-                buf.append("<property>");
-                buf.append("<name>").append(StringUtils.escapeForXML(name)).append("</name>");
-                buf.append("<value type=\"");
-                if (value instanceof Integer) {
-                    buf.append("integer\">").append(value).append("</value>");
-                }
-                else if (value instanceof Long) {
-                    buf.append("long\">").append(value).append("</value>");
-                }
-                else if (value instanceof Float) {
-                    buf.append("float\">").append(value).append("</value>");
-                }
-                else if (value instanceof Double) {
-                    buf.append("double\">").append(value).append("</value>");
+                // Values no longer having a codec, or failing to encode, are left out.
+                PropertyCodec codec = PropertyCodecs.getEncoder(value);
+                String encodedValue = null;
+                try {
+                    if (codec != null) {
+                        encodedValue = codec.encode(value);
+                    }
                 }
-                else if (value instanceof Boolean) {
-                    buf.append("boolean\">").append(value).append("</value>");
+                catch (Exception e) {
+                    e.printStackTrace();
                 }
-                else if (value instanceof String) {
-                    buf.append("string\">");
-                    buf.append(StringUtils.escapeForXML((String)value));
-                    buf.append("</value>");
-                }
-                // Otherwise, it's a generic Serializable object. Serialized objects are in
-                // a binary format, which won't work well inside of XML. Therefore, we base-64
-                // encode the binary data before adding it.
-                else {
-                    ByteArrayOutputStream byteStream = null;
-                    ObjectOutputStream out = null;
-                    try {
-                        byteStream = new ByteArrayOutputStream();
-                        out = new ObjectOutputStream(byteStream);
-                        out.writeObject(value);
-                        buf.append("java-object\">");
-                        String encodedVal = StringUtils.encodeBase64(byteStream.toByteArray());
-                        buf.append(encodedVal).append("</value>");
-                    }
-                    catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    finally {
-                        if (out != null) {
-                            try {
-                                out.close();
-                            }
-                            catch (Exception e) {
-                                // Ignore.
-                            }
-                        }
-                        if (byteStream != null) {
-                            try {
-                                byteStream.close();
-                            }
-                            catch (Exception e) {
-                                // Ignore.
-                            }
-                        }
-                    }
+                if (encodedValue == null) {
+                    continue;
                 }
+                buf.append("<property>");
+                buf.append("<name>").appendEscaped(name).append("</name>");
+                buf.append("<value type=\"").append(codec.getType()).append("\">");
+                buf.appendEscaped(encodedValue);
+                buf.append("</value>");
                 buf.append("</property>");
             }
             buf.append("</properties>");
         }
-        return buf.toString();
     }
 
     public String getXmlns() {
@@ -20,7 +20,7 @@
 
 package org.jivesoftware.smack.packet;
 
-import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XMLBuffer;
 
 /**
  * Represents XMPP presence packets. Every presence packet has a type, which is one of
@@ -224,7 +224,21 @@ public class Presence extends Packet {
     }
 
     public String toXML() {
-        StringBuilder buf = new StringBuilder();
+        XMLBuffer buf = new XMLBuffer(new StringBuilder());
+        writeXML(buf);
+        return buf.toString();
+    }
+
+    public void toXML(XMLBuffer buffer) {
+        if (isToXMLOverridden(Presence.class)) {
+            buffer.append(toXML());
+        }
+        else {
+            writeXML(buffer);
+        }
+    }
+
+    private void writeXML(XMLBuffer buf) {
         buf.append("<presence");
         if(getXmlns() != null) {
             buf.append(" xmlns=\"").append(getXmlns()).append("\"");
@@ -236,17 +250,17 @@ public class Presence extends Packet {
             buf.append(" id=\"").append(getPacketID()).append("\"");
         }
         if (getTo() != null) {
-            buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
+            buf.append(" to=\"").appendEscaped(getTo()).append("\"");
         }
         if (getFrom() != null) {
-            buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
+            buf.append(" from=\"").appendEscaped(getFrom()).append("\"");
         }
         if (type != Type.available) {
             buf.append(" type=\"").append(type).append("\"");
         }
         buf.append(">");
         if (status != null) {
-            buf.append("<status>").append(StringUtils.escapeForXML(status)).append("</status>");
+            buf.append("<status>").appendEscaped(status).append("</status>");
         }
         if (priority != Integer.MIN_VALUE) {
             buf.append("<priority>").append(priority).append("</priority>");
@@ -255,7 +269,7 @@ public class Presence extends Packet {
             buf.append("<show>").append(mode).append("</show>");
         }
 
-        buf.append(this.getExtensionsXML());
+        writeExtensionsXML(buf);
 
         // Add the error sub-packet, if there is one.
         XMPPError error = getError();
@@ -264,8 +278,6 @@ public class Presence extends Packet {
         }
 
         buf.append("</presence>");
-        
-        return buf.toString();
     }
 
     public String toString() {
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+/**
+ * Encodes packet property values of some type as text, and decodes them
+ * again. The encoded text is sent as the value of the property, together
+ * with the name of the type, which selects the codec decoding the value
+ * when the packet is received.
+ *
+ * @see PropertyCodecs
+ * @author Jonas Ådahl
+ */
+public interface PropertyCodec {
+
+    /**
+     * Returns the name of the type, sent as the type attribute of values.
+     *
+     * @return the name of the type.
+     */
+    String getType();
+
+    /**
+     * Encodes a value as text.
+     *
+     * @param value the value, of a class the codec is registered for.
+     * @return the encoded value.
+     * @throws Exception if the value can't be encoded.
+     */
+    String encode(Object value) throws Exception;
+
+    /**
+     * Decodes a value from text.
+     *
+     * @param text the encoded value.
+     * @return the value.
+     * @throws Exception if the text isn't a valid encoding of the type.
+     */
+    Object decode(String text) throws Exception;
+}
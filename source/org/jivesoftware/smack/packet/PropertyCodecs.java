@@ -0,0 +1,639 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * The registry of codecs encoding and decoding packet property values. The
+ * type names of the registered codecs are the only types of values accepted
+ * from received packets; values of other types are dropped.<p>
+ *
+ * Built in are codecs for the primitive wrappers and strings, using the
+ * traditional encodings, and for byte arrays ("bytes"), UUIDs ("uuid"),
+ * dates ("timestamp", in milliseconds), lists ("list") and maps ("map").
+ * Lists and maps are encoded in a compact tagged binary format, and may only
+ * contain values of the built in types, including other lists and maps.<p>
+ *
+ * Java serialization ("java-object") is disabled by default, since it lets a
+ * remote entity have classes instantiated. When enabled, any Serializable
+ * value may be sent, but only classes explicitly allowed are deserialized.<p>
+ *
+ * The "bytes", "uuid", "timestamp", "list" and "map" types are not understood
+ * by other implementations of packet properties, such as earlier versions of
+ * Smack, which send and expect such values as "java-object" and drop
+ * properties of types they don't know. To exchange such values with them,
+ * unregister the codecs of those types and enable Java serialization, allowing
+ * the classes of the received values:
+ *
+ * <pre>
+ * for (String type : new String[] {"bytes", "uuid", "timestamp", "list", "map"}) {
+ *     PropertyCodecs.unregister(type);
+ * }
+ * PropertyCodecs.setJavaSerializationEnabled(true);
+ * PropertyCodecs.addAllowedClass("java.util.ArrayList");
+ * </pre>
+ *
+ * @see Packet#setProperty(String, Object)
+ * @author Jonas Ådahl
+ */
+public final class PropertyCodecs {
+
+    private static final String JAVA_OBJECT = "java-object";
+
+    // Limits what a received binary value may make us allocate
+    private static final int MAX_DEPTH = 32;
+
+    // Binary format tags
+    private static final int TAG_NULL = 0;
+    private static final int TAG_INTEGER = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_FLOAT = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_BOOLEAN = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_BYTES = 7;
+    private static final int TAG_UUID = 8;
+    private static final int TAG_TIMESTAMP = 9;
+    private static final int TAG_LIST = 10;
+    private static final int TAG_MAP = 11;
+    private static final int TAG_JAVA_OBJECT = 12;
+
+    // Codecs in registration order, searched for values of sub-classes
+    private static final List<Registration> registrations =
+            new CopyOnWriteArrayList<Registration>();
+    private static final Map<Class<?>, PropertyCodec> encoders =
+            new ConcurrentHashMap<Class<?>, PropertyCodec>();
+    private static final Map<String, PropertyCodec> decoders =
+            new ConcurrentHashMap<String, PropertyCodec>();
+
+    private static volatile boolean javaSerializationEnabled = false;
+    private static final Set<String> allowedClasses = new CopyOnWriteArraySet<String>(
+            Arrays.asList(new String[] {
+                "java.lang.Boolean", "java.lang.Byte", "java.lang.Character",
+                "java.lang.Double", "java.lang.Float", "java.lang.Integer",
+                "java.lang.Long", "java.lang.Number", "java.lang.Short",
+                "java.lang.String"
+            }));
+
+    static {
+        register(Integer.class, new TextCodec("integer") {
+            public Object decode(String text) {
+                return Integer.valueOf(text);
+            }
+        });
+        register(Long.class, new TextCodec("long") {
+            public Object decode(String text) {
+                return Long.valueOf(text);
+            }
+        });
+        register(Float.class, new TextCodec("float") {
+            public Object decode(String text) {
+                return Float.valueOf(text);
+            }
+        });
+        register(Double.class, new TextCodec("double") {
+            public Object decode(String text) {
+                return Double.valueOf(text);
+            }
+        });
+        register(Boolean.class, new TextCodec("boolean") {
+            public Object decode(String text) {
+                return Boolean.valueOf(text);
+            }
+        });
+        register(String.class, new TextCodec("string") {
+            public Object decode(String text) {
+                return text;
+            }
+        });
+        register(byte[].class, new PropertyCodec() {
+            public String getType() {
+                return "bytes";
+            }
+
+            public String encode(Object value) {
+                return StringUtils.encodeBase64((byte[]) value);
+            }
+
+            public Object decode(String text) {
+                return StringUtils.decodeBase64(text);
+            }
+        });
+        register(UUID.class, new TextCodec("uuid") {
+            public Object decode(String text) {
+                return UUID.fromString(text);
+            }
+        });
+        register(Date.class, new PropertyCodec() {
+            public String getType() {
+                return "timestamp";
+            }
+
+            public String encode(Object value) {
+                return Long.toString(((Date) value).getTime());
+            }
+
+            public Object decode(String text) {
+                return new Date(Long.parseLong(text));
+            }
+        });
+        register(List.class, new BinaryCodec("list"));
+        register(Map.class, new BinaryCodec("map"));
+    }
+
+    private PropertyCodecs() {
+    }
+
+    /**
+     * Registers a codec for values of a class and its sub-classes, replacing
+     * any codec registered for the class or the type name of the codec.
+     * Codecs registered for a super-class are used for values of sub-classes
+     * only if no codec is registered for the exact class, in the order they
+     * were registered.
+     *
+     * @param valueClass the class of values the codec encodes.
+     * @param codec the codec.
+     */
+    public static synchronized void register(Class<?> valueClass, PropertyCodec codec) {
+        if (valueClass == null || codec == null || codec.getType() == null) {
+            throw new IllegalArgumentException("Parameters cannot be null.");
+        }
+        unregister(codec.getType());
+        for (Registration registration : registrations) {
+            if (registration.valueClass == valueClass) {
+                unregister(registration.codec.getType());
+            }
+        }
+        registrations.add(new Registration(valueClass, codec));
+        decoders.put(codec.getType(), codec);
+        encoders.clear();
+    }
+
+    /**
+     * Unregisters the codec of a type. Values of the type are no longer
+     * accepted from received packets.
+     *
+     * @param type the name of the type.
+     */
+    public static synchronized void unregister(String type) {
+        PropertyCodec codec = decoders.remove(type);
+        if (codec != null) {
+            for (Registration registration : registrations) {
+                if (registration.codec == codec) {
+                    registrations.remove(registration);
+                }
+            }
+            encoders.clear();
+        }
+    }
+
+    /**
+     * Returns the codec encoding a value.
+     *
+     * @param value the value.
+     * @return the codec, or null if values of the class can't be encoded.
+     */
+    public static PropertyCodec getEncoder(Object value) {
+        Class<?> valueClass = value.getClass();
+        PropertyCodec codec = encoders.get(valueClass);
+        if (codec == null) {
+            for (Registration registration : registrations) {
+                if (registration.valueClass.isAssignableFrom(valueClass)) {
+                    codec = registration.codec;
+                    encoders.put(valueClass, codec);
+                    break;
+                }
+            }
+        }
+        if (codec == null && javaSerializationEnabled && value instanceof Serializable) {
+            codec = JavaObjectCodec.INSTANCE;
+        }
+        return codec;
+    }
+
+    /**
+     * Checks that a value can be encoded, including the elements of lists
+     * and maps encoded in the binary format.
+     *
+     * @param value the value.
+     * @throws IllegalArgumentException if the value can't be encoded.
+     */
+    static void checkEncodable(Object value) {
+        PropertyCodec codec = value == null ? null : getEncoder(value);
+        if (codec == null) {
+            throw new IllegalArgumentException("No property codec for value");
+        }
+        if (codec instanceof BinaryCodec) {
+            checkBinaryValue(value, 0);
+        }
+    }
+
+    /**
+     * Checks that a value can be written by {@link #writeValue}.
+     */
+    private static void checkBinaryValue(Object value, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Property value nested too deep");
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                checkBinaryValue(element, depth + 1);
+            }
+        }
+        else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                checkBinaryValue(entry.getKey(), depth + 1);
+                checkBinaryValue(entry.getValue(), depth + 1);
+            }
+        }
+        else if (!(value == null || value instanceof Integer || value instanceof Long ||
+                value instanceof Float || value instanceof Double ||
+                value instanceof Boolean || value instanceof String ||
+                value instanceof byte[] || value instanceof UUID ||
+                value instanceof Date ||
+                (javaSerializationEnabled && value instanceof Serializable))) {
+            throw new IllegalArgumentException("Can't encode property value of " +
+                    value.getClass());
+        }
+    }
+
+    /**
+     * Returns the codec decoding values of a type.
+     *
+     * @param type the name of the type.
+     * @return the codec, or null if values of the type are not accepted.
+     */
+    public static PropertyCodec getDecoder(String type) {
+        if (type == null) {
+            return null;
+        }
+        PropertyCodec codec = decoders.get(type);
+        if (codec == null && javaSerializationEnabled && JAVA_OBJECT.equals(type)) {
+            codec = JavaObjectCodec.INSTANCE;
+        }
+        return codec;
+    }
+
+    /**
+     * Sets whether values without a codec may be sent and received using Java
+     * serialization. Only classes allowed by
+     * {@link #addAllowedClass(String)} are deserialized.
+     *
+     * @param enabled true to enable Java serialization.
+     */
+    public static void setJavaSerializationEnabled(boolean enabled) {
+        javaSerializationEnabled = enabled;
+    }
+
+    /**
+     * Tells if values without a codec may be sent and received using Java
+     * serialization.
+     *
+     * @return true if Java serialization is enabled.
+     */
+    public static boolean isJavaSerializationEnabled() {
+        return javaSerializationEnabled;
+    }
+
+    /**
+     * Allows a class to be deserialized when Java serialization is enabled.
+     * Every class of the serialized objects, including super-classes and
+     * the classes of fields, must be allowed.
+     *
+     * @param className the name of the class.
+     */
+    public static void addAllowedClass(String className) {
+        allowedClasses.add(className);
+    }
+
+    /**
+     * Disallows a class to be deserialized.
+     *
+     * @param className the name of the class.
+     */
+    public static void removeAllowedClass(String className) {
+        allowedClasses.remove(className);
+    }
+
+    /**
+     * A codec registered for a class.
+     */
+    private static class Registration {
+        private final Class<?> valueClass;
+        private final PropertyCodec codec;
+
+        Registration(Class<?> valueClass, PropertyCodec codec) {
+            this.valueClass = valueClass;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * A codec encoding values using toString().
+     */
+    private static abstract class TextCodec implements PropertyCodec {
+        private final String type;
+
+        TextCodec(String type) {
+            this.type = type;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String encode(Object value) {
+            return value.toString();
+        }
+    }
+
+    /**
+     * A codec encoding lists and maps in the binary format, base-64 encoded.
+     */
+    private static class BinaryCodec implements PropertyCodec {
+        private final String type;
+
+        BinaryCodec(String type) {
+            this.type = type;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String encode(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeValue(out, value);
+            out.flush();
+            return StringUtils.encodeBase64(bytes.toByteArray());
+        }
+
+        public Object decode(String text) throws IOException {
+            byte[] bytes = StringUtils.decodeBase64(text);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            Object value = readValue(in, 0);
+            if (type.equals("list") ? !(value instanceof List) : !(value instanceof Map)) {
+                throw new IOException("Not a " + type + ".");
+            }
+            return value;
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(TAG_INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeBytes(out, ((String) value).getBytes("UTF-8"));
+        }
+        else if (value instanceof byte[]) {
+            out.writeByte(TAG_BYTES);
+            writeBytes(out, (byte[]) value);
+        }
+        else if (value instanceof UUID) {
+            out.writeByte(TAG_UUID);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        }
+        else if (value instanceof Date) {
+            out.writeByte(TAG_TIMESTAMP);
+            out.writeLong(((Date) value).getTime());
+        }
+        else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TAG_LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        }
+        else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(TAG_MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+        else if (javaSerializationEnabled && value instanceof Serializable) {
+            out.writeByte(TAG_JAVA_OBJECT);
+            writeBytes(out, JavaObjectCodec.serialize(value));
+        }
+        else {
+            throw new IOException("Can't encode property value of " + value.getClass());
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Object readValue(DataInputStream in, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Property value nested too deeply.");
+        }
+        int tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_INTEGER:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_STRING:
+                return new String(readBytes(in), "UTF-8");
+            case TAG_BYTES:
+                return readBytes(in);
+            case TAG_UUID:
+                return new UUID(in.readLong(), in.readLong());
+            case TAG_TIMESTAMP:
+                return new Date(in.readLong());
+            case TAG_LIST: {
+                int size = readSize(in);
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, depth + 1));
+                }
+                return list;
+            }
+            case TAG_MAP: {
+                int size = readSize(in);
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue(in, depth + 1);
+                    map.put(key, readValue(in, depth + 1));
+                }
+                return map;
+            }
+            case TAG_JAVA_OBJECT:
+                if (javaSerializationEnabled) {
+                    return JavaObjectCodec.deserialize(readBytes(in));
+                }
+                throw new IOException("Java serialization is disabled.");
+            default:
+                throw new IOException("Unknown property value tag " + tag + ".");
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readSize(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the size of a value, which can't be larger than the remaining
+     * input since every element takes at least a byte.
+     */
+    private static int readSize(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > in.available()) {
+            throw new IOException("Invalid property value size " + size + ".");
+        }
+        return size;
+    }
+
+    /**
+     * A codec using Java serialization, base-64 encoded, only deserializing
+     * allowed classes.
+     */
+    private static class JavaObjectCodec implements PropertyCodec {
+        private static final JavaObjectCodec INSTANCE = new JavaObjectCodec();
+
+        public String getType() {
+            return JAVA_OBJECT;
+        }
+
+        public String encode(Object value) throws IOException {
+            return StringUtils.encodeBase64(serialize(value));
+        }
+
+        public Object decode(String text) throws Exception {
+            return deserialize(StringUtils.decodeBase64(text));
+        }
+
+        static byte[] serialize(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        static Object deserialize(byte[] bytes) throws IOException {
+            ObjectInputStream in = new AllowedClassInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return in.readObject();
+            }
+            catch (ClassNotFoundException cnfe) {
+                throw new InvalidClassException(cnfe.getMessage());
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * An object input stream refusing to resolve classes not allowed.
+     */
+    private static class AllowedClassInputStream extends ObjectInputStream {
+
+        AllowedClassInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            // Arrays are allowed if their elements are
+            String elementName = name;
+            while (elementName.startsWith("[")) {
+                elementName = elementName.substring(1);
+            }
+            if (elementName.startsWith("L") && elementName.endsWith(";")) {
+                elementName = elementName.substring(1, elementName.length() - 1);
+            }
+            else if (elementName.length() == 1 && !elementName.equals(name)) {
+                // An array of primitives
+                return super.resolveClass(desc);
+            }
+            if (!allowedClasses.contains(elementName)) {
+                throw new InvalidClassException(name, "Class not allowed in packet properties.");
+            }
+            return super.resolveClass(desc);
+        }
+
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes not allowed in packet properties.");
+        }
+    }
+}
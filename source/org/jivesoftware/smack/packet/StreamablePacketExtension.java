@@ -0,0 +1,37 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.XMLBuffer;
+
+/**
+ * A packet extension which can write itself directly into the buffer of the
+ * connection when its packet is sent. Extensions not implementing this
+ * interface are written using {@link PacketExtension#toXML()}.
+ *
+ * @author Jonas Ådahl
+ */
+public interface StreamablePacketExtension extends PacketExtension {
+
+    /**
+     * Writes the XML representation of the extension into a buffer. The
+     * XML must be the same as returned by {@link PacketExtension#toXML()}.
+     *
+     * @param buffer the buffer to write to.
+     */
+    public void toXML(XMLBuffer buffer);
+}
@@ -22,13 +22,13 @@ package org.jivesoftware.smack.provider;
 
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.IntrospectionBinder;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages providers for parsing custom XML sub-documents of XMPP packets. Two types of
@@ -119,8 +119,10 @@ public class ProviderManager {
 
     private static ProviderManager instance;
 
-    private Map<String, Object> extensionProviders = new ConcurrentHashMap<String, Object>();
-    private Map<String, Object> iqProviders = new ConcurrentHashMap<String, Object>();
+    // The providers are looked up for every parsed IQ child element and packet
+    // extension, so they are kept in immutable registries replaced on change.
+    private volatile ProviderRegistry extensionProviders = ProviderRegistry.EMPTY;
+    private volatile ProviderRegistry iqProviders = ProviderRegistry.EMPTY;
 
     /**
      * Returns the only ProviderManager valid instance.  Use {@link #setInstance(ProviderManager)}
@@ -201,8 +203,7 @@ public class ProviderManager {
                         String className = parser.nextText();
                         // Only add the provider for the namespace if one isn't
                         // already registered.
-                        String key = getProviderKey(elementName, namespace);
-                        if (!iqProviders.containsKey(key)) {
+                        if (iqProviders.get(elementName, namespace) == null) {
                             // Attempt to load the provider class and then create
                             // a new instance if it's an IQProvider. Otherwise, if it's
                             // an IQ class, add the class object itself, then we'll use
@@ -211,10 +212,11 @@ public class ProviderManager {
                                 // Add the provider to the map.
                                 Class provider = Class.forName(className);
                                 if (IQProvider.class.isAssignableFrom(provider)) {
-                                    iqProviders.put(key, provider.newInstance());
+                                    putIQProvider(elementName, namespace,
+                                            provider.newInstance());
                                 }
                                 else if (IQ.class.isAssignableFrom(provider)) {
-                                    iqProviders.put(key, provider);
+                                    putIQProvider(elementName, namespace, provider);
                                 }
                             }
                             catch (ClassNotFoundException cnfe) {
@@ -234,8 +236,7 @@ public class ProviderManager {
                         String className = parser.nextText();
                         // Only add the provider for the namespace if one isn't
                         // already registered.
-                        String key = getProviderKey(elementName, namespace);
-                        if (!extensionProviders.containsKey(key)) {
+                        if (extensionProviders.get(elementName, namespace) == null) {
                             // Attempt to load the provider class and then create
                             // a new instance if it's a Provider. Otherwise, if it's
                             // a PacketExtension, add the class object itself and
@@ -246,11 +247,12 @@ public class ProviderManager {
                                 Class provider = Class.forName(className);
                                 if (PacketExtensionProvider.class.isAssignableFrom(
                                             provider)) {
-                                    extensionProviders.put(key, provider.newInstance());
+                                    putExtensionProvider(elementName, namespace,
+                                            provider.newInstance());
                                             }
                                 else if (PacketExtension.class.isAssignableFrom(
                                             provider)) {
-                                    extensionProviders.put(key, provider);
+                                    putExtensionProvider(elementName, namespace, provider);
                                             }
                             }
                             catch (ClassNotFoundException cnfe) {
@@ -294,8 +296,7 @@ public class ProviderManager {
      * @return the IQ provider.
      */
     public Object getIQProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return iqProviders.get(key);
+        return iqProviders.get(elementName, namespace);
     }
 
     /**
@@ -306,7 +307,7 @@ public class ProviderManager {
      * @return all IQProvider instances.
      */
     public Collection<Object> getIQProviders() {
-        return Collections.unmodifiableCollection(iqProviders.values());
+        return iqProviders.values();
     }
 
     /**
@@ -327,8 +328,7 @@ public class ProviderManager {
             throw new IllegalArgumentException("Provider must be an IQProvider " +
                     "or a Class instance.");
         }
-        String key = getProviderKey(elementName, namespace);
-        iqProviders.put(key, provider);
+        putIQProvider(elementName, namespace, provider);
     }
 
     /**
@@ -339,9 +339,10 @@ public class ProviderManager {
      * @param elementName the XML element name.
      * @param namespace the XML namespace.
      */
-    public void removeIQProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        iqProviders.remove(key);
+    public synchronized void removeIQProvider(String elementName, String namespace) {
+        Map<String, Map<String, Object>> providers = iqProviders.copyProviders();
+        ProviderRegistry.remove(providers, elementName, namespace);
+        iqProviders = new ProviderRegistry(providers);
     }
 
     /**
@@ -364,8 +365,7 @@ public class ProviderManager {
      * @return the extenion provider.
      */
     public Object getExtensionProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        return extensionProviders.get(key);
+        return extensionProviders.get(elementName, namespace);
     }
 
     /**
@@ -384,8 +384,7 @@ public class ProviderManager {
             throw new IllegalArgumentException("Provider must be a PacketExtensionProvider " +
                     "or a Class instance.");
         }
-        String key = getProviderKey(elementName, namespace);
-        extensionProviders.put(key, provider);
+        putExtensionProvider(elementName, namespace, provider);
     }
 
     /**
@@ -396,9 +395,10 @@ public class ProviderManager {
      * @param elementName the XML element name.
      * @param namespace the XML namespace.
      */
-    public void removeExtensionProvider(String elementName, String namespace) {
-        String key = getProviderKey(elementName, namespace);
-        extensionProviders.remove(key);
+    public synchronized void removeExtensionProvider(String elementName, String namespace) {
+        Map<String, Map<String, Object>> providers = extensionProviders.copyProviders();
+        ProviderRegistry.remove(providers, elementName, namespace);
+        extensionProviders = new ProviderRegistry(providers);
     }
 
     /**
@@ -409,20 +409,57 @@ public class ProviderManager {
      * @return all PacketExtensionProvider instances.
      */
     public Collection<Object> getExtensionProviders() {
-        return Collections.unmodifiableCollection(extensionProviders.values());
+        return extensionProviders.values();
     }
 
     /**
-     * Returns a String key for a given element name and namespace.
+     * Registers an IQ provider by replacing the IQ provider registry with a
+     * changed copy.
      *
-     * @param elementName the element name.
-     * @param namespace the namespace.
-     * @return a unique key for the element name and namespace pair.
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param provider the IQ provider.
+     */
+    private synchronized void putIQProvider(String elementName, String namespace,
+            Object provider) {
+        prepareIntrospection(provider);
+        Map<String, Map<String, Object>> providers = iqProviders.copyProviders();
+        ProviderRegistry.put(providers, elementName, namespace, provider);
+        iqProviders = new ProviderRegistry(providers);
+    }
+
+    /**
+     * Registers an extension provider by replacing the extension provider
+     * registry with a changed copy.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param provider the extension provider.
      */
-    private String getProviderKey(String elementName, String namespace) {
-        StringBuilder buf = new StringBuilder();
-        buf.append("<").append(elementName).append("/><").append(namespace).append("/>");
-        return buf.toString();
+    private synchronized void putExtensionProvider(String elementName, String namespace,
+            Object provider) {
+        prepareIntrospection(provider);
+        Map<String, Map<String, Object>> providers = extensionProviders.copyProviders();
+        ProviderRegistry.put(providers, elementName, namespace, provider);
+        extensionProviders = new ProviderRegistry(providers);
+    }
+
+    /**
+     * Resolves how to parse a provider registered as a class, so that it's
+     * not done while parsing packets.
+     *
+     * @param provider the provider.
+     */
+    private void prepareIntrospection(Object provider) {
+        if (provider instanceof Class) {
+            try {
+                IntrospectionBinder.getBinder((Class) provider);
+            }
+            catch (Exception e) {
+                // Fails again when parsing
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
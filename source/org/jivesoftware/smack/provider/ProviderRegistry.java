@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.provider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable set of providers, by namespace and element name. Looking up a
+ * provider is two hash map lookups on the names as given by the parser, not
+ * allocating any key. Changes are made by copying the providers, changing the
+ * copy and creating a new registry from it.
+ *
+ * @author Jonas Ådahl
+ */
+final class ProviderRegistry {
+
+    static final ProviderRegistry EMPTY =
+            new ProviderRegistry(new HashMap<String, Map<String, Object>>());
+
+    // Providers by namespace, then element name
+    private final Map<String, Map<String, Object>> providers;
+    private final Collection<Object> values;
+
+    /**
+     * Creates a registry, taking ownership of the given maps.
+     *
+     * @param providers the providers by namespace, then element name.
+     */
+    ProviderRegistry(Map<String, Map<String, Object>> providers) {
+        this.providers = providers;
+        List<Object> values = new ArrayList<Object>();
+        for (Map<String, Object> elements : providers.values()) {
+            values.addAll(elements.values());
+        }
+        this.values = Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Returns the provider registered to an element name and namespace.
+     *
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @return the provider, or null if there is none.
+     */
+    Object get(String elementName, String namespace) {
+        Map<String, Object> elements = providers.get(namespace);
+        if (elements == null) {
+            return null;
+        }
+        return elements.get(elementName);
+    }
+
+    /**
+     * Returns all providers.
+     *
+     * @return an unmodifiable collection of the providers.
+     */
+    Collection<Object> values() {
+        return values;
+    }
+
+    /**
+     * Returns a mutable copy of the providers of this registry, to be given
+     * to a new registry once changed.
+     *
+     * @return the providers by namespace, then element name.
+     */
+    Map<String, Map<String, Object>> copyProviders() {
+        Map<String, Map<String, Object>> copy =
+                new HashMap<String, Map<String, Object>>(providers.size() * 2);
+        for (Map.Entry<String, Map<String, Object>> entry : providers.entrySet()) {
+            copy.put(entry.getKey(), new HashMap<String, Object>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Registers a provider in a copy of the providers of a registry.
+     *
+     * @param providers the copied providers.
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     * @param provider the provider.
+     */
+    static void put(Map<String, Map<String, Object>> providers, String elementName,
+            String namespace, Object provider) {
+        Map<String, Object> elements = providers.get(namespace);
+        if (elements == null) {
+            elements = new HashMap<String, Object>();
+            providers.put(namespace, elements);
+        }
+        elements.put(elementName, provider);
+    }
+
+    /**
+     * Unregisters a provider in a copy of the providers of a registry.
+     *
+     * @param providers the copied providers.
+     * @param elementName the XML element name.
+     * @param namespace the XML namespace.
+     */
+    static void remove(Map<String, Map<String, Object>> providers, String elementName,
+            String namespace) {
+        Map<String, Object> elements = providers.get(namespace);
+        if (elements != null) {
+            elements.remove(elementName);
+            if (elements.isEmpty()) {
+                providers.remove(namespace);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timer for a large number of coarse-grained timeouts, such as idle and
+ * keep-alive timeouts of connections, using a single thread. Timeouts are
+ * kept in a wheel of buckets, each covering one tick; scheduling and
+ * cancelling a timeout are O(1) and the timer thread only touches the bucket
+ * of the current tick. Timeouts fire with a precision of one tick.<p>
+ *
+ * Expired tasks are handed to an executor, so that a slow task doesn't delay
+ * other timeouts.
+ *
+ * @author Jonas Ådahl
+ */
+public class HashedWheelTimer {
+
+    private final String name;
+    private final long tickNanos;
+    private final LinkedList<Timeout>[] wheel;
+    private final int mask;
+    private final Executor executor;
+
+    // Timeouts scheduled since the last tick, moved to the wheel by the timer thread.
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private Thread thread;
+    private long startTime;
+    private long tick = 0;
+
+    /**
+     * Creates a new timer. The timer thread is started when the first timeout
+     * is scheduled.
+     *
+     * @param name the name of the timer thread.
+     * @param tickDuration the duration of one tick.
+     * @param unit the unit of the tick duration.
+     * @param wheelSize the number of buckets, rounded up to a power of two.
+     * @param executor the executor used to run expired tasks.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize,
+            Executor executor) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive.");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        LinkedList<Timeout>[] buckets = new LinkedList[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new LinkedList<Timeout>();
+        }
+        this.wheel = buckets;
+        this.mask = size - 1;
+        this.executor = executor;
+    }
+
+    /**
+     * Schedule a task to be run once after the given delay.
+     *
+     * @param task the task to run.
+     * @param delay the delay.
+     * @param unit the unit of the delay.
+     * @return a handle which may be used to cancel the timeout.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        start();
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(task, deadline);
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            startTime = System.nanoTime();
+            thread = new Thread() {
+                public void run() {
+                    loop();
+                }
+            };
+            thread.setName(name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            waitForNextTick();
+            transferNewTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+            }
+            catch (InterruptedException ie) {
+                // Ignore
+            }
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long expiryTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            // Timeouts already due are put in the current bucket
+            long ticks = Math.max(expiryTick, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(LinkedList<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            }
+            else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                timeout.expire();
+            }
+            else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * A handle to a scheduled task.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+        private volatile boolean expired = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout. The task will not be run unless it already has
+         * expired.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns true if the timeout has been cancelled.
+         *
+         * @return true if cancelled.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Returns true if the timeout has expired and its task has been
+         * handed over for execution.
+         *
+         * @return true if expired.
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+
+        private void expire() {
+            expired = true;
+            try {
+                executor.execute(task);
+            }
+            catch (RejectedExecutionException ree) {
+                ree.printStackTrace();
+            }
+        }
+    }
+}
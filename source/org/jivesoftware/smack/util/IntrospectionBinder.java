@@ -0,0 +1,212 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses XML sub-elements into the properties of a bean, for providers
+ * registered as classes instead of provider instances. Each child element
+ * sets the bean property of the same name, decoded from the element text.<p>
+ *
+ * The binder of a class is created once and cached. The setters of the
+ * properties, and how to decode their values, are resolved when the binder
+ * is created, so parsing an element is a map lookup and a method call per
+ * property. Properties not found by bean introspection are resolved the
+ * first time they're parsed.
+ *
+ * @author Jonas Ådahl
+ */
+public final class IntrospectionBinder {
+
+    private static final Map<Class<?>, IntrospectionBinder> binders =
+            new ConcurrentHashMap<Class<?>, IntrospectionBinder>();
+
+    private final Class<?> objectClass;
+    private final Map<String, Setter> setters = new ConcurrentHashMap<String, Setter>();
+
+    private IntrospectionBinder(Class<?> objectClass) throws IntrospectionException {
+        this.objectClass = objectClass;
+        BeanInfo info = Introspector.getBeanInfo(objectClass);
+        for (PropertyDescriptor descriptor : info.getPropertyDescriptors()) {
+            // Like PropertyDescriptor(String, Class), require both accessors
+            if (descriptor.getReadMethod() != null && descriptor.getWriteMethod() != null) {
+                setters.put(descriptor.getName(), new Setter(descriptor));
+            }
+        }
+    }
+
+    /**
+     * Returns the binder of a class, creating it if it's the first time
+     * the class is bound.
+     *
+     * @param objectClass the class of the beans to parse.
+     * @return the binder of the class.
+     * @throws IntrospectionException if the class can't be introspected.
+     */
+    public static IntrospectionBinder getBinder(Class<?> objectClass) throws IntrospectionException {
+        IntrospectionBinder binder = binders.get(objectClass);
+        if (binder == null) {
+            binder = new IntrospectionBinder(objectClass);
+            binders.put(objectClass, binder);
+        }
+        return binder;
+    }
+
+    /**
+     * Parses the child elements of an element into a new bean.
+     *
+     * @param elementName the name of the element, ending the parsing.
+     * @param parser the XML parser, positioned at the start of the element.
+     * @return the bean.
+     * @throws Exception if the bean can't be created, an element doesn't match
+     *      a property of the bean, or a value can't be decoded.
+     */
+    public Object parse(String elementName, XmlPullParser parser) throws Exception {
+        boolean done = false;
+        Object object = objectClass.newInstance();
+        while (!done) {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.START_TAG) {
+                Setter setter = getSetter(parser.getName());
+                setter.set(object, parser.nextText());
+            }
+            else if (eventType == XmlPullParser.END_TAG) {
+                if (parser.getName().equals(elementName)) {
+                    done = true;
+                }
+            }
+        }
+        return object;
+    }
+
+    private Setter getSetter(String name) throws IntrospectionException {
+        Setter setter = setters.get(name);
+        if (setter == null) {
+            // Throws if the class doesn't have the property
+            setter = new Setter(new PropertyDescriptor(name, objectClass));
+            setters.put(name, setter);
+        }
+        return setter;
+    }
+
+    /**
+     * Decodes a String into the type of a property.
+     */
+    private static abstract class Decoder {
+        abstract Object decode(String value) throws Exception;
+    }
+
+    private static final Decoder STRING = new Decoder() {
+        Object decode(String value) {
+            return value;
+        }
+    };
+
+    private static final Decoder BOOLEAN = new Decoder() {
+        Object decode(String value) {
+            return Boolean.valueOf(value);
+        }
+    };
+
+    private static final Decoder INT = new Decoder() {
+        Object decode(String value) {
+            return Integer.valueOf(value);
+        }
+    };
+
+    private static final Decoder LONG = new Decoder() {
+        Object decode(String value) {
+            return Long.valueOf(value);
+        }
+    };
+
+    private static final Decoder FLOAT = new Decoder() {
+        Object decode(String value) {
+            return Float.valueOf(value);
+        }
+    };
+
+    private static final Decoder DOUBLE = new Decoder() {
+        Object decode(String value) {
+            return Double.valueOf(value);
+        }
+    };
+
+    private static final Decoder CLASS = new Decoder() {
+        Object decode(String value) throws Exception {
+            return Class.forName(value);
+        }
+    };
+
+    // Types not supported are set to null
+    private static final Decoder UNSUPPORTED = new Decoder() {
+        Object decode(String value) {
+            return null;
+        }
+    };
+
+    private static Decoder getDecoder(Class<?> type) {
+        if (type == String.class) {
+            return STRING;
+        }
+        if (type == boolean.class) {
+            return BOOLEAN;
+        }
+        if (type == int.class) {
+            return INT;
+        }
+        if (type == long.class) {
+            return LONG;
+        }
+        if (type == float.class) {
+            return FLOAT;
+        }
+        if (type == double.class) {
+            return DOUBLE;
+        }
+        if (type == Class.class) {
+            return CLASS;
+        }
+        return UNSUPPORTED;
+    }
+
+    /**
+     * The write method of a property and the decoder of its type.
+     */
+    private static class Setter {
+        private final Method method;
+        private final Decoder decoder;
+
+        Setter(PropertyDescriptor descriptor) {
+            method = descriptor.getWriteMethod();
+            decoder = getDecoder(descriptor.getPropertyType());
+        }
+
+        void set(Object object, String value) throws Exception {
+            method.invoke(object, decoder.decode(value));
+        }
+    }
+}
@@ -25,9 +25,6 @@ import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.xmlpull.v1.XmlPullParser;
 
-import java.beans.PropertyDescriptor;
-import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -215,15 +212,15 @@ public class PacketParserUtils {
     }
 
     /**
-     * Parse a properties sub-packet. If any errors occur while de-serializing Java object
-     * properties, an exception will be printed and not thrown since a thrown
-     * exception will shut down the entire connection. ClassCastExceptions will occur
-     * when both the sender and receiver of the packet don't have identical versions
-     * of the same class.
+     * Parse a properties sub-packet. Values are decoded by the property codec
+     * registered for their type, and values of other types are left out. If any
+     * errors occur while decoding a value, an exception will be printed and not
+     * thrown since a thrown exception will shut down the entire connection.
      *
      * @param parser the XML parser, positioned at the start of a properties sub-packet.
      * @return a map of the properties.
      * @throws Exception if an error occurs while parsing the properties.
+     * @see PropertyCodecs
      */
     public static Map<String, Object> parseProperties(XmlPullParser parser) throws Exception {
         Map<String, Object> properties = new HashMap<String, Object>();
@@ -250,29 +247,11 @@ public class PacketParserUtils {
                     }
                     else if (eventType == XmlPullParser.END_TAG) {
                         if (parser.getName().equals("property")) {
-                            if ("integer".equals(type)) {
-                                value = new Integer(valueText);
-                            }
-                            else if ("long".equals(type))  {
-                                value = new Long(valueText);
-                            }
-                            else if ("float".equals(type)) {
-                                value = new Float(valueText);
-                            }
-                            else if ("double".equals(type)) {
-                                value = new Double(valueText);
-                            }
-                            else if ("boolean".equals(type)) {
-                                value = Boolean.valueOf(valueText);
-                            }
-                            else if ("string".equals(type)) {
-                                value = valueText;
-                            }
-                            else if ("java-object".equals(type)) {
+                            // Only types with a registered codec are accepted
+                            PropertyCodec codec = PropertyCodecs.getDecoder(type);
+                            if (codec != null && valueText != null) {
                                 try {
-                                    byte [] bytes = StringUtils.decodeBase64(valueText);
-                                    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
-                                    value = in.readObject();
+                                    value = codec.decode(valueText);
                                 }
                                 catch (Exception e) {
                                     e.printStackTrace();
@@ -423,65 +402,20 @@ public class PacketParserUtils {
     	return null;
     }
 
-    public static Object parseWithIntrospection(String elementName,
-            Class objectClass, XmlPullParser parser) throws Exception
-    {
-        boolean done = false;
-        Object object = objectClass.newInstance();
-        while (!done) {
-            int eventType = parser.next();
-            if (eventType == XmlPullParser.START_TAG) {
-                String name = parser.getName();
-                String stringValue = parser.nextText();
-                PropertyDescriptor descriptor = new PropertyDescriptor(name, objectClass);
-                // Load the class type of the property.
-                Class propertyType = descriptor.getPropertyType();
-                // Get the value of the property by converting it from a
-                // String to the correct object type.
-                Object value = decode(propertyType, stringValue);
-                // Set the value of the bean.
-                descriptor.getWriteMethod().invoke(object, value);
-            }
-            else if (eventType == XmlPullParser.END_TAG) {
-                if (parser.getName().equals(elementName)) {
-                    done = true;
-                }
-            }
-        }
-        return object;
-    }
-
     /**
-     * Decodes a String into an object of the specified type. If the object
-     * type is not supported, null will be returned.
+     * Parses the child elements of an element into a new bean of the given
+     * class, setting the property of each child element from its text.
      *
-     * @param type the type of the property.
-     * @param value the encode String value to decode.
-     * @return the String value decoded into the specified type.
-     * @throws Exception If decoding failed due to an error.
+     * @param elementName the XML element name of the bean.
+     * @param objectClass the class of the bean.
+     * @param parser the XML parser, positioned at the start of the element.
+     * @return the bean.
+     * @throws Exception if a parsing error occurs.
+     * @see IntrospectionBinder
      */
-    private static Object decode(Class type, String value) throws Exception {
-        if (type.getName().equals("java.lang.String")) {
-            return value;
-        }
-        if (type.getName().equals("boolean")) {
-            return Boolean.valueOf(value);
-        }
-        if (type.getName().equals("int")) {
-            return Integer.valueOf(value);
-        }
-        if (type.getName().equals("long")) {
-            return Long.valueOf(value);
-        }
-        if (type.getName().equals("float")) {
-            return Float.valueOf(value);
-        }
-        if (type.getName().equals("double")) {
-            return Double.valueOf(value);
-        }
-        if (type.getName().equals("java.lang.Class")) {
-            return Class.forName(value);
-        }
-        return null;
+    public static Object parseWithIntrospection(String elementName,
+            Class objectClass, XmlPullParser parser) throws Exception
+    {
+        return IntrospectionBinder.getBinder(objectClass).parse(elementName, parser);
     }
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future whose result is set explicitly by the producer, for example by
+ * the thread that finished establishing a connection or the reader that
+ * received a reply. Listeners may be added to be run once the future is
+ * completed, so that no thread has to block waiting for the result.
+ *
+ * @author Jonas Ådahl
+ */
+public class SettableFuture<V> implements Future<V> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+    private V value;
+    private Throwable exception;
+    private boolean cancelled = false;
+    private boolean completed = false;
+
+    /**
+     * Completes the future with the given value. Has no effect if the future
+     * is already completed.
+     *
+     * @param value the result.
+     * @return true if this call completed the future.
+     */
+    public boolean set(V value) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.value = value;
+            completed = true;
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * Completes the future exceptionally. Has no effect if the future is
+     * already completed.
+     *
+     * @param exception the reason of the failure.
+     * @return true if this call completed the future.
+     */
+    public boolean setException(Throwable exception) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.exception = exception;
+            completed = true;
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * Add a listener to be run when the future completes. If the future is
+     * already completed the listener is run immediately by the calling thread,
+     * otherwise it is run by the thread completing the future.
+     *
+     * @param listener the listener to run.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            completed = true;
+        }
+        complete();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    public V get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result();
+    }
+
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    /**
+     * Returns the result if the future has completed successfully, otherwise null.
+     * Never blocks.
+     *
+     * @return the result or null.
+     */
+    public synchronized V peek() {
+        return value;
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return value;
+    }
+
+    private void complete() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        latch.countDown();
+        if (toRun != null) {
+            for (Runnable listener : toRun) {
+                try {
+                    listener.run();
+                }
+                catch (Exception e) {
+                    // Catch and print any exception so we can recover
+                    // from a faulty listener
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A buffered writer encoding characters as UTF-8 to an output stream. Used
+ * instead of a BufferedWriter on top of an OutputStreamWriter, with the
+ * difference that packets may be serialized directly into the buffer of the
+ * writer, see {@link #getBuffer()}. The buffer is written to the stream when
+ * the writer is flushed or the buffer gets large.
+ *
+ * @author Jonas Ådahl
+ */
+public class UTF8Writer extends Writer {
+
+    // Buffered bytes written to the stream without waiting for a flush.
+    private static final int WRITE_THRESHOLD = 8192;
+
+    private final OutputStream out;
+    private final XMLBuffer buffer = new XMLBuffer();
+    private boolean closed = false;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param out the stream to write the encoded characters to.
+     */
+    public UTF8Writer(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns the buffer of this writer. Content appended to the buffer is
+     * written to the stream at the next flush. The buffer must only be used
+     * while holding the lock of the writer, that is, synchronizing on the
+     * writer.
+     *
+     * @return the buffer of the writer.
+     */
+    public XMLBuffer getBuffer() {
+        return buffer;
+    }
+
+    public void write(char[] chars, int offset, int length) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            buffer.append(chars, offset, length);
+            writeBufferIfLarge();
+        }
+    }
+
+    public void write(String s) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            buffer.append(s);
+            writeBufferIfLarge();
+        }
+    }
+
+    public void write(int c) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            buffer.append((char) c);
+            writeBufferIfLarge();
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            writeBuffer();
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            try {
+                writeBuffer();
+                out.flush();
+            }
+            finally {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Writer closed.");
+        }
+    }
+
+    private void writeBufferIfLarge() throws IOException {
+        if (buffer.size() >= WRITE_THRESHOLD) {
+            writeBuffer();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        try {
+            buffer.writeTo(out);
+        }
+        finally {
+            buffer.reset();
+        }
+    }
+}
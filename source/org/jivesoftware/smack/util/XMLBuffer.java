@@ -0,0 +1,331 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smack.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A growable buffer XML is serialized into, encoded as UTF-8 as it is
+ * appended. Packets are written into a buffer owned by the connection, which
+ * is reused for every packet, instead of building intermediate strings that
+ * are encoded again by the writer.<p>
+ *
+ * A buffer may instead collect characters in a string builder, which is used
+ * when a packet is serialized to a string with toXML(), avoiding encoding the
+ * XML only to decode it again.<p>
+ *
+ * This class is not thread safe.
+ *
+ * @see org.jivesoftware.smack.packet.Packet#toXML(XMLBuffer)
+ * @author Jonas Ådahl
+ */
+public class XMLBuffer {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    // Buffers grown larger than this by a large stanza are shrunk on reset.
+    private static final int MAX_RETAINED_CAPACITY = 65536;
+
+    private byte[] bytes;
+    private int count = 0;
+
+    // Builder collecting characters instead of bytes, if any.
+    private final StringBuilder chars;
+
+    // High surrogate of a pair split between two appends.
+    private char highSurrogate = 0;
+
+    /**
+     * Creates a new empty buffer.
+     */
+    public XMLBuffer() {
+        bytes = new byte[DEFAULT_CAPACITY];
+        chars = null;
+    }
+
+    /**
+     * Creates a new buffer appending characters to a string builder instead
+     * of encoding them.
+     *
+     * @param builder the builder to append to.
+     */
+    public XMLBuffer(StringBuilder builder) {
+        if (builder == null) {
+            throw new IllegalArgumentException("Parameter cannot be null.");
+        }
+        chars = builder;
+    }
+
+    /**
+     * Appends a string. A null string is appended as "null", like with a
+     * StringBuilder.
+     *
+     * @param s the string to append.
+     * @return this buffer.
+     */
+    public XMLBuffer append(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        if (chars != null) {
+            chars.append(s);
+            return this;
+        }
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            appendChar(s.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Appends a range of characters.
+     *
+     * @param chars the characters.
+     * @param offset the offset of the first character to append.
+     * @param length the number of characters to append.
+     * @return this buffer.
+     */
+    public XMLBuffer append(char[] chars, int offset, int length) {
+        if (this.chars != null) {
+            this.chars.append(chars, offset, length);
+            return this;
+        }
+        ensureCapacity(length);
+        for (int i = offset; i < offset + length; i++) {
+            appendChar(chars[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a character.
+     *
+     * @param c the character to append.
+     * @return this buffer.
+     */
+    public XMLBuffer append(char c) {
+        ensureCapacity(1);
+        appendChar(c);
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of an integer.
+     *
+     * @param i the integer to append.
+     * @return this buffer.
+     */
+    public XMLBuffer append(int i) {
+        return append(Integer.toString(i));
+    }
+
+    /**
+     * Appends the string representation of an object, such as an enum value.
+     *
+     * @param o the object to append.
+     * @return this buffer.
+     */
+    public XMLBuffer append(Object o) {
+        return append(String.valueOf(o));
+    }
+
+    /**
+     * Appends a string escaped for use as XML text or attribute value, in the
+     * same way as {@link StringUtils#escapeForXML(String)}. A null string
+     * is appended as "null".
+     *
+     * @param s the string to escape and append.
+     * @return this buffer.
+     */
+    public XMLBuffer appendEscaped(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c > '>') {
+                appendChar(c);
+            }
+            else if (c == '<') {
+                appendASCII("&lt;");
+            }
+            else if (c == '>') {
+                appendASCII("&gt;");
+            }
+            else if (c == '&') {
+                // Do nothing if the string is of the form &#235; (unicode value)
+                if (length > i + 5
+                        && s.charAt(i + 1) == '#'
+                        && Character.isDigit(s.charAt(i + 2))
+                        && Character.isDigit(s.charAt(i + 3))
+                        && Character.isDigit(s.charAt(i + 4))
+                        && s.charAt(i + 5) == ';') {
+                    appendChar(c);
+                }
+                else {
+                    appendASCII("&amp;");
+                }
+            }
+            else if (c == '"') {
+                appendASCII("&quot;");
+            }
+            else if (c == '\'') {
+                appendASCII("&apos;");
+            }
+            else {
+                appendChar(c);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes in the buffer, or the number of characters
+     * if the buffer collects characters.
+     *
+     * @return the number of bytes or characters.
+     */
+    public int size() {
+        return chars != null ? chars.length() : count;
+    }
+
+    /**
+     * Empties the buffer so that it can be reused.
+     */
+    public void reset() {
+        if (chars != null) {
+            chars.setLength(0);
+            return;
+        }
+        count = 0;
+        highSurrogate = 0;
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[DEFAULT_CAPACITY];
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to an output stream.
+     *
+     * @param out the output stream.
+     * @throws IOException if writing fails.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (chars != null) {
+            out.write(chars.toString().getBytes("UTF-8"));
+        }
+        else if (count > 0) {
+            out.write(bytes, 0, count);
+        }
+    }
+
+    /**
+     * Returns the content of the buffer decoded as a string.
+     *
+     * @return the content of the buffer.
+     */
+    public String toString() {
+        if (chars != null) {
+            return chars.toString();
+        }
+        try {
+            return new String(bytes, 0, count, "UTF-8");
+        }
+        catch (UnsupportedEncodingException uee) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    private void appendASCII(String s) {
+        if (chars != null) {
+            chars.append(s);
+            return;
+        }
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            bytes[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Encode a character. The buffer must have room for three more bytes
+     * per character, or four for a surrogate pair, which ensureCapacity
+     * reserves.
+     */
+    private void appendChar(char c) {
+        if (chars != null) {
+            chars.append(c);
+            return;
+        }
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                ensureCapacity(4);
+                bytes[count++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (codePoint & 0x3f));
+                return;
+            }
+            // Unpaired surrogate
+            bytes[count++] = '?';
+        }
+        if (c < 0x80) {
+            bytes[count++] = (byte) c;
+        }
+        else if (c < 0x800) {
+            bytes[count++] = (byte) (0xc0 | (c >> 6));
+            bytes[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate(c)) {
+            // Unpaired surrogate
+            bytes[count++] = '?';
+        }
+        else {
+            bytes[count++] = (byte) (0xe0 | (c >> 12));
+            bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Make room for the given number of characters, encoded as UTF-8.
+     */
+    private void ensureCapacity(int chars) {
+        if (bytes == null) {
+            return;
+        }
+        int required = count + 3 * chars + 1;
+        if (required > bytes.length) {
+            byte[] grown = new byte[Math.max(required, 2 * bytes.length)];
+            System.arraycopy(bytes, 0, grown, 0, count);
+            bytes = grown;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.jivesoftware.smackx;
 import org.jivesoftware.smack.AbstractConnection;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.AndFilter;
@@ -31,21 +32,29 @@ import org.jivesoftware.smackx.packet.DiscoverInfo;
 import org.jivesoftware.smackx.packet.CapsExtension;
 import org.jivesoftware.smackx.packet.DataForm;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 
 /**
- * Keeps track of entity capabilities.
+ * Keeps track of entity capabilities.<p>
+ *
+ * The manager counts how well the discovered information is cached: the
+ * lookups of the information of users which hit or missed the cache, the
+ * discovery queries issued because of misses, and the discovered information
+ * not matching the version it was discovered for.
  */
 public class EntityCapsManager {
 
@@ -72,13 +81,37 @@ public class EntityCapsManager {
     private Set<CapsVerListener> capsVerListeners =
         new CopyOnWriteArraySet<CapsVerListener>();
 
+    // Store keeping discovered information between sessions, if any.
+    private static volatile EntityCapsStore persistentStore = null;
+
     private String currentCapsVersion = null;
 
+    // Lookups of the information of users, found or not found in the cache
+    private final AtomicLong cacheHits = new AtomicLong(0);
+    private final AtomicLong cacheMisses = new AtomicLong(0);
+
+    // Discovery queries issued because of cache misses
+    private final AtomicLong discoQueries = new AtomicLong(0);
+
+    // Discovered information not matching the version of its node
+    private static final AtomicLong verificationFailures = new AtomicLong(0);
+
     static {
         ProviderManager.getInstance().addExtensionProvider(CapsExtension.NODE_NAME,
                 CapsExtension.XMLNS, new CapsExtensionProvider());
     }
 
+    /**
+     * Set the store keeping discovered information between sessions. Nodes
+     * not known in memory are looked up in the store, and the information of
+     * added nodes is stored if it matches the version of the node.
+     *
+     * @param store the persistent store, or null to not use one.
+     */
+    public static void setPersistentStore(EntityCapsStore store) {
+        persistentStore = store;
+    }
+
     /**
      * Add DiscoverInfo to the database.
      *
@@ -89,6 +122,16 @@ public class EntityCapsManager {
         cleanupDicsoverInfo(info);
 
         caps.put(node, info);
+
+        boolean verified = verifyDiscoverInfoVersion(node, info);
+        if (!verified) {
+            verificationFailures.incrementAndGet();
+        }
+
+        EntityCapsStore store = persistentStore;
+        if (store != null && verified) {
+            store.store(node, info);
+        }
     }
 
     /**
@@ -131,10 +174,98 @@ public class EntityCapsManager {
      */
     public DiscoverInfo getDiscoverInfoByUser(String user) {
         String capsNode = userCaps.get(user);
-        if (capsNode == null)
-            return null;
+        DiscoverInfo info = null;
+        if (capsNode != null)
+            info = getDiscoverInfoByNode(capsNode);
+
+        if (info != null)
+            cacheHits.incrementAndGet();
+        else
+            cacheMisses.incrementAndGet();
+        return info;
+    }
+
+    /**
+     * Get the number of users with a known entity caps node.
+     *
+     * @return the number of known users.
+     */
+    public int getUserCount() {
+        return userCaps.size();
+    }
+
+    /**
+     * Get the number of distinct entity caps nodes (node#ver) with known
+     * discovered information, not counting nodes only in the persistent
+     * store.
+     *
+     * @return the number of known nodes.
+     */
+    public static int getNodeCount() {
+        return caps.size();
+    }
+
+    /**
+     * Get the number of times the discovered information of a user was
+     * found in the cache.
+     *
+     * @return the number of cache hits.
+     * @see #getDiscoverInfoByUser(String)
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Get the number of times the discovered information of a user wasn't
+     * found in the cache, either because the entity caps node of the user
+     * or the information of the node is unknown.
+     *
+     * @return the number of cache misses.
+     * @see #getDiscoverInfoByUser(String)
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Get the ratio of lookups of the discovered information of users which
+     * were found in the cache.
+     *
+     * @return the cache hit ratio, or 0 if nothing has been looked up.
+     */
+    public double getCacheHitRatio() {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Get the number of service discovery queries issued because the
+     * discovered information of a user wasn't cached.
+     *
+     * @return the number of discovery queries.
+     */
+    public long getDiscoQueryCount() {
+        return discoQueries.get();
+    }
+
+    /**
+     * Get the number of times discovered information was added for an entity
+     * caps node whose version isn't the hash of the information. Such
+     * information is not persisted.
+     *
+     * @return the number of verification failures.
+     */
+    public static long getVerificationFailureCount() {
+        return verificationFailures.get();
+    }
 
-        return getDiscoverInfoByNode(capsNode);
+    /**
+     * Count a service discovery query issued because of a cache miss.
+     */
+    void discoQueryIssued() {
+        discoQueries.incrementAndGet();
     }
 
     /**
@@ -171,7 +302,118 @@ public class EntityCapsManager {
      * @return The corresponding DiscoverInfo or null if none is known.
      */
     public static DiscoverInfo getDiscoverInfoByNode(String node) {
-        return caps.get(node);
+        DiscoverInfo info = caps.get(node);
+        if (info == null) {
+            EntityCapsStore store = persistentStore;
+            if (store != null) {
+                info = store.load(node);
+                if (info != null) {
+                    caps.put(node, info);
+                }
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Verify that the version of an entity caps node is the hash of the
+     * discovered information of the node, as described in XEP-0115.
+     *
+     * @param node the entity caps node#ver.
+     * @param info the discovered information of the node.
+     * @return true if the version matches the information.
+     */
+    public static boolean verifyDiscoverInfoVersion(String node, DiscoverInfo info) {
+        int i = node.lastIndexOf('#');
+        if (i < 0) {
+            return false;
+        }
+        String version = generateVersion(info);
+        return version != null && version.equals(node.substring(i + 1));
+    }
+
+    /**
+     * Generate the entity caps version of discovered information.
+     *
+     * @param info the discovered information.
+     * @return the version string.
+     */
+    static String generateVersion(DiscoverInfo info) {
+        StringBuilder s = new StringBuilder();
+
+        // Add identities, sorted by category, type and name
+        SortedSet<String[]> identities = new TreeSet<String[]>(new Comparator<String[]>() {
+            public int compare(String[] i1, String[] i2) {
+                for (int i = 0; i < i1.length; i++) {
+                    int c = i1[i].compareTo(i2[i]);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return 0;
+            }
+        });
+        for (Iterator<DiscoverInfo.Identity> i = info.getIdentities(); i.hasNext();) {
+            DiscoverInfo.Identity identity = i.next();
+            identities.add(new String[] {
+                identity.getCategory() == null ? "" : identity.getCategory(),
+                identity.getType() == null ? "" : identity.getType(),
+                identity.getName() == null ? "" : identity.getName()
+            });
+        }
+        for (String[] identity : identities) {
+            s.append(identity[0]).append('/').append(identity[1]).append("//")
+                .append(identity[2]).append('<');
+        }
+
+        // Add features
+        SortedSet<String> features = new TreeSet<String>();
+        for (Iterator<DiscoverInfo.Feature> i = info.getFeatures(); i.hasNext();) {
+            features.add(i.next().getVar());
+        }
+        for (String feature : features) {
+            s.append(feature).append('<');
+        }
+
+        // Add extended information, sorted by FORM_TYPE
+        SortedMap<String,String> forms = new TreeMap<String,String>();
+        for (PacketExtension extension : info.getExtensions()) {
+            if (extension instanceof DataForm) {
+                addFormToCaps(forms, (DataForm) extension);
+            }
+        }
+        for (Map.Entry<String,String> form : forms.entrySet()) {
+            s.append(form.getKey()).append(form.getValue());
+        }
+
+        return capsToHash(s.toString());
+    }
+
+    /**
+     * Convert the fields of an extended information form to a part of the
+     * verification string, keyed by the FORM_TYPE value. Forms without a
+     * FORM_TYPE are ignored.
+     */
+    private static void addFormToCaps(Map<String,String> forms, DataForm form) {
+        String formType = null;
+        SortedMap<String,String> fields = new TreeMap<String,String>();
+        for (Iterator<FormField> i = form.getFields(); i.hasNext();) {
+            FormField f = i.next();
+            if (f.getVariable().equals("FORM_TYPE")) {
+                formType = formFieldValuesToCaps(f.getValues());
+            }
+            else {
+                fields.put(f.getVariable(), formFieldValuesToCaps(f.getValues()));
+            }
+        }
+        if (formType == null) {
+            return;
+        }
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String,String> field : fields.entrySet()) {
+            s.append(field.getKey()).append('<').append(field.getValue());
+        }
+        forms.put(formType, s.toString());
     }
 
     private static void cleanupDicsoverInfo(DiscoverInfo info) {
@@ -205,6 +447,11 @@ public class EntityCapsManager {
         }
     }
 
+    /**
+     * Print the known users and entity caps nodes. Only intended for
+     * debugging, as the output is proportional to the number of known
+     * entities.
+     */
     public void spam() {
         System.err.println("User nodes:");
         for (Map.Entry<String,String> e : userCaps.entrySet()) {
@@ -221,98 +468,129 @@ public class EntityCapsManager {
     //  Calculate Entity Caps Version String
     ///////////
 
+    /**
+     * Digests used to calculate caps versions. MessageDigest isn't thread
+     * safe, so each thread has its own, reused for every calculation.
+     */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(HASH_METHOD_CAPS);
+            }
+            catch (NoSuchAlgorithmException nsae) {
+                return null;
+            }
+        }
+    };
+
     private static String capsToHash(String capsString) {
+        MessageDigest md = digests.get();
+        if (md == null) {
+            return null;
+        }
+        md.reset();
+        return Base64.encodeBytes(md.digest(toBytes(capsString)));
+    }
+
+    private static byte[] toBytes(String s) {
         try {
-            MessageDigest md = MessageDigest.getInstance(HASH_METHOD_CAPS);
-            byte[] digest = md.digest(capsString.getBytes());
-            return Base64.encodeBytes(digest);
+            return s.getBytes("UTF-8");
         }
-        catch (NoSuchAlgorithmException nsae) {
-            return null;
+        catch (UnsupportedEncodingException uee) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(uee);
         }
     }
 
     private static String formFieldValuesToCaps(Iterator<String> i) {
-        String s = "";
         SortedSet<String> fvs = new TreeSet<String>();
         for (; i.hasNext();) {
             fvs.add(i.next());
         }
+        StringBuilder s = new StringBuilder();
         for (String fv : fvs) {
-            s += fv + "<";
+            s.append(fv).append('<');
         }
-        return s;
+        return s.toString();
     }
 
+    /**
+     * Calculate our own caps version. The verification string is fed to the
+     * digest piece by piece in the order of the sorted feature set, instead of
+     * being concatenated and sorted first. The entity caps feature, which is
+     * always included in our discovered information, is hashed at its sorted
+     * position.
+     *
+     * @param discoverInfo our own discovered information.
+     * @param identityType the type of our client identity.
+     * @param identityName the name of our client identity.
+     * @param features our sorted features, synchronized on when iterated.
+     * @param extendedInfo our extended information, or null.
+     */
     void calculateEntityCapsVersion(DiscoverInfo discoverInfo,
             String identityType,
-            String identityName, List<String> features,
+            String identityName, SortedSet<String> features,
             DataForm extendedInfo) {
-        String s = "";
+        MessageDigest md = digests.get();
+        if (md == null) {
+            setCurrentCapsVersion(discoverInfo, null);
+            return;
+        }
+        md.reset();
 
         // Add identity
         // FIXME language
-        s += "client/" + identityType + "//" + identityName + "<";
+        md.update(toBytes("client/" + identityType + "//" + identityName + "<"));
 
         // Add features
         synchronized (features) {
-            SortedSet<String> fs = new TreeSet<String>();
+            boolean capsAdded = features.contains(CapsExtension.XMLNS);
             for (String f : features) {
-                fs.add(f);
+                if (!capsAdded && f.compareTo(CapsExtension.XMLNS) > 0) {
+                    md.update(toBytes(CapsExtension.XMLNS + "<"));
+                    capsAdded = true;
+                }
+                md.update(toBytes(f));
+                md.update((byte) '<');
             }
-
-            for (String f : fs) {
-                s += f + "<";
+            if (!capsAdded) {
+                md.update(toBytes(CapsExtension.XMLNS + "<"));
             }
         }
 
         if (extendedInfo != null) {
+            SortedMap<String,String> forms = new TreeMap<String,String>();
             synchronized (extendedInfo) {
-                SortedSet<FormField> fs = new TreeSet<FormField>(
-                        new Comparator<FormField>() {
-                            public int compare(FormField f1, FormField f2) {
-                                return f1.getVariable().compareTo(f2.getVariable());
-                            }
-                        });
-
-                FormField ft = null;
-
-                for (Iterator<FormField> i = extendedInfo.getFields(); i.hasNext();) {
-                    FormField f = i.next();
-                    if (!f.getVariable().equals("FORM_TYPE")) {
-                        fs.add(f);
-                    }
-                    else {
-                        ft = f;
-                    }
-                }
-
-                // Add FORM_TYPE values
-                if (ft != null) {
-                    s += formFieldValuesToCaps(ft.getValues());
-                }
-
-                // Add the other values
-                for (FormField f : fs) {
-                    s += f.getVariable() + "<";
-                    s += formFieldValuesToCaps(f.getValues());
-                }
+                addFormToCaps(forms, extendedInfo);
+            }
+            for (Map.Entry<String,String> form : forms.entrySet()) {
+                md.update(toBytes(form.getKey()));
+                md.update(toBytes(form.getValue()));
             }
         }
 
-
-        setCurrentCapsVersion(discoverInfo, capsToHash(s));
+        setCurrentCapsVersion(discoverInfo, Base64.encodeBytes(md.digest()));
     }
 
     /**
-     * Set our own caps version.
+     * Set our own caps version. Our own discovered information is added to
+     * the cache without verifying it, since the version was calculated from it.
      *
-     * @param capsVersion the new caps version
+     * @param capsVersion the new caps version, or null if it couldn't be
+     * calculated.
      */
     public void setCurrentCapsVersion(DiscoverInfo discoverInfo, String capsVersion) {
+        boolean changed = capsVersion == null ?
+            currentCapsVersion != null : !capsVersion.equals(currentCapsVersion);
         currentCapsVersion = capsVersion;
-        addDiscoverInfoByNode(getNode() + "#" + capsVersion, discoverInfo);
-        notifyCapsVerListeners();
+        if (capsVersion != null) {
+            cleanupDicsoverInfo(discoverInfo);
+            caps.put(getNode() + "#" + capsVersion, discoverInfo);
+        }
+        // Only announce versions that differ from the last one
+        if (changed) {
+            notifyCapsVerListeners();
+        }
     }
 
     class CapsPacketListener implements PacketListener {
@@ -325,9 +603,6 @@ public class EntityCapsManager {
             String user = packet.getFrom();
 
             addUserCapsNode(user, nodeVer);
-            
-            // DEBUG
-            spam();
         }
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+/**
+ * Persistent store of entity capabilities, keeping the discovered information
+ * of entity caps nodes between sessions. Since the information of a node#ver
+ * never changes, a restarted client may use the stored information instead of
+ * querying every peer again.
+ *
+ * @see EntityCapsManager#setPersistentStore(EntityCapsStore)
+ * @author Jonas Ådahl
+ */
+public interface EntityCapsStore {
+
+    /**
+     * Load the discovered information of an entity caps node.
+     *
+     * @param node the entity caps node#ver.
+     * @return the discovered information, or null if it isn't stored.
+     */
+    public DiscoverInfo load(String node);
+
+    /**
+     * Store the discovered information of an entity caps node. The version of
+     * the node has been verified to match the information.
+     *
+     * @param node the entity caps node#ver.
+     * @param info the discovered information of the node.
+     */
+    public void store(String node, DiscoverInfo info);
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.smackx;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smackx.provider.DiscoverInfoProvider;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.UTFDataFormatException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An entity caps store keeping the discovered information of entity caps
+ * nodes in a file. The file is a sequence of records, each holding a node#ver
+ * and the XML of its discovered information, and is appended to as nodes are
+ * stored. The file is read the first time a node is looked up.<p>
+ *
+ * The number of stored nodes is bounded; when the bound is reached, the least
+ * recently used node is evicted. The file is rewritten without evicted and
+ * overwritten records when it has grown to twice the bound.
+ *
+ * @author Jonas Ådahl
+ */
+public class FileEntityCapsStore implements EntityCapsStore {
+
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    // Longest XML that surely fits in a record, at three bytes per character.
+    private static final int MAX_RECORD_LENGTH = 65535 / 3;
+
+    private final File file;
+    private final int maxEntries;
+
+    // Map of node#ver -> XML of the discovered information, in access order.
+    private Map<String,String> entries = null;
+
+    // Number of records in the file.
+    private int records = 0;
+
+    /**
+     * Creates a new store keeping up to 1000 nodes.
+     *
+     * @param file the file to keep the nodes in.
+     */
+    public FileEntityCapsStore(File file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a new store.
+     *
+     * @param file the file to keep the nodes in.
+     * @param maxEntries the maximum number of nodes to keep.
+     */
+    public FileEntityCapsStore(File file, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries must be positive.");
+        }
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized DiscoverInfo load(String node) {
+        String xml = getEntries().get(node);
+        if (xml == null) {
+            return null;
+        }
+        try {
+            return parseDiscoverInfo(xml);
+        }
+        catch (Exception e) {
+            // Corrupt record
+            e.printStackTrace();
+            entries.remove(node);
+            return null;
+        }
+    }
+
+    public synchronized void store(String node, DiscoverInfo info) {
+        String xml = info.getChildElementXML();
+        if (xml.length() > MAX_RECORD_LENGTH) {
+            return;
+        }
+        if (xml.equals(getEntries().put(node, xml))) {
+            // Already stored
+            return;
+        }
+        if (records + 1 >= 2 * maxEntries) {
+            rewrite();
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true)));
+            writeRecord(out, node, xml);
+            records++;
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Returns the number of stored nodes.
+     *
+     * @return the number of stored nodes.
+     */
+    public synchronized int size() {
+        return getEntries().size();
+    }
+
+    /**
+     * Returns the stored nodes, reading the file if it hasn't been read yet.
+     */
+    private Map<String,String> getEntries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<String,String>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+            read();
+        }
+        return entries;
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        // Length of the complete records read
+        long length = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                String node = in.readUTF();
+                String xml = in.readUTF();
+                entries.put(node, xml);
+                records++;
+                length += 4 + getUTFLength(node) + getUTFLength(xml);
+            }
+        }
+        catch (EOFException eofe) {
+            // End of file, or a record only partly written
+        }
+        catch (UTFDataFormatException udfe) {
+            // Corrupt record
+            udfe.printStackTrace();
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+            return;
+        }
+        finally {
+            close(in);
+        }
+        if (length < file.length()) {
+            // Records appended after a partly written one couldn't be read
+            truncate(length);
+        }
+    }
+
+    /**
+     * Truncate the file after the last complete record.
+     *
+     * @param length the length of the complete records.
+     */
+    private void truncate(long length) {
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(length);
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Returns the number of bytes a string is written as by writeUTF, not
+     * counting the length prefix.
+     */
+    private static int getUTFLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length++;
+            }
+            else if (c > 0x07ff) {
+                length += 3;
+            }
+            else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Rewrite the file with only the nodes currently stored.
+     */
+    private void rewrite() {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            for (Map.Entry<String,String> entry : entries.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                // Renaming over an existing file fails on some platforms
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to replace " + file);
+                }
+            }
+            records = entries.size();
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        finally {
+            close(out);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String node, String xml)
+            throws IOException {
+        out.writeUTF(node);
+        out.writeUTF(xml);
+    }
+
+    private static DiscoverInfo parseDiscoverInfo(String xml) throws Exception {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.nextTag();
+        return (DiscoverInfo) new DiscoverInfoProvider().parseIQ(parser);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -21,7 +21,8 @@ import org.jivesoftware.smack.LLServiceConnectionListener;
 import org.jivesoftware.smack.XMPPLLConnection;
 import org.jivesoftware.smack.LLService;
 import org.jivesoftware.smack.LLPresence;
-import org.jivesoftware.smack.LLPresenceListener;
+import org.jivesoftware.smack.LLPresenceChangeListener;
+import org.jivesoftware.smack.LLPresenceRegistry;
 import org.jivesoftware.smack.LLServiceListener;
 import org.jivesoftware.smack.LLServiceStateListener;
 import org.jivesoftware.smack.packet.Message;
@@ -30,11 +31,15 @@ import org.jivesoftware.smackx.packet.DiscoverInfo;
 import org.jivesoftware.smackx.packet.DiscoverItems;
 import org.jivesoftware.smackx.packet.DataForm;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
-import java.util.List;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.ArrayList;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 /** 
@@ -52,10 +57,15 @@ public class LLServiceDiscoveryManager {
 
     private Map<String, NodeInformationProvider> nodeInformationProviders =
             new ConcurrentHashMap<String,NodeInformationProvider>();
-    private final List<String> features =
-        new ArrayList<String>();
+    private final SortedSet<String> features =
+        new TreeSet<String>();
     private DataForm extendedInfo = null;
 
+    // Nesting depth of updates during which the caps version isn't renewed,
+    // and whether it needs to be renewed when the updates end.
+    private int updateDepth = 0;
+    private boolean capsVersionStale = false;
+
     private LLService service;
     private EntityCapsManager capsManager;
 
@@ -118,7 +128,7 @@ public class LLServiceDiscoveryManager {
 
         // Add presence listener. The presence listener will gather
         // entity caps data
-        service.addPresenceListener(new LLPresenceListener() {
+        service.addPresenceListener(new LLPresenceChangeListener() {
             public void presenceNew(LLPresence presence) {
                 if (presence.getHash() != null &&
                     presence.getNode() != null &&
@@ -129,6 +139,15 @@ public class LLServiceDiscoveryManager {
                 }
             }
 
+            public void presenceChanged(LLPresence previous, LLPresence presence,
+                    Set<LLPresence.Change> changes) {
+                // Only the entity caps are of interest
+                if (changes.contains(LLPresence.Change.CAPS)) {
+                    capsManager.removeUserCapsNode(presence.getServiceName());
+                    presenceNew(presence);
+                }
+            }
+
             public void presenceRemove(LLPresence presence) {
 
             }
@@ -328,15 +347,53 @@ public class LLServiceDiscoveryManager {
             if (capsManager != null) {
                 // Get the newest node#version
                 node = capsManager.getNodeVersionByUser(serviceName);
+                capsManager.discoQueryIssued();
             }
 
-            return discoverInfo(serviceName, node);
+            info = discoverInfo(serviceName, node);
+
+            // If the node version is known, store the new entry.
+            if (node != null && capsManager != null) {
+                EntityCapsManager.addDiscoverInfoByNode(node, info);
+            }
+
+            return info;
         }
         else {
             return info;
         }
     }
 
+    /**
+     * Returns the known presences supporting a feature, according to the
+     * discovered information of the entity caps nodes they announce. Only
+     * caps nodes whose information is already known, in memory or in the
+     * persistent store, are considered; no discovery requests are sent. The
+     * cost is proportional to the number of distinct caps nodes announced and
+     * the number of presences found, not to the number of known presences.
+     *
+     * @param feature the feature.
+     * @param status the status of the presences, or null for any status.
+     * @return the presences supporting the feature.
+     */
+    public Collection<LLPresence> getPresencesWithFeature(String feature,
+            LLPresence.Mode status) {
+        LLPresenceRegistry registry = service.getPresenceRegistry();
+        List<LLPresence> result = new ArrayList<LLPresence>();
+        for (String node : registry.getCapsNodes()) {
+            DiscoverInfo info = EntityCapsManager.getDiscoverInfoByNode(node);
+            if (info != null && info.containsFeature(feature)) {
+                if (status == null) {
+                    result.addAll(registry.getPresencesByCapsNode(node));
+                }
+                else {
+                    result.addAll(registry.getPresencesByCapsNode(node, status));
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns the discovered information of a given XMPP entity addressed by its JID and
      * note attribute. Use this message only when trying to query information which is not 
@@ -474,12 +531,64 @@ public class LLServiceDiscoveryManager {
      */
     public void addFeature(String feature) {
         synchronized (features) {
-            features.add(feature);
+            if (!features.add(feature)) {
+                return;
+            }
         }
 
         renewEntityCapsVersion();
     }
 
+    /**
+     * Registers that new features are supported by this XMPP entity. The caps
+     * version is calculated and announced once for all the features.
+     *
+     * @param features the features to register as supported.
+     * @see #addFeature(String)
+     */
+    public void addFeatures(Collection<String> features) {
+        beginUpdate();
+        try {
+            for (String feature : features) {
+                addFeature(feature);
+            }
+        }
+        finally {
+            endUpdate();
+        }
+    }
+
+    /**
+     * Begins a batch of changes to the features and extended information of
+     * this XMPP entity. The caps version isn't calculated nor announced until
+     * the batch is ended by a call to {@link #endUpdate()}, so that adding
+     * many features at once results in a single announcement. Batches may be
+     * nested.
+     */
+    public void beginUpdate() {
+        synchronized (features) {
+            updateDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch of changes begun by {@link #beginUpdate()}. If the
+     * outermost batch ended and anything changed, the caps version is
+     * calculated and announced.
+     */
+    public void endUpdate() {
+        synchronized (features) {
+            if (updateDepth == 0) {
+                throw new IllegalStateException("No update in progress.");
+            }
+            if (--updateDepth > 0 || !capsVersionStale) {
+                return;
+            }
+            capsVersionStale = false;
+        }
+        renewEntityCapsVersion();
+    }
+
     /**
      * Removes the specified feature from the supported features by this XMPP entity.<p>
      *
@@ -490,7 +599,9 @@ public class LLServiceDiscoveryManager {
      */
     public void removeFeature(String feature) throws XMPPException {
         synchronized (features) {
-            features.remove(feature);
+            if (!features.remove(feature)) {
+                return;
+            }
             for (XMPPLLConnection connection : service.getConnections())
                 ServiceDiscoveryManager.getInstanceFor(connection).removeFeature(feature);
         }
@@ -557,6 +668,12 @@ public class LLServiceDiscoveryManager {
     }
 
     private void renewEntityCapsVersion() {
+        synchronized (features) {
+            if (updateDepth > 0) {
+                capsVersionStale = true;
+                return;
+            }
+        }
         if (capsManager != null) {
             capsManager.calculateEntityCapsVersion(getOwnDiscoverInfo(),
                     ServiceDiscoveryManager.getIdentityType(),
@@ -66,7 +66,7 @@ public class ServiceDiscoveryManager {
             new ConcurrentHashMap<AbstractConnection, ServiceDiscoveryManager>();
 
     private AbstractConnection connection;
-    private final List<String> features = new ArrayList<String>();
+    private final SortedSet<String> features = new TreeSet<String>();
     private DataForm extendedInfo = null;
     private Map<String, NodeInformationProvider> nodeInformationProviders =
             new ConcurrentHashMap<String, NodeInformationProvider>();
@@ -522,6 +522,9 @@ public class ServiceDiscoveryManager {
             }
 
             // Discover by requesting from the remote client
+            if (capsManager != null) {
+                capsManager.discoQueryIssued();
+            }
             info = discoverInfo(entityID, node);
 
             // If the node version is known, store the new entry.
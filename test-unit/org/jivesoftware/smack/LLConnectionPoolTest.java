@@ -0,0 +1,159 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.jivesoftware.smack.filter.FromContainsFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class LLConnectionPoolTest {
+
+    private LoopbackNetwork network;
+    private LoopbackService romeo;
+    private LoopbackService juliet;
+    private LoopbackService mercutio;
+    private LoopbackService tybalt;
+
+    @Before
+    public void setUp() throws Exception {
+        network = new LoopbackNetwork();
+        romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        juliet = LoopbackService.create(new LLPresence("juliet"), network);
+        mercutio = LoopbackService.create(new LLPresence("mercutio"), network);
+        tybalt = LoopbackService.create(new LLPresence("tybalt"), network);
+        romeo.init();
+        juliet.init();
+        mercutio.init();
+        tybalt.init();
+        for (String name : new String[] {"juliet", "mercutio", "tybalt"}) {
+            assertTrue(waitForPresence(romeo, name));
+        }
+        assertTrue(waitForPresence(juliet, "romeo"));
+    }
+
+    @After
+    public void tearDown() {
+        romeo.close();
+        juliet.close();
+        mercutio.close();
+        tybalt.close();
+        network.close();
+    }
+
+    private static boolean waitForPresence(LLService service, String name)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && service.getPresenceRegistry().get(name) == null; i++) {
+            Thread.sleep(20);
+        }
+        return service.getPresenceRegistry().get(name) != null;
+    }
+
+    private static Set<String> getPeers(LLService service) {
+        Set<String> peers = new HashSet<String>();
+        for (XMPPLLConnection connection : service.getConnections()) {
+            peers.add(connection.getServiceName());
+        }
+        return peers;
+    }
+
+    private static boolean waitForPeers(LLService service, Set<String> peers)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && !getPeers(service).equals(peers); i++) {
+            Thread.sleep(20);
+        }
+        return getPeers(service).equals(peers);
+    }
+
+    private static void send(LLService service, String to) throws XMPPException {
+        Message message = new Message(to, Message.Type.chat);
+        message.setBody("Hello " + to);
+        service.sendPacket(message);
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        LLConnectionPool pool = romeo.getConnectionPool();
+        pool.setMaxConnections(1);
+        send(romeo, "juliet");
+        send(romeo, "mercutio");
+
+        assertTrue(waitForPeers(romeo, new HashSet<String>(Arrays.asList("mercutio"))));
+        assertEquals(1, pool.getEvictions());
+        assertEquals(1, pool.getSize());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void receiveRecencyTest() throws Exception {
+        LLConnectionPool pool = romeo.getConnectionPool();
+        pool.setMaxConnections(2);
+        send(romeo, "juliet");
+        send(romeo, "mercutio");
+
+        // Juliet answers on the connection romeo opened, which makes it
+        // more recently used than the one to mercutio.
+        final BlockingQueue<Message> received = new ArrayBlockingQueue<Message>(1);
+        romeo.addPacketListener(new PacketListener() {
+            public void processPacket(Packet packet) {
+                received.add((Message) packet);
+            }
+        }, new FromContainsFilter("juliet"));
+        send(juliet, "romeo");
+        assertNotNull(received.poll(5, TimeUnit.SECONDS));
+
+        send(romeo, "tybalt");
+        Set<String> expected = new HashSet<String>();
+        expected.add("juliet");
+        expected.add("tybalt");
+        assertTrue(waitForPeers(romeo, expected));
+        assertEquals(1, pool.getEvictions());
+    }
+
+    @Test
+    public void idleTest() throws Exception {
+        LLConnectionPool pool = romeo.getConnectionPool();
+        pool.setMaxIdleTime(200);
+        pool.pin("mercutio");
+        send(romeo, "juliet");
+        send(romeo, "mercutio");
+
+        // Only the connection to the pinned peer is kept while idle
+        Set<String> expected = new HashSet<String>();
+        expected.add("mercutio");
+        assertTrue(waitForPeers(romeo, expected));
+        assertEquals(1, pool.getSize());
+        Thread.sleep(400);
+        assertEquals(expected, getPeers(romeo));
+    }
+}
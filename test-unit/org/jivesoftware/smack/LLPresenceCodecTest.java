@@ -0,0 +1,99 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ *
+ */
+public class LLPresenceCodecTest {
+
+    @Test
+    public void roundTripTest() {
+        LLPresence presence = new LLPresence("juliet@capulet", "10.0.0.1", 5562);
+        presence.setFirstName("Juliet");
+        presence.setLastName("Capulet");
+        presence.setJID("juliet@capulet.lit");
+        presence.setMsg("Hanging out downtown åäö €");
+        presence.setStatus(LLPresence.Mode.away);
+        presence.setNode("http://www.adiumx.com");
+        presence.setVer("66/0NaeaBKkwk85efJTGmU47vXI=");
+        presence.putValue("vc", "CA!");
+
+        LLPresence decoded = LLPresenceCodec.decode(presence.getServiceName(),
+                presence.getHost(), presence.getPort(), presence.getTextBytes());
+        assertTrue(decoded.getChanges(presence).isEmpty());
+        assertNull(decoded.getEMail());
+        assertEquals("CA!", decoded.getValue("vc"));
+        assertNull(decoded.getValue("port.p2pj"));
+    }
+
+    @Test
+    public void decodeTest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeRecord(out, "txtvers=1");
+        writeRecord(out, "status=dnd");
+        writeRecord(out, "invalid");
+        writeRecord(out, "x=first");
+        writeRecord(out, "x=second");
+        writeRecord(out, "msg=" + repeat('a', 200));
+        writeRecord(out, "nick=a=b");
+
+        LLPresence presence = LLPresenceCodec.decode("romeo", "10.0.0.2", 1, out.toByteArray());
+        assertEquals(LLPresence.Mode.dnd, presence.getStatus());
+        assertEquals("first", presence.getValue("x"));
+        assertNull(presence.getValue("invalid"));
+        assertEquals(repeat('a', 200), presence.getMsg());
+        assertEquals("a=b", presence.getNick());
+    }
+
+    @Test
+    public void truncationTest() {
+        LLPresence presence = new LLPresence("romeo");
+        presence.setMsg(repeat('€', 100));
+
+        LLPresence decoded = LLPresenceCodec.decode("romeo", null, 0, presence.getTextBytes());
+        // 251 bytes are left for the value, which holds 83 characters
+        assertEquals(repeat('€', 83), decoded.getMsg());
+
+        // The encoding is redone after a change
+        presence.setMsg("short");
+        decoded = LLPresenceCodec.decode("romeo", null, 0, presence.getTextBytes());
+        assertEquals("short", decoded.getMsg());
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, String record)
+            throws Exception {
+        byte[] bytes = record.getBytes("UTF-8");
+        out.write(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
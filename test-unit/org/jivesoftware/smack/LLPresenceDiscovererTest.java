@@ -0,0 +1,147 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.SettableFuture;
+
+/**
+ *
+ */
+public class LLPresenceDiscovererTest {
+
+    private static LLPresence createPresence(LLPresence.Mode status, String msg) {
+        LLPresence presence = new LLPresence("juliet@capulet", "127.0.0.1", 5298);
+        presence.setStatus(status);
+        presence.setMsg(msg);
+        return presence;
+    }
+
+    @Test
+    public void changeEventTest() {
+        LLPresenceDiscoverer discoverer = new LLPresenceDiscoverer() {};
+        final List<Set<LLPresence.Change>> events = new ArrayList<Set<LLPresence.Change>>();
+        final List<LLPresence> added = new ArrayList<LLPresence>();
+        discoverer.addPresenceListener(new LLPresenceChangeListener() {
+            public void presenceNew(LLPresence presence) {
+                added.add(presence);
+            }
+            public void presenceChanged(LLPresence previous, LLPresence presence,
+                    Set<LLPresence.Change> changes) {
+                events.add(changes);
+            }
+            public void presenceRemove(LLPresence presence) {
+            }
+        });
+
+        discoverer.presenceInfoAdded("juliet@capulet",
+                createPresence(LLPresence.Mode.avail, "Hanging out"));
+        assertEquals(1, added.size());
+
+        // A refresh without changes isn't delivered
+        discoverer.presenceInfoAdded("juliet@capulet",
+                createPresence(LLPresence.Mode.avail, "Hanging out"));
+        assertTrue(events.isEmpty());
+
+        discoverer.presenceInfoAdded("juliet@capulet",
+                createPresence(LLPresence.Mode.away, "Out"));
+        assertEquals(1, events.size());
+        assertEquals(EnumSet.of(LLPresence.Change.STATUS, LLPresence.Change.MESSAGE),
+                events.get(0));
+        assertEquals(1, added.size());
+    }
+
+    @Test
+    public void interfaceMergeTest() throws Exception {
+        final LLInterface first = new LLInterface(InetAddress.getByName("10.0.0.1"));
+        final LLInterface second = new LLInterface(InetAddress.getByName("10.0.1.1"));
+        LLPresenceDiscoverer discoverer = new LLPresenceDiscoverer() {
+            public Collection<LLInterface> getInterfaces() {
+                return Arrays.asList(first, second);
+            }
+        };
+
+        LLPresence onSecond = new LLPresence("juliet@capulet", "10.0.1.2", 5298);
+        LLPresence onFirst = new LLPresence("juliet@capulet", "10.0.0.2", 5298);
+        discoverer.presenceInfoAdded(second, "juliet@capulet", onSecond);
+        assertEquals("10.0.1.2", discoverer.getPresence("juliet@capulet").getHost());
+
+        // The first interface is preferred
+        discoverer.presenceInfoAdded(first, "juliet@capulet", onFirst);
+        assertEquals("10.0.0.2", discoverer.getPresence("juliet@capulet").getHost());
+        discoverer.presenceInfoAdded(second, "juliet@capulet", onSecond);
+        assertEquals("10.0.0.2", discoverer.getPresence("juliet@capulet").getHost());
+        assertEquals(1, first.getRegistry().size());
+        assertEquals(1, second.getRegistry().size());
+        assertEquals(2, second.getResolvedCount());
+
+        // Going offline on one interface falls back to the other
+        discoverer.presenceRemoved(first, "juliet@capulet");
+        assertEquals("10.0.1.2", discoverer.getPresence("juliet@capulet").getHost());
+        discoverer.presenceRemoved(second, "juliet@capulet");
+        assertNull(discoverer.getPresence("juliet@capulet"));
+        assertEquals(1, second.getRemovedCount());
+    }
+
+    @Test
+    public void resolveAsyncTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        network.setResolveLatency(200);
+        SmackConfiguration.setLinkLocalResolveOnDemand(true);
+        LoopbackPresenceDiscoverer discoverer;
+        try {
+            discoverer = new LoopbackPresenceDiscoverer(network);
+        }
+        finally {
+            SmackConfiguration.setLinkLocalResolveOnDemand(false);
+        }
+        try {
+            network.register(null, "juliet", 5298,
+                    LLPresenceCodec.encode(new LLPresence("juliet")));
+            // Let the announcement arrive
+            Thread.sleep(100);
+            assertNull(discoverer.getRegistry().get("juliet"));
+
+            // The presence is resolved in the background
+            SettableFuture<LLPresence> future = discoverer.getPresenceAsync("juliet");
+            assertFalse(future.isDone());
+            LLPresence presence = future.get(5, TimeUnit.SECONDS);
+            assertNotNull(presence);
+            assertEquals(5298, presence.getPort());
+
+            // Unknown presences are completed right away
+            assertNull(discoverer.getPresenceAsync("romeo").get(0, TimeUnit.SECONDS));
+        }
+        finally {
+            discoverer.close();
+            network.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Collection;
+
+/**
+ *
+ */
+public class LLPresenceRegistryTest {
+
+    private static LLPresence createPresence(String name, LLPresence.Mode status, String ver) {
+        LLPresence presence = new LLPresence(name, "127.0.0.1", 5298);
+        presence.setStatus(status);
+        presence.setJID(name + "@host");
+        presence.setNode("http://example.org/client");
+        presence.setVer(ver);
+        presence.putValue("room", "lab");
+        return presence;
+    }
+
+    @Test
+    public void indexTest() {
+        LLPresenceRegistry registry = new LLPresenceRegistry();
+        registry.put("a", createPresence("a", LLPresence.Mode.avail, "1"));
+        registry.put("b", createPresence("b", LLPresence.Mode.away, "1"));
+        registry.put("c", createPresence("c", LLPresence.Mode.avail, "2"));
+
+        assertEquals(2, registry.getPresencesByStatus(LLPresence.Mode.avail).size());
+        assertEquals(2, registry.getPresencesByCapsNode("http://example.org/client#1").size());
+        assertEquals(2, registry.getCapsNodes().size());
+
+        Collection<LLPresence> found = registry.getPresencesByCapsNode(
+                "http://example.org/client#1", LLPresence.Mode.avail);
+        assertEquals(1, found.size());
+        assertEquals("a", found.iterator().next().getServiceName());
+
+        // Replacing a presence updates the indexes
+        registry.put("a", createPresence("a", LLPresence.Mode.dnd, "2"));
+        assertEquals(1, registry.getPresencesByStatus(LLPresence.Mode.avail).size());
+        assertEquals(1, registry.getPresencesByCapsNode("http://example.org/client#1").size());
+
+        registry.remove("b");
+        assertTrue(registry.getPresencesByJID("b@host").isEmpty());
+        assertEquals(1, registry.getCapsNodes().size());
+    }
+
+    @Test
+    public void valueIndexTest() {
+        LLPresenceRegistry registry = new LLPresenceRegistry();
+        registry.put("a", createPresence("a", LLPresence.Mode.avail, "1"));
+        assertEquals(1, registry.getPresencesByValue("room", "lab").size());
+
+        registry.addIndexedKey("room");
+        registry.put("b", createPresence("b", LLPresence.Mode.avail, "1"));
+        assertEquals(2, registry.getPresencesByValue("room", "lab").size());
+        assertTrue(registry.getPresencesByValue("room", "office").isEmpty());
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class LoopbackServiceTest {
+
+    private static boolean waitForPresence(LLService service, String name, boolean known)
+            throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if ((service.getPresenceRegistry().get(name) != null) == known) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    @Test
+    public void messageTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        network.setAnnounceLatency(10);
+        network.setJitter(5);
+        LoopbackService romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        LoopbackService juliet = LoopbackService.create(new LLPresence("juliet"), network);
+        try {
+            romeo.init();
+            juliet.init();
+            assertTrue(waitForPresence(romeo, "juliet", true));
+
+            final BlockingQueue<String> bodies = new ArrayBlockingQueue<String>(1);
+            juliet.addLLChatListener(new LLChatListener() {
+                public void newChat(LLChat chat) {
+                    chat.addMessageListener(new LLMessageListener() {
+                        public void processMessage(LLChat chat, Message message) {
+                            bodies.add(message.getBody());
+                        }
+                    });
+                }
+                public void chatInvalidated(LLChat chat) {
+                }
+            });
+            romeo.getChat("juliet").sendMessage("Wherefore art thou?");
+            assertEquals("Wherefore art thou?", bodies.poll(5, TimeUnit.SECONDS));
+
+            juliet.makeUnavailable();
+            assertTrue(waitForPresence(romeo, "juliet", false));
+        }
+        finally {
+            romeo.close();
+            juliet.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void simultaneousConnectTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        LoopbackService romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        LoopbackService juliet = LoopbackService.create(new LLPresence("juliet"), network);
+        int timeout = SmackConfiguration.getPacketReplyTimeout();
+        SmackConfiguration.setPacketReplyTimeout(10000);
+        try {
+            romeo.init();
+            juliet.init();
+            assertTrue(waitForPresence(romeo, "juliet", true));
+            assertTrue(waitForPresence(juliet, "romeo", true));
+
+            final BlockingQueue<String> bodies = new LinkedBlockingQueue<String>();
+            juliet.addLLChatListener(new LLChatListener() {
+                public void newChat(LLChat chat) {
+                    chat.addMessageListener(new LLMessageListener() {
+                        public void processMessage(LLChat chat, Message message) {
+                            bodies.add(message.getBody());
+                        }
+                    });
+                }
+                public void chatInvalidated(LLChat chat) {
+                }
+            });
+
+            // Both peers connect to each other. Juliet has the lower service
+            // name, so her connection is kept and Romeo closes his.
+            XMPPLLConnection redundant = romeo.connect("juliet");
+            for (int i = 0; i < 200; i++) {
+                Message message = new Message("juliet", Message.Type.chat);
+                message.setBody("Message " + i);
+                redundant.sendPacket(message);
+            }
+            XMPPLLConnection kept = juliet.connect("romeo");
+            assertNotSame(redundant, romeo.getConnectionTo("juliet"));
+            assertSame(kept, juliet.getConnectionTo("romeo"));
+
+            // Everything sent on the redundant connection arrives
+            for (int i = 0; i < 200; i++) {
+                assertEquals("Message " + i, bodies.poll(5, TimeUnit.SECONDS));
+            }
+
+            // and it's closed once drained, well before the reply timeout.
+            for (int i = 0; i < 100 && romeo.getConnections().size() > 1; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, romeo.getConnections().size());
+            assertFalse(romeo.getConnections().contains(redundant));
+            for (int i = 0; i < 100 && juliet.getConnections().size() > 1; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, juliet.getConnections().size());
+            assertTrue(juliet.getConnections().contains(kept));
+        }
+        finally {
+            SmackConfiguration.setPacketReplyTimeout(timeout);
+            romeo.close();
+            juliet.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void sendPacketAsyncTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        LoopbackService romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        LoopbackService juliet = LoopbackService.create(new LLPresence("juliet"), network);
+        try {
+            romeo.init();
+            juliet.init();
+            assertTrue(waitForPresence(romeo, "juliet", true));
+
+            final AtomicInteger connections = new AtomicInteger(0);
+            romeo.addLLServiceConnectionListener(new LLServiceConnectionListener() {
+                public void connectionCreated(XMPPLLConnection connection) {
+                    connections.incrementAndGet();
+                }
+            });
+            final BlockingQueue<String> bodies = new LinkedBlockingQueue<String>();
+            juliet.addLLChatListener(new LLChatListener() {
+                public void newChat(LLChat chat) {
+                    chat.addMessageListener(new LLMessageListener() {
+                        public void processMessage(LLChat chat, Message message) {
+                            bodies.add(message.getBody());
+                        }
+                    });
+                }
+                public void chatInvalidated(LLChat chat) {
+                }
+            });
+
+            // Sends made while connecting share the connection attempt
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 20; i++) {
+                Message message = new Message("juliet", Message.Type.chat);
+                message.setBody("Message " + i);
+                futures.add(romeo.sendPacketAsync(message));
+            }
+            for (Future<Void> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("Message " + i, bodies.poll(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, connections.get());
+
+            // Failing to connect fails every send waiting for the attempt
+            futures.clear();
+            for (int i = 0; i < 2; i++) {
+                futures.add(romeo.sendPacketAsync(new Message("tybalt", Message.Type.chat)));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail("Sending to an unknown peer should fail");
+                }
+                catch (ExecutionException ee) {
+                    assertTrue(ee.getCause() instanceof XMPPException);
+                }
+            }
+        }
+        finally {
+            romeo.close();
+            juliet.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void iqResponseAsyncTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        LoopbackService romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        LoopbackService juliet = LoopbackService.create(new LLPresence("juliet"), network);
+        int timeout = SmackConfiguration.getPacketReplyTimeout();
+        SmackConfiguration.setPacketReplyTimeout(300);
+        try {
+            romeo.init();
+            juliet.init();
+            assertTrue(waitForPresence(romeo, "juliet", true));
+
+            // Connecting takes longer than the reply timeout
+            romeo.addLLServiceConnectionListener(new LLServiceConnectionListener() {
+                public void connectionCreated(XMPPLLConnection connection) {
+                    try {
+                        Thread.sleep(600);
+                    }
+                    catch (InterruptedException ie) {
+                        // Ignore
+                    }
+                }
+            });
+
+            // Juliet doesn't understand the request and replies with an error
+            IQ request = new IQ() {
+                public String getChildElementXML() {
+                    return "<query xmlns='urn:example:unknown'/>";
+                }
+            };
+            request.setTo("juliet");
+            IQ reply = romeo.getIQResponseAsync(request).get(5, TimeUnit.SECONDS);
+            assertEquals(IQ.Type.ERROR, reply.getType());
+            assertEquals(request.getPacketID(), reply.getPacketID());
+        }
+        finally {
+            SmackConfiguration.setPacketReplyTimeout(timeout);
+            romeo.close();
+            juliet.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void nameCollisionTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        LoopbackService first = LoopbackService.create(new LLPresence("romeo"), network);
+        LoopbackService second = LoopbackService.create(new LLPresence("romeo"), network);
+        try {
+            first.init();
+            second.init();
+            assertEquals("romeo (2)", second.getLocalPresence().getServiceName());
+            assertEquals(2, network.getRegistrationCount());
+        }
+        finally {
+            first.close();
+            second.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void lossTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        network.setLossRate(1);
+        LoopbackService romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        LoopbackService juliet = LoopbackService.create(new LLPresence("juliet"), network);
+        try {
+            romeo.init();
+            juliet.init();
+            assertFalse(waitForPresence(romeo, "juliet", true));
+            assertTrue(network.getLostCount() > 0);
+
+            // Reannouncing once the network works again makes it known
+            network.setLossRate(0);
+            LLPresence update = new LLPresence("juliet");
+            update.setMsg("On the balcony");
+            juliet.updatePresence(update);
+            assertTrue(waitForPresence(romeo, "juliet", true));
+        }
+        finally {
+            romeo.close();
+            juliet.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void announceCoalescingTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        LoopbackService romeo = LoopbackService.create(new LLPresence("romeo"), network);
+        int delay = SmackConfiguration.getLinkLocalAnnounceDelay();
+        SmackConfiguration.setLinkLocalAnnounceDelay(200);
+        try {
+            romeo.init();
+            LLInterface iface = romeo.getInterfaces().iterator().next();
+            long announcements = iface.getAnnouncementCount();
+            long suppressed = romeo.getSuppressedAnnouncementCount();
+
+            // Updates within the delay are announced together
+            for (int i = 0; i < 5; i++) {
+                LLPresence update = new LLPresence("romeo");
+                update.setMsg("Update " + i);
+                romeo.updatePresence(update);
+            }
+            Thread.sleep(600);
+            assertEquals(announcements + 1, iface.getAnnouncementCount());
+            assertEquals(suppressed + 4, romeo.getSuppressedAnnouncementCount());
+            assertEquals("Update 4", romeo.getLocalPresence().getMsg());
+
+            // An update not changing the information isn't announced
+            LLPresence update = new LLPresence("romeo");
+            update.setMsg("Update 4");
+            romeo.updatePresence(update);
+            Thread.sleep(600);
+            assertEquals(announcements + 1, iface.getAnnouncementCount());
+            assertEquals(suppressed + 5, romeo.getSuppressedAnnouncementCount());
+        }
+        finally {
+            SmackConfiguration.setLinkLocalAnnounceDelay(delay);
+            romeo.close();
+            network.close();
+        }
+    }
+
+    @Test
+    public void lossyConvergenceTest() throws Exception {
+        LoopbackNetwork network = new LoopbackNetwork();
+        network.setLossRate(0.3);
+        network.setRetransmitInterval(20);
+        LoopbackService[] services = new LoopbackService[6];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = LoopbackService.create(new LLPresence("service" + i), network);
+        }
+        try {
+            for (LoopbackService service : services) {
+                service.init();
+            }
+            // Repeated announcements, queries and browses make every
+            // service known to every other one despite the losses.
+            for (LoopbackService service : services) {
+                for (int i = 0; i < services.length; i++) {
+                    assertTrue(waitForPresence(service, "service" + i, true));
+                }
+            }
+            assertTrue(network.getLostCount() > 0);
+        }
+        finally {
+            for (LoopbackService service : services) {
+                service.close();
+            }
+            network.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+/**
+ *
+ */
+public class PacketCollectorTest {
+
+    @Test
+    public void resultOrderTest() {
+        PacketCollector collector =
+            new PacketCollector(null, new PacketTypeFilter(Message.class));
+
+        Message first = new Message("a");
+        Message second = new Message("b");
+        collector.processPacket(first);
+        collector.processPacket(new Presence(Presence.Type.available));
+        collector.processPacket(second);
+
+        assertSame(first, collector.pollResult());
+        assertSame(second, collector.nextResult(10));
+        assertNull(collector.pollResult());
+        assertNull(collector.nextResult(10));
+    }
+
+    @Test
+    public void wakeUpWaiterTest() throws Exception {
+        final PacketCollector collector = new PacketCollector(null, null);
+        final Message message = new Message("a");
+
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException ie) {
+                    // Ignore
+                }
+                collector.processPacket(message);
+            }
+        };
+        producer.start();
+
+        Packet result = collector.nextResult(5000);
+        producer.join();
+        assertSame(message, result);
+    }
+
+    @Test
+    public void interruptedWaiterTest() throws Exception {
+        final PacketCollector collector = new PacketCollector(null, null);
+
+        // A timed wait of an interrupted caller returns at once
+        Thread.currentThread().interrupt();
+        long start = System.currentTimeMillis();
+        assertNull(collector.nextResult(5000));
+        assertTrue(Thread.interrupted());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // An untimed wait goes on until a packet arrives, keeping the interrupt
+        final Packet[] results = new Packet[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                results[0] = collector.nextResult();
+                interrupted[0] = isInterrupted();
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        Thread.sleep(50);
+        assertTrue(waiter.isAlive());
+
+        Message message = new Message("a");
+        collector.processPacket(message);
+        waiter.join(5000);
+
+        assertFalse(waiter.isAlive());
+        assertSame(message, results[0]);
+        assertTrue(interrupted[0]);
+    }
+
+    @Test
+    public void packetIDRoutingTest() {
+        AbstractPacketReader reader = new AbstractPacketReader(null) {
+            protected void parsePackets(Thread thread) {
+            }
+        };
+        PacketCollector byID = reader.createPacketCollector(new PacketIDFilter("id1"));
+        PacketCollector byIDAndType = reader.createPacketCollector(
+                new AndFilter(new PacketIDFilter("id1"), new PacketTypeFilter(Message.class)));
+        PacketCollector byType = reader.createPacketCollector(new PacketTypeFilter(Message.class));
+
+        Message other = new Message("a");
+        other.setPacketID("id2");
+        reader.processPacket(other);
+        Message reply = new Message("a");
+        reply.setPacketID("id1");
+        reader.processPacket(reply);
+
+        assertSame(reply, byID.pollResult());
+        assertNull(byID.pollResult());
+        assertSame(reply, byIDAndType.pollResult());
+        assertSame(other, byType.pollResult());
+        assertSame(reply, byType.pollResult());
+
+        // Cancelled collectors no longer get packets routed to them
+        byID.cancel();
+        reader.processPacket(reply);
+        assertNull(byID.pollResult());
+        assertSame(reply, byIDAndType.pollResult());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.jivesoftware.smackx.packet.MUCUser;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class PacketDispatchIndexTest {
+
+    @Test
+    public void candidatesTest() {
+        Map<String, PacketFilter> filters = new HashMap<String, PacketFilter>();
+        filters.put("all", null);
+        filters.put("opaque", new ThreadFilter("thread"));
+        filters.put("messages", new PacketTypeFilter(Message.class));
+        filters.put("chat", new AndFilter(new PacketTypeFilter(Message.class),
+                new MessageTypeFilter(Message.Type.chat)));
+        filters.put("disco", new PacketTypeFilter(DiscoverInfo.class));
+        filters.put("get", new IQTypeFilter(IQ.Type.GET));
+        filters.put("muc", new PacketExtensionFilter("x", "http://jabber.org/protocol/muc#user"));
+        filters.put("juliet", new FromMatchesFilter("juliet@capulet.lit"));
+        filters.put("either", new OrFilter(new FromMatchesFilter("juliet@capulet.lit"),
+                new PacketTypeFilter(Presence.class)));
+        filters.put("id", new PacketIDFilter("id1"));
+        PacketDispatchIndex<String> index = new PacketDispatchIndex<String>(filters);
+        assertEquals(2, index.getUnindexedCount());
+
+        Message message = new Message();
+        message.setType(Message.Type.chat);
+        message.setFrom("Juliet@capulet.lit/balcony");
+        message.setPacketID("id2");
+        assertCandidates(filters, index, message,
+                "all", "opaque", "messages", "chat", "juliet", "either");
+
+        // Both keys of the OR filter, but only one candidate
+        Presence presence = new Presence(Presence.Type.available);
+        presence.setFrom("juliet@capulet.lit");
+        presence.setPacketID("id1");
+        presence.addExtension(new MUCUser());
+        assertCandidates(filters, index, presence,
+                "all", "opaque", "muc", "juliet", "either", "id");
+
+        DiscoverInfo info = new DiscoverInfo();
+        info.setPacketID("id3");
+        assertCandidates(filters, index, info, "all", "opaque", "disco", "get");
+
+        // A bare JID only matches senders with exactly that bare JID
+        Message other = new Message();
+        other.setFrom("juliet@capulet.lit.example/balcony");
+        assertCandidates(filters, index, other, "all", "opaque", "messages", "chat");
+        assertFalse(filters.get("juliet").accept(other));
+    }
+
+    private void assertCandidates(Map<String, PacketFilter> filters,
+            PacketDispatchIndex<String> index, Packet packet, String... expected) {
+        Collection<String> candidates = index.getCandidates(packet);
+        assertEquals(candidates.toString(), expected.length, candidates.size());
+        for (String name : expected) {
+            assertTrue(name, candidates.contains(name));
+        }
+        // Every listener accepting the packet must be a candidate
+        for (Map.Entry<String, PacketFilter> entry : filters.entrySet()) {
+            if (entry.getValue() != null && entry.getValue().accept(packet)) {
+                assertTrue(entry.getKey(), candidates.contains(entry.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class PacketQueuePolicyTest {
+
+    @Test
+    public void defaultLowPriorityTest() {
+        PacketQueuePolicy policy = new PacketQueuePolicy();
+        assertTrue(policy.isLowPriority(new Presence(Presence.Type.available)));
+
+        Presence directed = new Presence(Presence.Type.available);
+        directed.setTo("juliet@capulet.lit");
+        assertFalse(policy.isLowPriority(directed));
+        assertFalse(policy.isLowPriority(new Presence(Presence.Type.unavailable)));
+        assertFalse(policy.isLowPriority(new Presence(Presence.Type.subscribe)));
+
+        Presence join = new Presence(Presence.Type.available);
+        join.addExtension(new DefaultPacketExtension("x", "http://jabber.org/protocol/muc"));
+        assertFalse(policy.isLowPriority(join));
+
+        Message state = new Message("juliet@capulet.lit");
+        state.addExtension(new DefaultPacketExtension("composing",
+                "http://jabber.org/protocol/chatstates"));
+        assertTrue(policy.isLowPriority(state));
+        state.setBody("Hello");
+        assertFalse(policy.isLowPriority(state));
+    }
+
+    @Test
+    public void failTest() {
+        TestConnection connection = new TestConnection();
+        PacketQueuePolicy policy = connection.getPacketQueuePolicy();
+        policy.setCapacity(2);
+        policy.setOverflow(PacketQueuePolicy.Overflow.FAIL);
+
+        // Without being started, the writer never drains its queue
+        PacketWriter writer = new PacketWriter(connection);
+        writer.sendPacket(new Message("juliet@capulet.lit"));
+        writer.sendPacket(new Message("juliet@capulet.lit"));
+        try {
+            writer.sendPacket(new Message("juliet@capulet.lit"));
+            fail("Sending to a full queue should fail");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(2, writer.getQueueSize());
+    }
+
+    @Test
+    public void blockTimeoutTest() {
+        TestConnection connection = new TestConnection();
+        PacketQueuePolicy policy = connection.getPacketQueuePolicy();
+        policy.setCapacity(1);
+        policy.setBlockTimeout(50);
+
+        PacketWriter writer = new PacketWriter(connection);
+        writer.sendPacket(new Message("juliet@capulet.lit"));
+        long start = System.currentTimeMillis();
+        try {
+            writer.sendPacket(new Message("juliet@capulet.lit"));
+            fail("Waiting for room should time out");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 45);
+        assertEquals(1, writer.getQueueSize());
+    }
+
+    @Test
+    public void dropLowPriorityTest() {
+        TestConnection connection = new TestConnection();
+        PacketQueuePolicy policy = connection.getPacketQueuePolicy();
+        policy.setCapacity(2);
+        policy.setOverflow(PacketQueuePolicy.Overflow.DROP_LOW_PRIORITY);
+        policy.setBlockTimeout(50);
+        RecordingListener listener = new RecordingListener();
+        policy.addPacketQueueListener(listener);
+
+        PacketWriter writer = new PacketWriter(connection);
+        Presence available = new Presence(Presence.Type.available);
+        Message message = new Message("juliet@capulet.lit");
+        writer.sendPacket(available);
+        writer.sendPacket(message);
+
+        // The queued presence makes room for the message
+        Message other = new Message("juliet@capulet.lit");
+        writer.sendPacket(other);
+        assertEquals(1, listener.dropped.size());
+        assertSame(available, listener.dropped.get(0));
+        assertEquals(2, writer.getQueueSize());
+
+        // Nothing queued is of low priority, so the new presence is dropped
+        Presence later = new Presence(Presence.Type.available);
+        writer.sendPacket(later);
+        assertEquals(2, listener.dropped.size());
+        assertSame(later, listener.dropped.get(1));
+
+        // Packets of normal priority wait for room
+        try {
+            writer.sendPacket(new Presence(Presence.Type.unavailable));
+            fail("Waiting for room should time out");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(2, listener.dropped.size());
+    }
+
+    @Test
+    public void listenerTest() {
+        TestConnection connection = new TestConnection();
+        PacketQueuePolicy policy = connection.getPacketQueuePolicy();
+        policy.setCapacity(4);
+        policy.setHighWatermark(2);
+        RecordingListener listener = new RecordingListener();
+        policy.addPacketQueueListener(listener);
+
+        PacketWriter writer = new PacketWriter(connection);
+        for (int i = 0; i < 3; i++) {
+            writer.sendPacket(new Message("juliet@capulet.lit"));
+        }
+        assertEquals(3, listener.depths.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, listener.depths.get(i).intValue());
+            assertTrue(listener.latencies.get(i) >= 0);
+        }
+        // Only reported once while above the watermark
+        assertEquals(1, listener.watermarks.size());
+        assertEquals(2, listener.watermarks.get(0).intValue());
+
+        policy.removePacketQueueListener(listener);
+        writer.sendPacket(new Message("juliet@capulet.lit"));
+        assertEquals(3, listener.depths.size());
+    }
+
+    @Test
+    public void channelCapacityTest() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(4096);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel socket = SocketChannel.open(server.socket().getLocalSocketAddress());
+        socket.socket().setSendBufferSize(4096);
+        // The accepted end is never read from, so the channel fills up
+        SocketChannel peer = server.accept();
+        LLSelector selector = new LLSelector("Test Selector");
+        LLChannel channel = new LLChannel(selector, socket);
+        try {
+            TestConnection connection = new TestConnection();
+            connection.writer = channel.getWriter();
+            PacketQueuePolicy policy = connection.getPacketQueuePolicy();
+            policy.setCapacity(2);
+            policy.setOverflow(PacketQueuePolicy.Overflow.FAIL);
+            RecordingListener listener = new RecordingListener();
+            policy.addPacketQueueListener(listener);
+
+            PacketWriter writer = new PacketWriter(connection, channel);
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 16384; i++) {
+                body.append('x');
+            }
+            boolean failed = false;
+            for (int i = 0; i < 10000 && !failed; i++) {
+                Message message = new Message("juliet@capulet.lit");
+                message.setBody(body.toString());
+                try {
+                    writer.sendPacket(message);
+                }
+                catch (IllegalStateException e) {
+                    failed = true;
+                }
+            }
+            assertTrue(failed);
+            assertEquals(2, writer.getQueueSize());
+            assertEquals(2, listener.depths.get(listener.depths.size() - 1).intValue());
+        }
+        finally {
+            channel.close();
+            peer.close();
+            server.close();
+        }
+    }
+
+    private static class TestConnection extends AbstractConnection {
+
+        TestConnection() {
+            writer = new StringWriter();
+        }
+
+        public String getUser() {
+            return "romeo@montague.lit";
+        }
+
+        protected void shutdown() {
+        }
+
+        protected void disconnect() {
+        }
+    }
+
+    private static class RecordingListener implements PacketQueueListener {
+        final List<Integer> depths = new ArrayList<Integer>();
+        final List<Long> latencies = new ArrayList<Long>();
+        final List<Integer> watermarks = new ArrayList<Integer>();
+        final List<Packet> dropped = new ArrayList<Packet>();
+
+        public void packetQueued(AbstractConnection connection, int depth, long latency) {
+            depths.add(depth);
+            latencies.add(latency);
+        }
+
+        public void highWatermarkReached(AbstractConnection connection, int depth) {
+            watermarks.add(depth);
+        }
+
+        public void packetDropped(AbstractConnection connection, Packet packet) {
+            dropped.add(packet);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class PooledPacketDispatcherTest {
+
+    @Test
+    public void orderingTest() throws Exception {
+        PooledPacketDispatcher dispatcher = new PooledPacketDispatcher(4);
+        final int senders = 10, tasks = 200;
+        final List<List<Integer>> received = new ArrayList<List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(senders * tasks);
+        for (int s = 0; s < senders; s++) {
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int i = 0; i < tasks; i++) {
+            for (int s = 0; s < senders; s++) {
+                final List<Integer> list = received.get(s);
+                final int n = i;
+                dispatcher.execute("sender" + s + "@example.com", new Runnable() {
+                    public void run() {
+                        list.add(n);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> list : received) {
+            assertEquals(tasks, list.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(i, list.get(i).intValue());
+            }
+        }
+        // Tasks are counted as executed after they've run
+        for (int i = 0; i < 100 && dispatcher.getExecutedCount() < senders * tasks; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(senders * tasks, dispatcher.getExecutedCount());
+        assertEquals(0, dispatcher.getQueuedCount());
+        assertTrue(dispatcher.getLargestQueuedCount() > 0);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void slowKeyTest() throws Exception {
+        PooledPacketDispatcher dispatcher = new PooledPacketDispatcher(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch fast = new CountDownLatch(100);
+
+        dispatcher.execute("slow", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ie) {
+                    // Ignore
+                }
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            dispatcher.execute("fast" + (i % 5), new Runnable() {
+                public void run() {
+                    fast.countDown();
+                }
+            });
+        }
+
+        // The blocked key doesn't hold up the others
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+        // Queues are removed once found empty, after their last task
+        for (int i = 0; i < 100 && dispatcher.getActiveKeyCount() > 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, dispatcher.getActiveKeyCount());
+        release.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void shutdownTest() throws Exception {
+        PooledPacketDispatcher dispatcher = new PooledPacketDispatcher(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(40);
+        dispatcher.execute("key", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ie) {
+                    // Ignore
+                }
+            }
+        });
+        // More tasks than executed in one batch
+        for (int i = 0; i < 40; i++) {
+            dispatcher.execute("key", new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+
+        dispatcher.shutdown();
+        try {
+            dispatcher.execute("key", new Runnable() {
+                public void run() {
+                }
+            });
+            fail("Task dispatched after shutdown");
+        }
+        catch (RejectedExecutionException ree) {
+            // Expected
+        }
+
+        // Tasks queued before the shutdown are all executed
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && dispatcher.getActiveKeyCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dispatcher.getActiveKeyCount());
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+public class XMLStreamFramerTest {
+
+    private static final String HEADER = "<stream:stream to=\"bob\" from=\"alice\" " +
+            "xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\" " +
+            "version=\"1.0\">";
+
+    @Test
+    public void framesStanzasTest() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        XMLStreamFramer framer = new XMLStreamFramer(handler);
+
+        framer.feed("<?xml version='1.0'?>" + HEADER +
+                "<message to=\"bob\"><body>a &gt; b</body></message> " +
+                "<presence/><iq id=\"1\" type=\"get\"><query xmlns=\"x\" a='>'/></iq>" +
+                "</stream:stream>");
+
+        assertEquals(5, handler.events.size());
+        assertEquals("open:" + HEADER, handler.events.get(0));
+        assertEquals("stanza:<message to=\"bob\"><body>a &gt; b</body></message>",
+                handler.events.get(1));
+        assertEquals("stanza:<presence/>", handler.events.get(2));
+        assertEquals("stanza:<iq id=\"1\" type=\"get\"><query xmlns=\"x\" a='>'/></iq>",
+                handler.events.get(3));
+        assertEquals("close", handler.events.get(4));
+    }
+
+    @Test
+    public void framesSplitInputTest() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        XMLStreamFramer framer = new XMLStreamFramer(handler);
+
+        String input = HEADER + "<message><body><![CDATA[</message>]]></body>" +
+                "<!-- <iq> --></message>";
+        for (int i = 0; i < input.length(); i++) {
+            framer.feed(input.substring(i, i + 1));
+        }
+
+        assertEquals(2, handler.events.size());
+        assertEquals("open:" + HEADER, handler.events.get(0));
+        assertEquals("stanza:<message><body><![CDATA[</message>]]></body>" +
+                "<!-- <iq> --></message>", handler.events.get(1));
+        assertEquals(1, framer.getDepth());
+    }
+
+    private static class RecordingHandler implements XMLStreamFramer.Handler {
+        private List<String> events = new ArrayList<String>();
+
+        public void streamOpened(String header) {
+            events.add("open:" + header);
+        }
+
+        public void stanzaReceived(String stanza) {
+            events.add("stanza:" + stanza);
+        }
+
+        public void streamClosed() {
+            events.add("close");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.packet;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compares the encoded size and the encode and decode throughput of packet
+ * property values using the built in property codecs with Java serialization
+ * and base-64, which non-primitive values used to be sent as. Run with:
+ *
+ * <pre>
+ * java org.jivesoftware.smack.packet.PropertyCodecBenchmark [iterations]
+ * </pre>
+ */
+public class PropertyCodecBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("bytes", new byte[1024]);
+        values.put("uuid", UUID.randomUUID());
+        values.put("timestamp", new Date());
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < 20; i++) {
+            list.add("item " + i);
+        }
+        values.put("list", list);
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < 10; i++) {
+            map.put("key " + i, i % 2 == 0 ? (Object) i : "value " + i);
+        }
+        values.put("map", map);
+
+        System.out.println(iterations + " encodes and decodes per round");
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            PropertyCodec codec = PropertyCodecs.getEncoder(value);
+            System.out.println(entry.getKey() + ": java-object " +
+                    serialize(value).length() + " chars, " + codec.getType() + " " +
+                    codec.encode(value).length() + " chars");
+            for (int round = 0; round < ROUNDS; round++) {
+                long serialization = timeSerialization(value, iterations);
+                long codecTime = timeCodec(codec, value, iterations);
+                System.out.println("  round " + round + ": java-object " +
+                        format(serialization, iterations) + " us/op, " + codec.getType() +
+                        " " + format(codecTime, iterations) + " us/op");
+            }
+        }
+    }
+
+    private static long timeSerialization(Object value, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            deserialize(serialize(value));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeCodec(PropertyCodec codec, Object value, int iterations)
+            throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            codec.decode(codec.encode(value));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * How Packet used to encode non-primitive property values.
+     */
+    private static String serialize(Object value) throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(byteStream);
+        out.writeObject(value);
+        out.close();
+        return StringUtils.encodeBase64(byteStream.toByteArray());
+    }
+
+    /**
+     * How PacketParserUtils used to decode non-primitive property values.
+     */
+    private static Object deserialize(String text) throws Exception {
+        byte[] bytes = StringUtils.decodeBase64(text);
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        return in.readObject();
+    }
+
+    private static String format(long nanos, int iterations) {
+        return String.valueOf(Math.round(nanos / 10.0 / iterations) / 100.0);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.packet;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ *
+ */
+public class PropertyCodecsTest {
+
+    @Test
+    public void roundTripTest() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("count", 3);
+        map.put("nested", Arrays.asList(new Object[] {"a <b>", 2L, null, new byte[] {1, 2}}));
+        List<Object> list = new ArrayList<Object>();
+        list.add(UUID.randomUUID());
+        list.add(new Date(1234567890123L));
+        list.add(map);
+
+        Message message = new Message("juliet@capulet.lit", Message.Type.chat);
+        message.setProperty("int", 42);
+        message.setProperty("string", "a & b");
+        message.setProperty("bytes", new byte[] {0, -1, 127});
+        message.setProperty("uuid", UUID.randomUUID());
+        message.setProperty("timestamp", new Date());
+        message.setProperty("map", map);
+        message.setProperty("list", list);
+
+        Message parsed = (Message) PacketParserUtils.parseMessage(getParser(message.toXML()));
+        for (String name : message.getPropertyNames()) {
+            assertEquals(name, normalize(message.getProperty(name)),
+                    normalize(parsed.getProperty(name)));
+        }
+        assertTrue(message.toXML().contains("<value type=\"integer\">42</value>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noCodecTest() {
+        new Message().setProperty("locale", Locale.ENGLISH);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noCodecListElementTest() {
+        List<Object> list = new ArrayList<Object>();
+        list.add("en");
+        list.add(Locale.ENGLISH);
+        new Message().setProperty("locales", list);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noCodecMapValueTest() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("nested", Arrays.asList(new Object[] {Locale.ENGLISH}));
+        new Message().setProperty("locales", map);
+    }
+
+    @Test
+    public void javaSerializationTest() throws Exception {
+        // A remote entity may send serialized objects even if we don't
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(Locale.ENGLISH);
+        out.close();
+        String xml = "<message><properties xmlns='http://www.jivesoftware.com/xmlns/xmpp/properties'>" +
+                "<property><name>locale</name><value type='java-object'>" +
+                StringUtils.encodeBase64(bytes.toByteArray()) + "</value></property>" +
+                "</properties></message>";
+
+        assertFalse(PropertyCodecs.isJavaSerializationEnabled());
+        assertNull(PacketParserUtils.parseMessage(getParser(xml)).getProperty("locale"));
+
+        PropertyCodecs.setJavaSerializationEnabled(true);
+        try {
+            // Enabled, but the class isn't allowed
+            assertNull(PacketParserUtils.parseMessage(getParser(xml)).getProperty("locale"));
+
+            PropertyCodecs.addAllowedClass(Locale.class.getName());
+            assertEquals(Locale.ENGLISH,
+                    PacketParserUtils.parseMessage(getParser(xml)).getProperty("locale"));
+
+            Message message = new Message();
+            message.setProperty("locale", Locale.ENGLISH);
+            assertEquals(Locale.ENGLISH, PacketParserUtils.parseMessage(
+                    getParser(message.toXML())).getProperty("locale"));
+        }
+        finally {
+            PropertyCodecs.removeAllowedClass(Locale.class.getName());
+            PropertyCodecs.setJavaSerializationEnabled(false);
+        }
+    }
+
+    @Test
+    public void compatibilityTest() throws Exception {
+        // Sending UUIDs the way earlier versions did
+        PropertyCodec uuidCodec = PropertyCodecs.getDecoder("uuid");
+        PropertyCodecs.unregister("uuid");
+        PropertyCodecs.setJavaSerializationEnabled(true);
+        PropertyCodecs.addAllowedClass(UUID.class.getName());
+        try {
+            UUID uuid = UUID.randomUUID();
+            Message message = new Message();
+            message.setProperty("uuid", uuid);
+            assertTrue(message.toXML().contains("<value type=\"java-object\">"));
+            assertEquals(uuid, PacketParserUtils.parseMessage(
+                    getParser(message.toXML())).getProperty("uuid"));
+        }
+        finally {
+            PropertyCodecs.removeAllowedClass(UUID.class.getName());
+            PropertyCodecs.setJavaSerializationEnabled(false);
+            PropertyCodecs.register(UUID.class, uuidCodec);
+        }
+    }
+
+    /**
+     * Replaces byte arrays with lists, which can be compared by equals().
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof byte[]) {
+            List<Byte> list = new ArrayList<Byte>();
+            for (byte b : (byte[]) value) {
+                list.add(b);
+            }
+            return list;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object element : (List) value) {
+                list.add(normalize(element));
+            }
+            return list;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> map = new HashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(normalize(entry.getKey()), normalize(entry.getValue()));
+            }
+            return map;
+        }
+        return value;
+    }
+
+    private XmlPullParser getParser(String xml) throws Exception {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+}
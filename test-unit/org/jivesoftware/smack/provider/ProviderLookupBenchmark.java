@@ -0,0 +1,168 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.provider;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the cost of looking up providers in a {@link ProviderRegistry}
+ * with a map keyed by element name and namespace concatenated into a string,
+ * as the provider manager used to. The element names and namespaces of
+ * META-INF/smack.providers are registered, padded with generated ones up to
+ * the given number of providers (150 by default). Run with:
+ *
+ * <pre>
+ * java org.jivesoftware.smack.provider.ProviderLookupBenchmark [providers] [lookups]
+ * </pre>
+ */
+public class ProviderLookupBenchmark {
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+
+        List<String[]> names = loadNames();
+        int loaded = names.size();
+        for (int i = 0; names.size() < count; i++) {
+            names.add(new String[] {"x", "urn:xmpp:benchmark:" + i});
+        }
+
+        Map<String, Object> keyed = new ConcurrentHashMap<String, Object>();
+        Map<String, Map<String, Object>> providers =
+                ProviderRegistry.EMPTY.copyProviders();
+        for (String[] name : names) {
+            Object provider = new Object();
+            keyed.put(getProviderKey(name[0], name[1]), provider);
+            ProviderRegistry.put(providers, name[0], name[1], provider);
+        }
+        ProviderRegistry registry = new ProviderRegistry(providers);
+
+        // Parsers produce names equal to, but not the same as, the registered
+        String[][] lookup = new String[names.size()][];
+        for (int i = 0; i < lookup.length; i++) {
+            lookup[i] = new String[] {
+                new String(names.get(i)[0]), new String(names.get(i)[1])
+            };
+        }
+
+        System.out.println(names.size() + " providers (" + loaded +
+                " from smack.providers), " + lookups + " lookups per round");
+        for (int round = 0; round < ROUNDS; round++) {
+            long keyedTime = lookupKeyed(keyed, lookup, lookups);
+            long registryTime = lookupRegistry(registry, lookup, lookups);
+            System.out.println("round " + round + ": concatenated key " +
+                    format(keyedTime, lookups) + " ns/lookup, registry " +
+                    format(registryTime, lookups) + " ns/lookup");
+        }
+    }
+
+    private static long lookupKeyed(Map<String, Object> keyed, String[][] lookup,
+            int lookups) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String[] name = lookup[i % lookup.length];
+            if (keyed.get(getProviderKey(name[0], name[1])) != null) {
+                found++;
+            }
+        }
+        long time = System.nanoTime() - start;
+        check(found, lookups);
+        return time;
+    }
+
+    private static long lookupRegistry(ProviderRegistry registry, String[][] lookup,
+            int lookups) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String[] name = lookup[i % lookup.length];
+            if (registry.get(name[0], name[1]) != null) {
+                found++;
+            }
+        }
+        long time = System.nanoTime() - start;
+        check(found, lookups);
+        return time;
+    }
+
+    private static void check(int found, int lookups) {
+        if (found != lookups) {
+            throw new IllegalStateException("Only found " + found + " providers.");
+        }
+    }
+
+    private static String format(long nanos, int lookups) {
+        return String.valueOf(Math.round(nanos * 100.0 / lookups) / 100.0);
+    }
+
+    /**
+     * The key the provider manager used to build for each lookup.
+     */
+    private static String getProviderKey(String elementName, String namespace) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("<").append(elementName).append("/><").append(namespace).append("/>");
+        return buf.toString();
+    }
+
+    /**
+     * Returns the element names and namespaces of the providers in
+     * META-INF/smack.providers.
+     */
+    private static List<String[]> loadNames() throws Exception {
+        List<String[]> names = new ArrayList<String[]>();
+        Enumeration<URL> urls = ProviderLookupBenchmark.class.getClassLoader()
+                .getResources("META-INF/smack.providers");
+        while (urls.hasMoreElements()) {
+            InputStream in = urls.nextElement().openStream();
+            try {
+                XmlPullParser parser = new MXParser();
+                parser.setInput(in, "UTF-8");
+                String elementName = null;
+                for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+                        event = parser.next()) {
+                    if (event != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    if (parser.getName().equals("elementName")) {
+                        elementName = parser.nextText().trim();
+                    }
+                    else if (parser.getName().equals("namespace")) {
+                        names.add(new String[] {elementName, parser.nextText().trim()});
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.provider;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.util.Collection;
+
+/**
+ *
+ */
+public class ProviderManagerTest {
+
+    @Test
+    public void registryTest() {
+        ProviderManager manager = ProviderManager.getInstance();
+        PacketExtensionProvider provider = new PacketExtensionProvider() {
+            public PacketExtension parseExtension(XmlPullParser parser) {
+                return null;
+            }
+        };
+
+        Collection<Object> before = manager.getExtensionProviders();
+        manager.addExtensionProvider("x", "urn:test:registry", provider);
+        manager.addExtensionProvider(null, "urn:test:registry", IQ.class);
+        assertSame(provider, manager.getExtensionProvider("x", "urn:test:registry"));
+        assertSame(IQ.class, manager.getExtensionProvider(null, "urn:test:registry"));
+        assertNull(manager.getExtensionProvider("y", "urn:test:registry"));
+        assertNull(manager.getExtensionProvider("x", "urn:test:other"));
+        assertNull(manager.getIQProvider("x", "urn:test:registry"));
+
+        // Collections of providers are snapshots
+        assertFalse(before.contains(provider));
+        assertTrue(manager.getExtensionProviders().contains(provider));
+
+        manager.removeExtensionProvider("x", "urn:test:registry");
+        assertNull(manager.getExtensionProvider("x", "urn:test:registry"));
+        assertSame(IQ.class, manager.getExtensionProvider(null, "urn:test:registry"));
+        manager.removeExtensionProvider(null, "urn:test:registry");
+        assertEquals(before.size(), manager.getExtensionProviders().size());
+
+        // Providers loaded from META-INF/smack.providers
+        assertNotNull(manager.getIQProvider("query", "http://jabber.org/protocol/disco#info"));
+    }
+}
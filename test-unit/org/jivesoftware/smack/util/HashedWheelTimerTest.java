@@ -0,0 +1,113 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class HashedWheelTimerTest {
+
+    // Runs expired tasks in the timer thread
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test
+    public void orderTest() throws Exception {
+        HashedWheelTimer timer =
+            new HashedWheelTimer("Test Timer", 5, TimeUnit.MILLISECONDS, 8, DIRECT);
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final BlockingQueue<Integer> done = new LinkedBlockingQueue<Integer>();
+        int[] delays = {60, 20, 100, 40, 0};
+        for (final int delay : delays) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    order.add(delay);
+                    done.add(delay);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < delays.length; i++) {
+            assertNotNull(done.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList(0, 20, 40, 60, 100), order);
+    }
+
+    @Test
+    public void cancelTest() throws Exception {
+        HashedWheelTimer timer =
+            new HashedWheelTimer("Test Timer", 5, TimeUnit.MILLISECONDS, 8, DIRECT);
+        final BlockingQueue<String> done = new LinkedBlockingQueue<String>();
+        HashedWheelTimer.Timeout cancelled = timer.schedule(new Runnable() {
+            public void run() {
+                done.add("cancelled");
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        HashedWheelTimer.Timeout kept = timer.schedule(new Runnable() {
+            public void run() {
+                done.add("kept");
+            }
+        }, 40, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+
+        assertEquals("kept", done.poll(5, TimeUnit.SECONDS));
+        assertNull(done.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(cancelled.isCancelled());
+        assertFalse(cancelled.isExpired());
+        assertTrue(kept.isExpired());
+        assertFalse(kept.isCancelled());
+    }
+
+    @Test
+    public void severalRoundsTest() throws Exception {
+        // The delay spans more than one revolution of the wheel
+        long tick = 1;
+        int wheelSize = 512;
+        long delay = 700;
+        HashedWheelTimer timer = new HashedWheelTimer("Test Timer", tick,
+                TimeUnit.MILLISECONDS, wheelSize, DIRECT);
+        final BlockingQueue<Long> done = new LinkedBlockingQueue<Long>();
+        long start = System.nanoTime();
+        timer.schedule(new Runnable() {
+            public void run() {
+                done.add(System.nanoTime());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        Long expired = done.poll(5, TimeUnit.SECONDS);
+        assertNotNull(expired);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(expired - start);
+        // Timeouts fire with a precision of one tick
+        assertTrue("Expired after " + elapsed + " ms", elapsed >= delay - tick);
+        assertTrue("Expired after " + elapsed + " ms", elapsed < delay + 500);
+    }
+}
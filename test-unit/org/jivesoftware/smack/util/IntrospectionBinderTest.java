@@ -0,0 +1,100 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.beans.IntrospectionException;
+import java.io.StringReader;
+
+/**
+ *
+ */
+public class IntrospectionBinderTest {
+
+    @Test
+    public void parseTest() throws Exception {
+        String xml = "<bean xmlns='urn:test:bean'>" +
+                "<name>juliet</name><count>42</count><enabled>true</enabled>" +
+                "<size>9876543210</size><ratio>0.5</ratio><type>java.lang.String</type>" +
+                "<Label>balcony</Label><other>ignored</other>" +
+                "</bean>";
+        for (int i = 0; i < 2; i++) {
+            // Parsing again uses the cached binder
+            Bean bean = (Bean) PacketParserUtils.parseWithIntrospection("bean",
+                    Bean.class, getParser(xml));
+            assertEquals("juliet", bean.getName());
+            assertEquals(42, bean.getCount());
+            assertTrue(bean.isEnabled());
+            assertEquals(9876543210L, bean.getSize());
+            assertEquals(0.5, bean.getRatio(), 0);
+            assertEquals(String.class, bean.getType());
+            assertEquals("balcony", bean.getLabel());
+            assertNull(bean.getOther());
+        }
+        assertSame(IntrospectionBinder.getBinder(Bean.class),
+                IntrospectionBinder.getBinder(Bean.class));
+    }
+
+    @Test(expected = IntrospectionException.class)
+    public void unknownPropertyTest() throws Exception {
+        PacketParserUtils.parseWithIntrospection("bean", Bean.class,
+                getParser("<bean><unknown>value</unknown></bean>"));
+    }
+
+    private XmlPullParser getParser(String xml) throws Exception {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+
+    public static class Bean {
+        private String name, label;
+        private int count;
+        private boolean enabled;
+        private long size;
+        private double ratio;
+        private Class type;
+        private Object other = "unset";
+
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public String getLabel() { return label; }
+        public void setLabel(String label) { this.label = label; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { this.enabled = enabled; }
+        public long getSize() { return size; }
+        public void setSize(long size) { this.size = size; }
+        public double getRatio() { return ratio; }
+        public void setRatio(double ratio) { this.ratio = ratio; }
+        public Class getType() { return type; }
+        public void setType(Class type) { this.type = type; }
+        // Types not supported are set to null
+        public Object getOther() { return other; }
+        public void setOther(Object other) { this.other = other; }
+    }
+}
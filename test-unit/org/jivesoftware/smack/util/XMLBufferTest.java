@@ -0,0 +1,80 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ *
+ */
+public class XMLBufferTest {
+
+    @Test
+    public void encodingTest() throws Exception {
+        String text = "abc \u00e5\u00e4\u00f6 \u20ac \ud834\udd1e";
+        XMLBuffer buffer = new XMLBuffer();
+        // A surrogate pair split between two appends
+        buffer.append(text.substring(0, text.length() - 1));
+        buffer.append(text.charAt(text.length() - 1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertArrayEquals(text.getBytes("UTF-8"), out.toByteArray());
+        assertEquals(text, buffer.toString());
+
+        buffer.reset();
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void escapingTest() {
+        String[] texts = {
+            "plain", "<body>", "a & b", "&#235;", "&#23;", "\"quoted\" 'single'", ""
+        };
+        for (String text : texts) {
+            XMLBuffer buffer = new XMLBuffer();
+            buffer.appendEscaped(text);
+            assertEquals(StringUtils.escapeForXML(text), buffer.toString());
+        }
+    }
+
+    @Test
+    public void stringBuilderTest() throws Exception {
+        String text = "<a b=\"\u00e5\">&#235; & \ud834\udd1e</a>";
+        XMLBuffer bytes = new XMLBuffer();
+        StringBuilder builder = new StringBuilder();
+        XMLBuffer chars = new XMLBuffer(builder);
+        for (XMLBuffer buffer : new XMLBuffer[] {bytes, chars}) {
+            buffer.append(text).append(' ').appendEscaped(text).append(42);
+        }
+        assertEquals(bytes.toString(), chars.toString());
+        assertEquals(chars.toString(), builder.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        chars.writeTo(out);
+        assertEquals(bytes.toString(), out.toString("UTF-8"));
+
+        chars.reset();
+        assertEquals(0, chars.size());
+        assertEquals(0, builder.length());
+    }
+}
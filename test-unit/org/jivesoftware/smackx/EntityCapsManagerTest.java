@@ -0,0 +1,84 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ *
+ */
+public class EntityCapsManagerTest {
+
+    /**
+     * The simple generation example of XEP-0115, where the entity caps
+     * feature is implicit.
+     */
+    @Test
+    public void ownVersionTest() {
+        SortedSet<String> features = new TreeSet<String>();
+        features.add("http://jabber.org/protocol/muc");
+        features.add("http://jabber.org/protocol/disco#items");
+        features.add("http://jabber.org/protocol/disco#info");
+
+        EntityCapsManager manager = new EntityCapsManager();
+        long failures = EntityCapsManager.getVerificationFailureCount();
+        DiscoverInfo info = new DiscoverInfo();
+        manager.calculateEntityCapsVersion(info, "pc", "Exodus 0.9.1",
+                features, null);
+        assertEquals("QgayPKawpkPSDYmwT/WM94uAlu0=", manager.getCapsVersion());
+        // Our own information is cached without being verified
+        assertSame(info, EntityCapsManager.getDiscoverInfoByNode(
+                manager.getNode() + "#QgayPKawpkPSDYmwT/WM94uAlu0="));
+        assertEquals(failures, EntityCapsManager.getVerificationFailureCount());
+
+        // Listing the caps feature explicitly gives the same version
+        features.add("http://jabber.org/protocol/caps");
+        manager.calculateEntityCapsVersion(new DiscoverInfo(), "pc", "Exodus 0.9.1",
+                features, null);
+        assertEquals("QgayPKawpkPSDYmwT/WM94uAlu0=", manager.getCapsVersion());
+    }
+
+    @Test
+    public void metricsTest() {
+        EntityCapsManager manager = new EntityCapsManager();
+        long failures = EntityCapsManager.getVerificationFailureCount();
+
+        manager.addUserCapsNode("juliet@capulet.lit", "urn:metrics#unverified");
+        assertEquals(1, manager.getUserCount());
+        assertNull(manager.getDiscoverInfoByUser("juliet@capulet.lit"));
+        assertNull(manager.getDiscoverInfoByUser("romeo@montague.lit"));
+        assertEquals(0, manager.getCacheHitRatio(), 0);
+
+        // The version doesn't match the (empty) information
+        EntityCapsManager.addDiscoverInfoByNode("urn:metrics#unverified",
+                new DiscoverInfo());
+        assertEquals(failures + 1, EntityCapsManager.getVerificationFailureCount());
+        assertNotNull(manager.getDiscoverInfoByUser("juliet@capulet.lit"));
+
+        assertEquals(1, manager.getCacheHits());
+        assertEquals(2, manager.getCacheMisses());
+        assertEquals(1.0 / 3, manager.getCacheHitRatio(), 0.0001);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * $Revision:$
+ * $Date:$
+ *
+ * Copyright 2009 Jonas Ådahl.
+ *
+ * All rights reserved. Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ *
+ */
+public class FileEntityCapsStoreTest {
+
+    private static final String NODE = "http://code.google.com/p/exodus#QgayPKawpkPSDYmwT/WM94uAlu0=";
+
+    /**
+     * The simple generation example of XEP-0115.
+     */
+    private static DiscoverInfo createDiscoverInfo() {
+        DiscoverInfo info = new DiscoverInfo();
+        DiscoverInfo.Identity identity = new DiscoverInfo.Identity("client", "Exodus 0.9.1");
+        identity.setType("pc");
+        info.addIdentity(identity);
+        info.addFeature("http://jabber.org/protocol/disco#info");
+        info.addFeature("http://jabber.org/protocol/disco#items");
+        info.addFeature("http://jabber.org/protocol/muc");
+        info.addFeature("http://jabber.org/protocol/caps");
+        return info;
+    }
+
+    @Test
+    public void verifyVersionTest() {
+        DiscoverInfo info = createDiscoverInfo();
+        assertTrue(EntityCapsManager.verifyDiscoverInfoVersion(NODE, info));
+        info.addFeature("urn:xmpp:ping");
+        assertFalse(EntityCapsManager.verifyDiscoverInfoVersion(NODE, info));
+    }
+
+    @Test
+    public void persistenceTest() throws Exception {
+        File file = File.createTempFile("caps", ".store");
+        try {
+            FileEntityCapsStore store = new FileEntityCapsStore(file, 2);
+            store.store(NODE, createDiscoverInfo());
+            store.store("node#a", createDiscoverInfo());
+            store.store("node#b", createDiscoverInfo());
+            assertEquals(2, store.size());
+            assertNull(store.load(NODE));
+
+            // A new store reads the file
+            store = new FileEntityCapsStore(file, 2);
+            DiscoverInfo info = store.load("node#b");
+            assertNotNull(info);
+            assertTrue(info.containsFeature("http://jabber.org/protocol/caps"));
+            assertNull(store.load(NODE));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void truncatedRecordTest() throws Exception {
+        File file = File.createTempFile("caps", ".store");
+        try {
+            FileEntityCapsStore store = new FileEntityCapsStore(file);
+            store.store("node#a", createDiscoverInfo());
+            store.store("node#b", createDiscoverInfo());
+
+            // Cut the last record short, as if writing it was interrupted
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            out.setLength(out.length() - 10);
+            out.close();
+
+            store = new FileEntityCapsStore(file);
+            assertEquals(1, store.size());
+            store.store("node#c", createDiscoverInfo());
+
+            // Records stored after the partly written one can be read
+            store = new FileEntityCapsStore(file);
+            assertNotNull(store.load("node#a"));
+            assertNull(store.load("node#b"));
+            assertNotNull(store.load("node#c"));
+        }
+        finally {
+            file.delete();
+        }
+    }
+}